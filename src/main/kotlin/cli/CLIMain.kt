@@ -30,6 +30,8 @@ fun main(args: Array<String>) =
                 .subcommands(
                         Gen(),
                         Calc(),
+                        Sweep(),
+                        Transient(),
                         GSPN().subcommands(
                             Kanban(),
                             FromPNPRO()
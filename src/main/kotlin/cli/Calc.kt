@@ -31,9 +31,16 @@ import com.github.ajalt.clikt.parameters.types.restrictTo
 import faulttree.galileoParser
 import solver.*
 import solver.solvers.AMEnALSSolve
+import solver.solvers.AMEnOperator
+import solver.solvers.AdaptiveEnrichmentPolicy
+import solver.solvers.AdaptiveLocalSolverPolicy
+import solver.solvers.SegmentWorkerPool
+import java.io.File
 import java.io.FileInputStream
+import java.io.FileWriter
 import java.lang.Double.min
 import java.math.BigInteger
+import java.util.IdentityHashMap
 
 class Calc : CliktCommand(help =
 """Used for performing the analysis of a fault tree model.""".trimMargin()
@@ -53,17 +60,50 @@ class Calc : CliktCommand(help =
                 help = "Sets residual norm threshold for stopping.")
                 .double().default(1e-7)
         val sweeps by option("--sweeps",
-                help = "Sets the maximum number of sweeps for ALS-based solvers (e.g. DMRG, AMEn, AMEn-ALS).")
+                help = "Sets the maximum number of sweeps for ALS-based solvers (e.g. DMRG, AMEn, AMEn-ALS) and of iterations for Jacobi.")
                 .int()
         val enrichmentRank by option("--enrichment",
                 help = "Sets the enrichment rank for AMEn methods (AMEn, AMEn-ALS).")
                 .int().restrictTo(min=0)
+        val maxEnrichmentRank by option("--maxenrichment",
+                help = "Sets the largest enrichment rank, and makes AMEn-ALS and SAMEn adapt the enrichment rank between sweeps (starting from --enrichment): it is increased when a sweep stalls and decreased when the ranks of the solution are stable")
+                .int().restrictTo(min = 1)
+        val maxRank by option("--maxrank",
+                help = "Sets the largest TT rank of the solutions kept by the truncations of DMRG, GMRES, Jacobi, AMEn, AMEn-ALS and SAMEn, which bounds the memory at the price of accuracy. The truncation error is reported in the sweep logs")
+                .int().restrictTo(min = 1)
+        val kronsumPreconditionerTerms by option("--kronprec",
+                help = "Sets the number of exponential terms of a preconditioner for DMRG, GMRES and AMEn-ALS approximating the inverse of the Kronecker sum of the local dynamics of the basic events, and enables it")
+                .int().restrictTo(min = 1)
         val useDirectForSmall by option("--usedirect",
                 help = "Sets whether to use a direct solver for small local systems in AMEn-ALS")
                 .flag()
+        val adaptiveLocalSolver by option("--adaptivelocal",
+                help = "Sets whether to choose the local solver (dense LU, sparse LU, GMRES or BiCGStab) adaptively for each core update in AMEn-ALS and SAMEn")
+                .flag()
+        val useLocalPreconditioner by option("--localprec",
+                help = "Sets whether to use a block Jacobi preconditioner for the local systems in AMEn-ALS and SAMEn")
+                .flag()
         val residDamp by option("--damp",
                 help="Sets the dampening factor used for truncations in DMRG and AMEn-ALS. The truncation threshold used is residualThreshold*dampening")
                 .double().restrictTo(min=0.0, max=1.0).default(1e-2)
+        val allMoments by option("--allmoments",
+                help = "Sets whether to compute every moment up to the given one with a single moment engine, which reuses the generator and the solutions of the lower moments (not supported by Neumann and SAMEn, and not together with --cache and --parallelchains)")
+                .flag()
+        val parallelChains by option("--parallelchains",
+                help = "Sets whether to split the moment computation into a left and a right chain of linear systems in advance, and solve the two chains concurrently")
+                .flag()
+        val telemetry by option("--telemetry",
+                help = "Sets the file to write the per-sweep and per-core progress of the solver to, as JSON lines if its extension is .jsonl and as CSV otherwise (not supported by Neumann)")
+        val checkpoint by option("--checkpoint",
+                help = "Sets the directory to checkpoint the linear system solutions to after every sweep, one file per system (DMRG, AMEn-ALS and SAMEn only). An interrupted solution is resumed from it when started again with the same model, and the checkpoint of a system is deleted when its solution converges")
+        val segments by option("--segments",
+                help = "Sets the number of contiguous core segments updated concurrently in the sweeps of AMEn-ALS and SAMEn")
+                .int().restrictTo(min = 1).default(1)
+        val workers by option("--workers",
+                help = "Sets the number of worker processes the segments of the AMEn-ALS sweeps are updated on, instead of threads (requires --segments)")
+                .int().restrictTo(min = 1)
+        val workerHeap by option("--workerheap",
+                help = "Sets the maximal heap size of the worker processes, e.g. 8g")
         val expinvterms by option("--expinvterms")
                 .int().restrictTo(min = 0)
         val neumannterms by option("--neumannterms")
@@ -82,6 +122,8 @@ class Calc : CliktCommand(help =
     val momentArgs by MomentArgs.cooccurring()
     val steady by option("-st", "--steady").flag()
     val stats by option("--stat").flag()
+    val cacheDir by option("--cache",
+            help = "Sets the directory of the warm-start cache. Moment computations are started from the closest cached solutions of the same model, and their solutions are stored in the cache.")
 
     override fun run() {
         println("Fault tree file: $file")
@@ -110,91 +152,163 @@ class Calc : CliktCommand(help =
         }
         if (momentArgs != null) {
             val momentArgs = momentArgs!!
-            val rho = tree.getHighestExitRate()
-            val start = System.currentTimeMillis()
-            val res = if (MomentArgs.moment == 1 && MomentArgs.solver == "Neumann") {
-                val expInvTerms = MomentArgs.expinvterms ?: throw RuntimeException("expinvterms argument needed")
-                val neumannTerms = MomentArgs.neumannterms ?: throw RuntimeException("neumannterms argument needed")
-                val approxInvRounding = 1e-16
-                tree.mttfThroughKronsumMethod(
-                        neumannTerms,
-                        expInvTerms,
-                        approxInvRounding,
-                        MomentArgs.threshold,
-                        convergenceThreshold = MomentArgs.threshold, //TODO: separate parameter
-                        verbose = true
-                )
-            } else if(MomentArgs.solver == "SAMEn") {
-                tree.getNthMomentSparse(MomentArgs.moment, MomentArgs.threshold) { M, b, threshold ->
-                    AMEnALSSolve(
-                            M as Array<Abstract2DCoreTensor>,
-                            b,
-                            residualThreshold = threshold,
-                            maxSweeps = momentArgs.sweeps ?: 0,
-                            enrichmentRank = momentArgs.enrichmentRank ?: 1,
-                            useApproxResidualForStopping = false,
-                            residDamp = momentArgs.residDamp
-                    )
-                }
-            } else {
-                val solverFunc: (TTSquareMatrix, TTVector, Double) -> TTSolution = when (MomentArgs.solver) {
-                    "DMRG" -> { M, b, threshold ->
-                        DMRGSolve(
-                                M,
-                                b,
-                                absoluteResidualThreshold = threshold,
-                                truncationRelativeThreshold = MomentArgs.threshold * min(1.0/rho, MomentArgs.residDamp),
-                                maxSweeps = MomentArgs.sweeps ?: 0,
-                                verbose = true
-                        )
-                    }
-                    "GMRES" -> { M, b, threshold ->
-                        TTReGMRES(null,
-                                M, b,
-                                TTVector.ones(b.modes),
-                                MomentArgs.threshold,
-                                //maxInnerIters,
-                                //maxOuterIters,
-                                verbose = true,
-                                approxSpectralRadius = rho
-                        )
-                    }
-                    "Jacobi" -> { M, b, threshold ->
-                        TTJacobi(
-                                M, b,
-                                threshold, //relativeResNormThreshold * pi0.norm(),
-                                MomentArgs.threshold / rho,
-                                log = true
-                        )
-                    }
-                    "AMEn" -> { M, b, threshold ->
-                        AMEnSolve(
-                                M, b,
-                                TTVector.ones(b.modes),
-                                threshold,
-                                MomentArgs.sweeps ?: 0,
-                                MomentArgs.enrichmentRank ?: 1
-                        )
+            val cache = cacheDir?.let { WarmStartCache(File(it)) }
+            require(!MomentArgs.allMoments || (cache == null && !MomentArgs.parallelChains))
+            { "The warm-start cache and parallel chains are not supported with --allmoments" }
+            val checkpointer = MomentArgs.checkpoint?.let { Checkpointer(File(it)) }
+            val listener = MomentArgs.telemetry?.let {
+                if (it.endsWith(".jsonl")) JsonLinesSolverListener(FileWriter(it)) else CsvSolverListener(FileWriter(it))
+            }
+            require(MomentArgs.workers == null || MomentArgs.segments > 1)
+            { "Worker processes are only used with more than one segment (--segments)" }
+            val workers = MomentArgs.workers?.let { n ->
+                SegmentWorkerPool(n, jvmOptions = MomentArgs.workerHeap?.let { listOf("-Xmx$it") } ?: listOf())
+            }
+            try {
+                val enrichmentPolicy = MomentArgs.maxEnrichmentRank?.let { AdaptiveEnrichmentPolicy(maxRank = it) }
+                val maxRank = MomentArgs.maxRank ?: Int.MAX_VALUE
+                // the preconditioned operator P*M of each M is computed once and shared by its solves
+                val preconditioners = IdentityHashMap<TTSquareMatrix, LeftPreconditionedOperator>()
+                val preconditionerOf = { M: TTSquareMatrix ->
+                    MomentArgs.kronsumPreconditionerTerms?.let { terms ->
+                        synchronized(preconditioners) {
+                            preconditioners.getOrPut(M) {
+                                LeftPreconditionedOperator(KronsumInverse.of(M, terms, MomentArgs.threshold).matrix, M)
+                            }
+                        }
                     }
-                    "AMEn-ALS" -> { M, b, threshold ->
+                }
+                val rho = tree.getHighestExitRate()
+                val start = System.currentTimeMillis()
+                val res = if (MomentArgs.moment == 1 && MomentArgs.solver == "Neumann") {
+                    val expInvTerms = MomentArgs.expinvterms ?: throw RuntimeException("expinvterms argument needed")
+                    val neumannTerms = MomentArgs.neumannterms ?: throw RuntimeException("neumannterms argument needed")
+                    val approxInvRounding = 1e-16
+                    tree.mttfThroughKronsumMethod(
+                            neumannTerms,
+                            expInvTerms,
+                            approxInvRounding,
+                            MomentArgs.threshold,
+                            convergenceThreshold = MomentArgs.threshold, //TODO: separate parameter
+                            verbose = true
+                    )
+                } else if(MomentArgs.solver == "SAMEn") {
+                    tree.getNthMomentSparse(MomentArgs.moment, MomentArgs.threshold, cache, MomentArgs.parallelChains) { M, b, threshold, warmStart ->
                         AMEnALSSolve(
-                                M,
+                                M as Array<Abstract2DCoreTensor>,
                                 b,
+                                x0 = warmStart?.x0 ?: TTVector.ones(b.modes),
+                                z0 = warmStart?.z0,
                                 residualThreshold = threshold,
                                 maxSweeps = momentArgs.sweeps ?: 0,
                                 enrichmentRank = momentArgs.enrichmentRank ?: 1,
                                 useApproxResidualForStopping = false,
                                 residDamp = momentArgs.residDamp,
-                                useDirectForSmall = momentArgs.useDirectForSmall
+                                useLocalPreconditioner = momentArgs.useLocalPreconditioner,
+                                localSolverPolicy = if (momentArgs.adaptiveLocalSolver) AdaptiveLocalSolverPolicy() else null,
+                                enrichmentPolicy = enrichmentPolicy,
+                                listener = listener,
+                                checkpointer = checkpointer,
+                                parallelSegments = momentArgs.segments,
+                                maxRank = maxRank
                         )
                     }
-                    else -> throw RuntimeException("Unknown solver")
+                } else {
+                    val solverFunc: MomentSolver = when (MomentArgs.solver) {
+                        "DMRG" -> { M, b, threshold, warmStart, _ ->
+                            DMRGSolve(
+                                    M,
+                                    b,
+                                    x0 = warmStart?.x0 ?: TTVector.ones(b.modes),
+                                    absoluteResidualThreshold = threshold,
+                                    truncationRelativeThreshold = MomentArgs.threshold * min(1.0/rho, MomentArgs.residDamp),
+                                    maxSweeps = MomentArgs.sweeps ?: 0,
+                                    verbose = true,
+                                    listener = listener,
+                                    checkpointer = checkpointer,
+                                    maxRank = maxRank,
+                                    preconditioner = preconditionerOf(M)
+                            )
+                        }
+                        "GMRES" -> { M, b, threshold, warmStart, _ ->
+                            TTReGMRES(preconditionerOf(M)?.P,
+                                    M, b,
+                                    warmStart?.x0 ?: TTVector.ones(b.modes),
+                                    MomentArgs.threshold,
+                                    //maxInnerIters,
+                                    //maxOuterIters,
+                                    verbose = true,
+                                    approxSpectralRadius = rho,
+                                    listener = listener,
+                                    maxRank = maxRank
+                            )
+                        }
+                        "Jacobi" -> { M, b, threshold, _, _ ->
+                            TTJacobi(
+                                    M, b,
+                                    threshold, //relativeResNormThreshold * pi0.norm(),
+                                    MomentArgs.threshold / rho,
+                                    log = true,
+                                    listener = listener,
+                                    maxIter = MomentArgs.sweeps ?: Int.MAX_VALUE,
+                                    maxRank = maxRank
+                            )
+                        }
+                        "AMEn" -> { M, b, threshold, warmStart, _ ->
+                            AMEnSolve(
+                                    M, b,
+                                    warmStart?.x0 ?: TTVector.ones(b.modes),
+                                    threshold,
+                                    MomentArgs.sweeps ?: 0,
+                                    MomentArgs.enrichmentRank ?: 1,
+                                    listener = listener,
+                                    maxRank = maxRank
+                            )
+                        }
+                        "AMEn-ALS" -> { M, b, threshold, warmStart, operator ->
+                            AMEnALSSolve(
+                                    M,
+                                    b,
+                                    x0 = warmStart?.x0 ?: TTVector.ones(b.modes),
+                                    z0 = warmStart?.z0,
+                                    residualThreshold = threshold,
+                                    maxSweeps = momentArgs.sweeps ?: 0,
+                                    enrichmentRank = momentArgs.enrichmentRank ?: 1,
+                                    useApproxResidualForStopping = false,
+                                    residDamp = momentArgs.residDamp,
+                                    useDirectForSmall = momentArgs.useDirectForSmall,
+                                    useLocalPreconditioner = momentArgs.useLocalPreconditioner,
+                                    localSolverPolicy = if (momentArgs.adaptiveLocalSolver) AdaptiveLocalSolverPolicy() else null,
+                                    enrichmentPolicy = enrichmentPolicy,
+                                    operator = operator,
+                                    listener = listener,
+                                    checkpointer = checkpointer,
+                                    parallelSegments = momentArgs.segments,
+                                    workers = workers,
+                                    maxRank = maxRank,
+                                    preconditioner = preconditionerOf(M)
+                            )
+                        }
+                        else -> throw RuntimeException("Unknown solver")
+                    }
+                    if (MomentArgs.allMoments) {
+                        val moments = tree.momentEngine(MomentArgs.threshold, solverFunc).moments(MomentArgs.moment)
+                        for ((idx, m) in moments.dropLast(1).withIndex()) println("${idx + 1}th moment: $m")
+                        moments.last()
+                    } else {
+                        tree.getNthMoment(MomentArgs.moment, MomentArgs.threshold, cache, MomentArgs.parallelChains) { M, b, threshold, warmStart ->
+                            solverFunc(M, b, threshold, warmStart, AMEnOperator(M))
+                        }
+                    }
                 }
-                tree.getNthMoment(MomentArgs.moment, MomentArgs.threshold, solverFunc)
+                val end = System.currentTimeMillis()
+                println("${MomentArgs.moment}th moment: $res")
+                println("Moment calculation time: ${end-start}ms")
+                if (cache != null) println(cache.statistics())
+            } finally {
+                listener?.close()
+                workers?.close()
             }
-            val end = System.currentTimeMillis()
-            println("${MomentArgs.moment}th moment: $res")
-            println("Moment calculation time: ${end-start}ms")
         }
     }
 
@@ -21,6 +21,7 @@ package cli
 import com.github.ajalt.clikt.core.CliktCommand
 import com.github.ajalt.clikt.parameters.arguments.argument
 import com.github.ajalt.clikt.parameters.options.default
+import com.github.ajalt.clikt.parameters.options.flag
 import com.github.ajalt.clikt.parameters.options.option
 import com.github.ajalt.clikt.parameters.types.double
 import com.github.ajalt.clikt.parameters.types.int
@@ -28,12 +29,14 @@ import com.github.ajalt.clikt.parameters.types.restrictTo
 import gspn.PNPROParser
 import solver.AMEnSolve
 import solver.TTVector
+import solver.solvers.ALSEigenSolve
 import java.io.FileInputStream
 
 class FromPNPRO : CliktCommand() {
     val file by argument()
     val enrichment by option().int().restrictTo(min = 1).default(1)
     val tolerance by option().double().restrictTo(min=0.0, max=0.1).default(0.0)
+    val eigen by option(help = "Sets whether to compute the steady state as the null vector of the transposed generator by the ALS eigen-solver instead of the bordered linear system").flag(default = false)
 
     override fun run() {
         val model = PNPROParser.parse(FileInputStream(file))
@@ -44,7 +47,13 @@ class FromPNPRO : CliktCommand() {
 //        }
 
         val ss = model.getSteadyStateDistribution(true, tolerance) { A ->
-            AMEnSolve(
+            if (eigen) ALSEigenSolve(
+                    A = A,
+                    residualThreshold = 1e-7,
+                    maxSweeps = 50,
+                    enrichmentRank = enrichment
+            )
+            else AMEnSolve(
                     A = A,
                     y = TTVector.zeros(A.modes),
                     residualThreshold = 1e-7,
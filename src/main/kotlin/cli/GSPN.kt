@@ -29,8 +29,11 @@ import com.github.ajalt.clikt.parameters.types.double
 import com.github.ajalt.clikt.parameters.types.int
 import com.github.ajalt.clikt.parameters.types.restrictTo
 import hu.bme.mit.delta.mdd.MddBuilder
+import solver.Checkpointer
 import solver.TTVector
+import solver.WarmStartCache
 import solver.product
+import java.io.File
 import kotlin.random.Random
 
 class GSPN: CliktCommand() {
@@ -45,6 +48,10 @@ class Kanban: CliktCommand() {
     val tolerance by option().double().restrictTo(min=0.0, max=0.1).default(0.0)
     val mtta by option().flag(default = false)
     val ss by option().flag(default = false)
+    val cache by option(help = "Sets the directory of the warm-start cache for the steady-state computation")
+    val checkpoint by option(help = "Sets the directory to checkpoint the steady-state computation to after every sweep. An interrupted computation is resumed from it when started again with the same model. Not supported with --eigen")
+    val eigen by option(help = "Sets whether to compute the steady state as the null vector of the transposed generator by the ALS eigen-solver instead of the bordered linear system").flag(default = false)
+    val kronprec by option(help = "Sets the number of exponential terms of an approximate inverse of the Kronecker sum of the local dynamics of the places, whose solution is the initial guess of the MTTA computation, and enables it").int().restrictTo(min = 1)
     override fun run() {
         val getNextRate = if(random) {{Random.nextDouble(0.1, 1.0)}} else {{1.0}}
         val model =
@@ -60,13 +67,15 @@ class Kanban: CliktCommand() {
                     varOrder.defaultSetSignature.project(
                             MddBuilder<Boolean>(varOrder.createSignatureFromTraceInfos(listOf("b${blocks - 1}_pout2"))).build(arrayOf(1), true)
                     )
-            val MTTA = model.getMTTA(tokenEnteredLast, enrichmentRank = enrichment)
+            val MTTA = model.getMTTA(tokenEnteredLast, enrichmentRank = enrichment, kronsumTerms = kronprec)
             println("Mean time until first completion: ${MTTA}")
             val endMtta = System.currentTimeMillis()
             println("MTTA computation duration: ${endMtta - startMtta}ms")
         }
         if(ss) {
+            require(!eigen || checkpoint == null) { "Checkpointing is not supported with --eigen" }
             val startSS = System.currentTimeMillis()
+            val warmStartCache = cache?.let { WarmStartCache(File(it)) }
 //        val steadyStateDistribution = model.getSteadyStateDistribution(true, tolerance) { A ->
 //            AMEnALSSolve(
 //                    A = A,
@@ -83,10 +92,14 @@ class Kanban: CliktCommand() {
                     true,
                     false,
                     true,
-                    enrichment)
+                    enrichment,
+                    warmStartCache,
+                    eigen,
+                    checkpoint?.let { Checkpointer(File(it)) })
             println(steadyStateDistribution * TTVector.ones(steadyStateDistribution.modes))
             val endSS = System.currentTimeMillis()
             println("Steady-state computation duration: ${endSS - startSS}ms")
+            if (warmStartCache != null) println(warmStartCache.statistics())
         }
     }
 }
\ No newline at end of file
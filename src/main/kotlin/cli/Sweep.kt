@@ -0,0 +1,126 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package cli
+
+import com.github.ajalt.clikt.core.CliktCommand
+import com.github.ajalt.clikt.parameters.options.*
+import com.github.ajalt.clikt.parameters.types.double
+import com.github.ajalt.clikt.parameters.types.int
+import com.github.ajalt.clikt.parameters.types.restrictTo
+import faulttree.galileoParser
+import solver.FaultTreeSweep
+import solver.SweepPoint
+import solver.SweepResult
+import solver.TTVector
+import solver.solvers.AMEnALSSolve
+import java.io.FileInputStream
+import java.io.FileWriter
+import java.io.PrintWriter
+
+class Sweep : CliktCommand(help =
+"""Used for computing a moment of the time to first failure of a fault tree over a grid of failure and repair rates.""".trimMargin()
+) {
+    data class Range(val event: String, val parameter: String, val values: List<Double>)
+
+    val file by option("-f", "--file",
+            help = "The path of the Galileo file describing the model to analyze.")
+            .required()
+    val ranges by option("--vary",
+            help = "Adds a dimension of the grid in the form event:failure|repair:from:to:steps. The points along the last dimension form the chains, in which each point is warm-started from the previous one.")
+            .convert { spec ->
+                val parts = spec.split(":")
+                if (parts.size != 5 || parts[1] !in listOf("failure", "repair"))
+                    fail("Expected event:failure|repair:from:to:steps instead of $spec")
+                val from = parts[2].toDoubleOrNull() ?: fail("Invalid number: ${parts[2]}")
+                val to = parts[3].toDoubleOrNull() ?: fail("Invalid number: ${parts[3]}")
+                val steps = parts[4].toIntOrNull()?.takeIf { it > 0 } ?: fail("Invalid number of steps: ${parts[4]}")
+                Range(parts[0], parts[1], List(steps) { if (steps == 1) from else from + (to - from) * it / (steps - 1) })
+            }
+            .multiple().validate { require(it.isNotEmpty()) { "At least one --vary option is needed" } }
+    val moment by option("-m", "--moment",
+            help="Sets which moment to calculate (e.g. 1 for mean)")
+            .int().restrictTo(min = 1).default(1)
+    val threshold by option("-th", "--threshold",
+            help = "Sets residual norm threshold for stopping.")
+            .double().default(1e-7)
+    val sweeps by option("--sweeps",
+            help = "Sets the maximum number of sweeps of AMEn-ALS.")
+            .int().default(20)
+    val enrichmentRank by option("--enrichment",
+            help = "Sets the enrichment rank of AMEn-ALS.")
+            .int().restrictTo(min=0).default(1)
+    val threads by option("--threads",
+            help = "Sets the number of chains computed in parallel.")
+            .int().restrictTo(min = 1).default(Runtime.getRuntime().availableProcessors())
+    val output by option("-o", "--output",
+            help = "The path of the CSV file to write the results to, in the order the points are finished. The results are printed to the standard output if not given.")
+
+    private fun createPoint(values: List<Pair<Range, Double>>): SweepPoint {
+        val failureRates = values.filter { it.first.parameter == "failure" }.map { it.first.event to it.second }.toMap()
+        val repairRates = values.filter { it.first.parameter == "repair" }.map { it.first.event to it.second }.toMap()
+        return SweepPoint(failureRates, repairRates)
+    }
+
+    override fun run() {
+        val tree = FileInputStream(file).use { galileoParser.parse(it) }
+        val outerRanges = ranges.dropLast(1)
+        val innerRange = ranges.last()
+        var outerPoints = listOf(listOf<Pair<Range, Double>>())
+        for (range in outerRanges) {
+            outerPoints = outerPoints.flatMap { prefix -> range.values.map { prefix + (range to it) } }
+        }
+        val chains = outerPoints.map { prefix -> innerRange.values.map { createPoint(prefix + (innerRange to it)) } }
+
+        val start = System.currentTimeMillis()
+        val sweep = FaultTreeSweep(tree)
+        println("Sweep setup time: ${System.currentTimeMillis() - start}ms")
+        val writer = output?.let { PrintWriter(FileWriter(it)) } ?: PrintWriter(System.out)
+        try {
+            writer.println((ranges.map { "${it.event}.${it.parameter}" } + listOf("moment$moment", "timeMs")).joinToString(","))
+            writer.flush()
+            // the rows are written as the points are finished, so the results of a long sweep are kept even if it fails
+            val onResult = { result: SweepResult ->
+                val parameters = ranges.map { range ->
+                    if (range.parameter == "failure") result.point.failureRates.getValue(range.event)
+                    else result.point.repairRates.getValue(range.event)
+                }
+                synchronized(writer) {
+                    writer.println((parameters + listOf(result.moment, result.timeMs)).joinToString(","))
+                    writer.flush()
+                }
+            }
+            sweep.run(chains, moment, threshold, threads, onResult) { M, b, threshold, warmStart ->
+                AMEnALSSolve(
+                        M,
+                        b,
+                        x0 = warmStart?.x0 ?: TTVector.ones(b.modes),
+                        z0 = warmStart?.z0,
+                        residualThreshold = threshold,
+                        maxSweeps = sweeps,
+                        enrichmentRank = enrichmentRank,
+                        verbose = false
+                )
+            }
+        } finally {
+            writer.flush()
+            if (output != null) writer.close()
+        }
+        println("Sweep time: ${System.currentTimeMillis() - start}ms")
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package cli
+
+import com.github.ajalt.clikt.core.CliktCommand
+import com.github.ajalt.clikt.parameters.options.*
+import com.github.ajalt.clikt.parameters.types.double
+import faulttree.galileoParser
+import solver.getUnreliability
+import java.io.FileInputStream
+import java.io.FileWriter
+import java.io.PrintWriter
+
+class Transient : CliktCommand(help =
+"""Used for computing the unreliability curve F(t) of a fault tree by uniformization.""".trimMargin()
+) {
+    val file by option("-f", "--file",
+            help = "The path of the Galileo file describing the model to analyze.")
+            .required()
+    val times by option("-t", "--times",
+            help = "The time points in the form from:to:steps.")
+            .convert { spec ->
+                val parts = spec.split(":")
+                if (parts.size != 3) fail("Expected from:to:steps instead of $spec")
+                val from = parts[0].toDoubleOrNull()?.takeIf { it >= 0.0 } ?: fail("Invalid time: ${parts[0]}")
+                val to = parts[1].toDoubleOrNull()?.takeIf { it >= from } ?: fail("Invalid time: ${parts[1]}")
+                val steps = parts[2].toIntOrNull()?.takeIf { it > 0 } ?: fail("Invalid number of steps: ${parts[2]}")
+                List(steps) { if (steps == 1) from else from + (to - from) * it / (steps - 1) }
+            }
+            .required()
+    val roundingAccuracy by option("--accuracy",
+            help = "Sets the relative accuracy of the rounding of the TT vectors.")
+            .double().default(1e-10)
+    val truncationError by option("--truncation",
+            help = "Sets the bound of the truncation error of the Poisson sums.")
+            .double().default(1e-10)
+    val steadyStateTolerance by option("--steadytol",
+            help = "Sets the relative change of the vector below which the steady state is considered reached. 0 disables the detection.")
+            .double().default(1e-12)
+    val output by option("-o", "--output",
+            help = "The path of the CSV file to write the results to. The results are printed to the standard output if not given.")
+    val verbose by option("-v", "--verbose").flag()
+
+    override fun run() {
+        val tree = FileInputStream(file).use { galileoParser.parse(it) }
+        val writer = output?.let { PrintWriter(FileWriter(it)) } ?: PrintWriter(System.out)
+        val start = System.currentTimeMillis()
+        writer.println("time,unreliability,truncationError")
+        writer.flush()
+        tree.getUnreliability(times, roundingAccuracy, truncationError, steadyStateTolerance, verbose) { point ->
+            writer.println("${point.time},${point.value},${point.truncationError}")
+            writer.flush()
+        }
+        if (output != null) writer.close()
+        println("Calculation time: ${System.currentTimeMillis() - start}ms")
+    }
+}
@@ -144,22 +144,20 @@ class FaultTree(val topNode: FaultTreeNode) {
      * and performs the modification needed for MTTF calculation on it.
      * @return the modified generator matrix in TT format
      */
-    fun getModifiedGenerator(): TTSquareMatrix {
-        val M = getBaseGenerator()
-        val S = getModifierForMTTF(M)
-        val res = M - S
-//        res.tt.roundRelative(0.0)
-        return res
-    }
+    fun getModifiedGenerator(): TTSquareMatrix =
+            assembleModifiedGenerator(getLocalRateMatrices(), getOperationalIndicatorVector(), getStrictAbsorbingIndicatorVector())
+
+    /**
+     * Returns the local rate matrices of the variables in the order of the cores.
+     */
+    fun getLocalRateMatrices(): List<SimpleMatrix> = getBaseRateMatrix().tt.cores.map { it.localRateMatrix() }
 
 
     fun getModifiedGeneratorAsSparseCores(): List<Sparse2DCoreTensor> {
         //TODO: this is just a quick proto to check if sparse AMEn performs better
         //      then the dense one. Creating the dense cores and then transforming
         //      to sparse is very inefficient and should be avoided.
-        val M = getBaseGenerator()
-        val S = getModifierForMTTF(M)
-        val res = M - S
+        val res = getModifiedGenerator()
         val sparseCores = res.tt.cores.mapIndexed { idx, core ->
             val data = Array(res.modes[idx]) { i ->
                 Array(res.modes[idx]) { j ->
@@ -183,8 +181,18 @@ class FaultTree(val topNode: FaultTreeNode) {
         return TTVector(origAbsorbingMdd.toTensorTrain())
     }
 
-    fun getModifierForMTTF(M: TTSquareMatrix): TTSquareMatrix {
-        val stateMaskVector = getOperationalIndicatorVector()
+    fun getModifierForMTTF(M: TTSquareMatrix): TTSquareMatrix =
+            getModifierForMTTF(M, getOperationalIndicatorVector(), getStrictAbsorbingIndicatorVector())
+
+    /**
+     * Returns the modifier of the generator M for MTTF calculation, using the already computed operational and strict
+     * absorbing indicator vectors of the tree, so the MDD operations are not repeated for every generator.
+     */
+    fun getModifierForMTTF(
+            M: TTSquareMatrix,
+            stateMaskVector: TTVector,
+            origAbsorbingIndicatorVector: TTVector
+    ): TTSquareMatrix {
         val D = M.diagVect()
         for (core in D.tt.cores) {
             for (i in (0 until core.data.size)){
@@ -193,7 +201,6 @@ class FaultTree(val topNode: FaultTreeNode) {
         }
         val meanExitRate=-(D*TTVector.ones(D.modes))
         // TODO: PAND and SPARE might introduce new absorbing states in the original Markov chain
-        val origAbsorbingIndicatorVector = getStrictAbsorbingIndicatorVector()
         val failureIndicatorVector = TTVector.ones(stateMaskVector.modes) - stateMaskVector
         val failureIndicatorMatrix = TTSquareMatrix.diag(failureIndicatorVector)
         return failureIndicatorMatrix * M + M * failureIndicatorMatrix + meanExitRate * TTSquareMatrix.diag(origAbsorbingIndicatorVector) - 2.0 * TTSquareMatrix.diag(M.diagVect().hadamard(failureIndicatorVector))
@@ -0,0 +1,112 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package faulttree
+
+import org.ejml.simple.SimpleMatrix
+import solver.*
+
+/**
+ * Returns the local rate matrix R of a variable from its base core, which is [R I], [I 0; R I] or [I; R] depending on
+ * the position of the core, so R is always its bottom left block.
+ */
+fun CoreTensor.localRateMatrix(): SimpleMatrix {
+    val n = Math.round(Math.sqrt(modeLength.toDouble())).toInt()
+    val R = SimpleMatrix(n, n)
+    for (i in 0 until n)
+        for (j in 0 until n)
+            R[i, j] = this[i * n + j][rows - 1, 0]
+    return R
+}
+
+/**
+ * Assembles the generator modified for MTTF calculation core by core, without TT-TT products.
+ *
+ * With the base generator M = O + D split into its off-diagonal part O and its diagonal D, both Kronecker sums of the
+ * local parts of the variables, the operational indicator s and the strict absorbing indicator a, the modified
+ * generator is M - S = P*O + O*P - O + D - m*diag(a), where P = diag(s) and m is the mean exit rate. So the element
+ * (x, y) of the off-diagonal part is (s(x) + s(y) - 1) * O(x, y), which is linear in s: as x and y only differ in a
+ * single variable k, the cores of s are shared before k, the interface after k is the sum of the two rows of the kth
+ * core of s, and they are shared again after k. The rank index of every core is made of
+ *  - the interface of s extended with a constant 1 before the changing variable,
+ *  - the same after it,
+ *  - the interface of a,
+ * so the ranks are at most 2 * (rank(s) + 1) + rank(a), with rank(s) the level sizes of the operational MDD, compared
+ * to the products of the ranks of the indicators and M in the assembly through the modifier.
+ * @param rates the local rate matrices of the variables, see localRateMatrix
+ * @param operational the operational indicator vector
+ * @param absorbing the strict absorbing indicator vector
+ */
+fun assembleModifiedGenerator(rates: List<SimpleMatrix>, operational: TTVector, absorbing: TTVector): TTSquareMatrix {
+    val d = rates.size
+    require(operational.modes.size == d && absorbing.modes.size == d)
+    { "The indicator vectors must have a core for every variable!" }
+    require(operational.tt.cores[0].rows == 1 && absorbing.tt.cores[0].rows == 1 &&
+            operational.tt.cores[d - 1].cols == 1 && absorbing.tt.cores[d - 1].cols == 1)
+    { "The first and last ranks of the indicator vectors must be 1!" }
+    // the diagonals of the local generators
+    val diagonals = rates.map { R -> DoubleArray(R.numRows()) { i -> R[i, i] - R.row(i).elementSum() } }
+    val meanExitRate = -diagonals.map { it.average() }.sum()
+    val cores = ArrayList<CoreTensor>(d)
+    for (k in 0 until d) {
+        val R = rates[k]
+        val n = R.numRows()
+        val S = operational.tt.cores[k]
+        val A = absorbing.tt.cores[k]
+        // offsets of the blocks: before the changing variable, after it, absorbing
+        val after = S.rows + 1
+        val afterNext = S.cols + 1
+        val abs = 2 * after
+        val absNext = 2 * afterNext
+        val core = CoreTensor(n * n, abs + A.rows, absNext + A.cols)
+        for (i in 0 until n) {
+            for (j in 0 until n) {
+                val block = SimpleMatrix(core.rows, core.cols)
+                if (i == j) {
+                    block[0, 0] = S[i]
+                    block[S.rows, S.cols] = 1.0
+                    block[after, afterNext] = S[i]
+                    block[after + S.rows, afterNext + S.cols] = 1.0
+                    block[abs, absNext] = if (k == 0) -meanExitRate * A[i] else A[i]
+                    block[S.rows, afterNext + S.cols] = diagonals[k][i]
+                } else if (R[i, j] != 0.0) {
+                    block[0, afterNext] = R[i, j] * (S[i] + S[j])
+                    block[S.rows, afterNext + S.cols] = -R[i, j]
+                }
+                core[i * n + j] = block
+            }
+        }
+        cores.add(core)
+    }
+    // the train starts before the first variable with the constant 1 and the row of a, and ends after the last one
+    val first = cores[0]
+    val left = SimpleMatrix(1, first.rows)
+    left[0, 0] = 1.0
+    left[0, 1] = 1.0
+    left[0, 4] = 1.0
+    for (idx in first.data.indices) first[idx] = left * first[idx]
+    first.updateDimensions()
+    val last = cores[d - 1]
+    val right = SimpleMatrix(last.cols, 1)
+    right[2, 0] = 1.0
+    right[3, 0] = 1.0
+    right[4, 0] = 1.0
+    for (idx in last.data.indices) last[idx] = last[idx] * right
+    last.updateDimensions()
+    return TTSquareMatrix(TensorTrain(cores), Array(d) { rates[it].numRows() })
+}
@@ -40,6 +40,7 @@ import org.ejml.sparse.csc.CommonOps_DSCC
 import scala.*
 import scala.collection.JavaConverters
 import solver.*
+import solver.solvers.ALSEigenSolve
 import solver.solvers.AMEnALSSolve
 import solver.solvers.ConstrainedAMEnSolver
 import java.lang.Integer.max
@@ -375,8 +376,12 @@ class GSPN(val places: ArrayList<Place>, val transitions: ArrayList<Transition>)
             verbose: Boolean = false,
             useCompaction: Boolean = false,
             useConstrainedAMEn: Boolean = false,
-            enrichmentRank: Int = 4
+            enrichmentRank: Int = 4,
+            cache: WarmStartCache? = null,
+            useEigenSolver: Boolean = false,
+            checkpointer: Checkpointer? = null
     ): TTVector {
+        require(!useEigenSolver || checkpointer == null) { "The eigen-solver does not support checkpointing!" }
         if (verbose) println("Computing rate matrix")
         val timeStart = System.currentTimeMillis()
         val varOrder = getVariableOrder()
@@ -436,8 +441,19 @@ class GSPN(val places: ArrayList<Place>, val transitions: ArrayList<Transition>)
 //        val normalizer = reachableMask * TTVector.ones(reachableMask.modes)
         val init = getInitialStateVectorAsTT()
         init.tt.roundAbsolute(1e-8)
+        val cacheKey = cache?.let { WarmStartKey(places.map { it.name }, init.modes, operatorFingerprint(QTMod)) }
+        val warmStart = if (cache != null && cacheKey != null) cache.lookup(cacheKey, "steady") else null
+        if (verbose && cache != null) println(if (warmStart != null) "Warm-starting from cached solution" else "No cached solution found")
         val s =
-                if (useConstrainedAMEn) ConstrainedAMEnSolver.solve(
+                if (useEigenSolver) ALSEigenSolve(
+                        QTMod as Array<Abstract2DCoreTensor>,
+                        x0 = warmStart?.x0 ?: init,
+                        residualThreshold = 1e-8,
+                        maxSweeps = 100,
+                        enrichmentRank = enrichmentRank,
+                        verbose = verbose
+                )
+                else if (useConstrainedAMEn) ConstrainedAMEnSolver.solve(
 //                QT as Array<Abstract2DCoreTensor>,
                         QTMod as Array<Abstract2DCoreTensor>,
                         TTVector.zeros(QT.map(Abstract2DCoreTensor::modeLength).toTypedArray()),
@@ -448,24 +464,29 @@ class GSPN(val places: ArrayList<Place>, val transitions: ArrayList<Transition>)
                         enrichmentRank = enrichmentRank,
                         normalize = true,
                         truncateBasedOnResidual = true,
-                        useApproxResidualForStopping = false
+                        useApproxResidualForStopping = false,
+                        z0 = warmStart?.z0
 //                        , reachableStateSpaceIndicator = reachableMask
-                        , constraintCores = reachableMask
+                        , constraintCores = reachableMask,
+                        checkpointer = checkpointer
                 )
                 else AMEnALSSolve(
 //                QT as Array<Abstract2DCoreTensor>,
                         QTMod as Array<Abstract2DCoreTensor>,
                         TTVector.zeros(QT.map(Abstract2DCoreTensor::modeLength).toTypedArray()),
 //                x0 = reachableMask / normalizer,
-                        x0 = init,
+                        x0 = warmStart?.x0 ?: init,
                         residualThreshold = 1e-8,
                         maxSweeps = 100,
                         enrichmentRank = enrichmentRank,
                         normalize = true,
                         truncateBasedOnResidual = true,
-                        useApproxResidualForStopping = false
-                        , reachableStateSpaceIndicator = reachableMask
+                        useApproxResidualForStopping = false,
+                        z0 = warmStart?.z0
+                        , reachableStateSpaceIndicator = reachableMask,
+                        checkpointer = checkpointer
                 )
+        if (cache != null && cacheKey != null) cache.store(cacheKey, "steady", s)
 
 //        val denseR = getRateMatrix(1e-10, immediateRate, false, varOrder)
 //        denseR.tt.roundAbsolute(1e-10)
@@ -494,7 +515,12 @@ class GSPN(val places: ArrayList<Place>, val transitions: ArrayList<Transition>)
     }
 
 
-    fun getMTTA(absorbingStates: MddHandle, rho: Double = 1.0, enrichmentRank: Int = 4): Double {
+    /**
+     * Returns the mean time until the absorbing states are reached. With kronsumTerms, the initial guess of the solver
+     * is the approximate solution from the exponential sum of kronsumTerms terms approximating the inverse of the
+     * Kronecker sum of the local dynamics of the places, see KronsumInverse.
+     */
+    fun getMTTA(absorbingStates: MddHandle, rho: Double = 1.0, enrichmentRank: Int = 4, kronsumTerms: Int? = null): Double {
         val varOrder = getVariableOrder()
         val modifiedGeneratorCores=
                 getMatrixForMtta(absorbingStates, rho, varOrder)
@@ -515,10 +541,12 @@ class GSPN(val places: ArrayList<Place>, val transitions: ArrayList<Transition>)
         val initialStateVector = getInitialStateVectorAsTT()
 
         val reachableStatesMdd = stateSpace.reachableStatesRoot().toDelta(varOrder)
+        val A = modifiedGeneratorCores.map{it.transpose()}.toTypedArray<Abstract2DCoreTensor>()
+        val x0 = kronsumTerms?.let { terms -> KronsumInverse.of(A, terms, 1e-8).apply(initialStateVector) }
         val meanTimeVector = ConstrainedAMEnSolver.solve(
-                A = modifiedGeneratorCores.map{it.transpose()}.toTypedArray<Abstract2DCoreTensor>(),
+                A = A,
                 y = initialStateVector,
-//                x0 = initialStateVector,
+                x0 = x0 ?: TTVector.ones(initialStateVector.modes),
                 residualThreshold = 1e-8,
                 residDamp = 1e-5,
                 maxSweeps = 100,
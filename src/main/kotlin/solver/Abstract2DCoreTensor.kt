@@ -35,4 +35,10 @@ abstract class Abstract2DCoreTensor(val modeLength: Int,
     abstract fun multFromRight(i: Int, j: Int, v: DMatrixSparseCSC): DMatrixSparseCSC
 
     abstract fun toDenseCore(): CoreTensor
+
+    /**
+     * Returns the column mode indices j for which the (i,j)th matrix of the core can be nonzero, for each row mode
+     * index i. Contractions with the core only need to visit these (i,j) pairs.
+     */
+    open fun nonzeroPattern(): Array<IntArray> = Array(modeLength) { IntArray(modeLength) { it } }
 }
\ No newline at end of file
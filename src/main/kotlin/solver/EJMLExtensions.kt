@@ -20,6 +20,7 @@ package solver
 
 import org.ejml.data.DMatrixSparseCSC
 import org.ejml.data.DMatrixSparseTriplet
+import org.ejml.dense.row.SingularOps_DDRM
 import org.ejml.dense.row.factory.DecompositionFactory_DDRM
 import org.ejml.ops.ConvertDMatrixStruct
 import org.ejml.simple.SimpleMatrix
@@ -50,6 +51,38 @@ fun SimpleMatrix.T() = this.transpose()
 fun SimpleMatrix.row(idx: Int) = this.rows(idx, idx + 1)
 fun SimpleMatrix.col(idx: Int) = this.cols(idx, idx + 1)
 
+/**
+ * Considers the matrix as a 4D tensor with dimensions d0 x d1 x d2 x d3, where the rows are indexed by (i0, i1) and the
+ * columns by (i2, i3) in row-major order, and returns the matrix whose rows are indexed by the modes order[0], order[1]
+ * and the columns by the modes order[2], order[3]. Used for reshaping between the GEMMs of tensor contractions.
+ */
+fun SimpleMatrix.permuteModes(d0: Int, d1: Int, d2: Int, d3: Int, order: IntArray): SimpleMatrix {
+    val dims = intArrayOf(d0, d1, d2, d3)
+    require(d0 * d1 == this.numRows() && d2 * d3 == this.numCols()) { "Mode sizes don't match the matrix dimensions!" }
+    val strides = IntArray(4)
+    var stride = 1
+    for (k in 3 downTo 0) {
+        strides[order[k]] = stride
+        stride *= dims[order[k]]
+    }
+    val res = SimpleMatrix(dims[order[0]] * dims[order[1]], dims[order[2]] * dims[order[3]])
+    val src = this.ddrm.data
+    val dst = res.ddrm.data
+    var srcIdx = 0
+    for (i0 in 0 until d0) {
+        for (i1 in 0 until d1) {
+            val base01 = i0 * strides[0] + i1 * strides[1]
+            for (i2 in 0 until d2) {
+                val base012 = base01 + i2 * strides[2]
+                for (i3 in 0 until d3) {
+                    dst[base012 + i3 * strides[3]] = src[srcIdx++]
+                }
+            }
+        }
+    }
+    return res
+}
+
 data class QR(val Q: SimpleMatrix, val R: SimpleMatrix)
 
 fun SimpleMatrix.qr(): QR {
@@ -136,12 +169,71 @@ fun exp2by2(A: SimpleMatrix): SimpleMatrix {
     ] / delta
 }
 
+/**
+ * Matrix exponential of a square matrix of any size by scaling and squaring with the (6,6) Pade approximant. Unlike
+ * exp2by2, it also handles complex eigenvalues and the sizes of PH or GSPN place components.
+ */
+fun SimpleMatrix.expm(): SimpleMatrix {
+    require(numRows() == numCols()) { "Only square matrices have exponentials!" }
+    val q = 6
+    var norm = 0.0
+    for (i in 0 until numRows()) {
+        var rowSum = 0.0
+        for (j in 0 until numCols()) rowSum += abs(this[i, j])
+        norm = max(norm, rowSum)
+    }
+    val squarings = if (norm > 0.5) ceil(ln(norm / 0.5) / ln(2.0)).toInt() else 0
+    val X = this / 2.0.pow(squarings)
+    var c = 0.5
+    var N = eye(numRows()) + c * X
+    var D = eye(numRows()) - c * X
+    var Xk = X
+    for (k in 2..q) {
+        c *= (q - k + 1).toDouble() / (k * (2 * q - k + 1))
+        Xk = X * Xk
+        N += c * Xk
+        D = if (k % 2 == 0) D + c * Xk else D - c * Xk
+    }
+    var E = D.solve(N)
+    repeat(squarings) { E = E * E }
+    return E
+}
+
 fun SimpleMatrix.kronSum(other: SimpleMatrix): SimpleMatrix {
     return this.kron(eye(other.numRows())) + eye(this.numRows()).kron(other)
 }
 
 data class SVD(val U: SimpleMatrix, val S: SimpleMatrix, val V: SimpleMatrix)
 
+/**
+ * Returns the leading rank singular triplets of the matrix with the singular values in descending order. If rank is
+ * small compared to the dimensions, they are approximated by a randomized range finder with the given oversampling and
+ * number of power iterations (Halko, Martinsson, Tropp), otherwise they are taken from the compact SVD.
+ */
+fun SimpleMatrix.truncatedSVD(rank: Int, oversampling: Int = 5, powerIterations: Int = 1, random: Random = Random(1)): SVD {
+    require(rank > 0) { "The rank must be positive!" }
+    val l = rank + oversampling
+    if (l >= min(numRows(), numCols())) return compactSVD(rank)
+    val omega = SimpleMatrix.random_DDRM(numCols(), l, -1.0, 1.0, random)
+    var Q = (this * omega).qr().Q
+    repeat(powerIterations) {
+        Q = (this * (this.T() * Q).qr().Q).qr().Q
+    }
+    val small = (Q.T() * this).compactSVD(rank)
+    return SVD(Q * small.U, small.S, small.V)
+}
+
+private fun SimpleMatrix.compactSVD(rank: Int): SVD {
+    val dec = DecompositionFactory_DDRM.svd(numRows(), numCols(), true, true, true)
+    if (!dec.decompose(ddrm.copy())) throw RuntimeException("SVD failed")
+    val U = dec.getU(null, false)
+    val W = dec.getW(null)
+    val V = dec.getV(null, false)
+    SingularOps_DDRM.descendingOrder(U, false, W, V, false)
+    val k = min(rank, W.numRows)
+    return SVD(SimpleMatrix.wrap(U).cols(0, k), SimpleMatrix.wrap(W)[0..k, 0..k], SimpleMatrix.wrap(V).cols(0, k))
+}
+
 fun SimpleMatrix.truncatedSVDByIterativeEigen(threshold: Double): SVD {
     val thresh2 = threshold * threshold
 
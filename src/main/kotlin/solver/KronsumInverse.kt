@@ -0,0 +1,200 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import org.ejml.simple.SimpleMatrix
+import kotlin.math.exp
+import kotlin.math.ln
+import kotlin.math.max
+
+/**
+ * Approximation of the inverse of the Kronecker sum C_1 (+) ... (+) C_d by the exponential sum
+ * scale * sum_i a_i exp(-b_i scale C_1) (x) ... (x) exp(-b_i scale C_d), where the nodes and weights come from the
+ * Gauss-Laguerre quadrature of 1/x = int exp(-t x) dt. The quadrature is most accurate if the smallest real part of
+ * the eigenvalues of the scaled sum is about 1, which is what [of] sets up.
+ * The components may have any size; their dense exponentials are computed once for every term and cached.
+ * @param components terms of the Kronecker sum; the real parts of the eigenvalues of their sum must be positive
+ * @param terms number of exponential terms
+ * @param tolerance relative tolerance of TT rounding after each addition
+ * @param scale scaling of the components before taking the exponentials
+ * @param sign multiplier of the result, -1 approximates the inverse of -(C_1 (+) ... (+) C_d)
+ */
+class KronsumInverse(
+        val components: List<SimpleMatrix>,
+        val terms: Int,
+        val tolerance: Double = 0.0,
+        val scale: Double = 1.0,
+        val sign: Double = 1.0
+) {
+    init {
+        require(terms > 0) { "The number of exponential terms must be positive!" }
+        require(scale > 0.0) { "The scale must be positive!" }
+        require(components.all { it.numRows() == it.numCols() }) { "The components must be square matrices!" }
+    }
+
+    val modes = Array(components.size) { components[it].numRows() }
+
+    /**
+     * The rank-1 terms of the exponential sum, weights included.
+     */
+    private val exponentials: List<TTSquareMatrix> by lazy {
+        val (b, a) = laguerreQuadrature(terms)
+        List(terms) { i ->
+            val cores = ArrayList<CoreTensor>(components.size)
+            for ((k, Ck) in components.withIndex()) {
+                val E = (-b[i] * scale * Ck).expm()
+                val n = modes[k]
+                val core = CoreTensor(n * n, 1, 1)
+                for (idx in 0 until n * n) core[idx][0] = E[idx]
+                cores.add(core)
+            }
+            val M = TTSquareMatrix(TensorTrain(cores), modes)
+            M *= sign * a[i] * scale
+            M
+        }
+    }
+
+    /**
+     * The approximate inverse in TT format, assembled on first use.
+     */
+    val matrix: TTSquareMatrix by lazy {
+        val res = TTSquareMatrix.zeros(modes)
+        for (M in exponentials) {
+            res.plusAssign(M)
+            res.tt.roundRelative(tolerance)
+        }
+        res
+    }
+
+    /**
+     * Applies the approximate inverse to v term by term, without assembling [matrix].
+     */
+    fun apply(v: TTVector): TTVector {
+        val res = exponentials[0] * v
+        for (i in 1 until terms) {
+            res.plusAssign(exponentials[i] * v)
+            res.tt.roundRelative(tolerance)
+        }
+        return res
+    }
+
+    /**
+     * The preconditioner in the form taken by TTFGMRES.
+     */
+    fun asPreconditioner(): (Int, TTVector) -> TTVector = { _, v -> apply(v) }
+
+    companion object {
+        /**
+         * Builds the preconditioner of A from its Kronecker sum approximation given by [kronsumComponents]. If the
+         * diagonal of A is negative on average (e.g. A is a generator), the approximation of -A is inverted and negated.
+         * The components are shifted so that the smallest real part of the eigenvalues of their sum is at least
+         * minShift times the average diagonal element, as the approximation of a singular generator is singular itself.
+         * A larger minShift gives a cruder approximation of the smallest eigenvalues, but a more accurate exponential
+         * sum of a given number of terms for the rest of the spectrum.
+         */
+        fun of(A: TTSquareMatrix, terms: Int, tolerance: Double = 0.0, minShift: Double = 1e-3): KronsumInverse =
+                of(kronsumComponents(A), terms, tolerance, minShift)
+
+        /**
+         * Builds the preconditioner of the operator given by abstract cores, e.g. the generator of a GSPN, whose
+         * components are then the local dynamics of the places.
+         */
+        fun of(A: Array<Abstract2DCoreTensor>, terms: Int, tolerance: Double = 0.0, minShift: Double = 1e-3): KronsumInverse =
+                of(kronsumComponents(A), terms, tolerance, minShift)
+
+        /**
+         * Builds the preconditioner of the Kronecker sum of the components, see [of].
+         */
+        fun of(components: List<SimpleMatrix>, terms: Int, tolerance: Double = 0.0, minShift: Double = 1e-3): KronsumInverse {
+            require(minShift > 0.0) { "The minimal shift must be positive!" }
+            val d = components.size
+            val average = components.map { it.trace() / it.numRows() }.sum()
+            require(average != 0.0) { "The diagonal of the operator must not be zero on average!" }
+            val sign = if (average < 0.0) -1.0 else 1.0
+            val minEigs = components.map { C -> C.eig().eigenvalues.map { sign * it.real }.min() ?: 0.0 }
+            val minEig = max(minEigs.sum(), minShift * sign * average)
+            // the components are balanced to the same smallest eigenvalue, so that none of their exponentials overflows
+            val shifted = components.mapIndexed { k, C -> sign * C + (minEig / d - minEigs[k]) * eye(C.numRows()) }
+            return KronsumInverse(shifted, terms, tolerance, 1.0 / minEig, sign)
+        }
+    }
+}
+
+/**
+ * Returns the nodes and weights of the n-point Gauss-Laguerre quadrature, with the weights multiplied by exp(node),
+ * from the eigendecomposition of the Jacobi matrix of the Laguerre polynomials.
+ */
+internal fun laguerreQuadrature(n: Int): Pair<List<Double>, List<Double>> {
+    val T = SimpleMatrix.diag(*DoubleArray(n) { (2 * it + 1).toDouble() })
+    for (i in 0 until n - 1) {
+        T[i, i + 1] = (i + 1).toDouble()
+        T[i + 1, i] = (i + 1).toDouble()
+    }
+    val eig = T.eig()
+    val eigenPairs = Array(eig.numberOfEigenvalues) {
+        val v = eig.getEigenVector(it)
+        Pair(eig.eigenvalues[it].real, v[0] * v[0] / v.normF() / v.normF())
+    }.sortedBy { it.first }
+    val b = eigenPairs.map { it.first }
+    val a = eigenPairs.mapIndexed { idx, pair -> exp(ln(pair.second) + b[idx]) } //a*exp(b[idx]) changed to be more stable
+    return Pair(b, a)
+}
+
+/**
+ * Returns the components C_k of the Kronecker sum approximation of A given by its partial traces: C_k is the average of
+ * the diagonal blocks of A over the modes other than k, shifted by (d-1)/d times the average diagonal element of A, so
+ * that a Kronecker sum is recovered exactly. For the generator of a fault tree these are the local generators of the
+ * basic events, phase-type ones included.
+ */
+fun kronsumComponents(A: TTSquareMatrix): List<SimpleMatrix> =
+        partialTraceComponents(A.modes) { k, i, j -> A.tt.cores[k][i * A.modes[k] + j] }
+
+/**
+ * Kronecker sum approximation of an operator given by abstract cores, see the TTSquareMatrix overload. Only the
+ * nonzero pattern of the cores is visited.
+ */
+fun kronsumComponents(A: Array<Abstract2DCoreTensor>): List<SimpleMatrix> =
+        partialTraceComponents(Array(A.size) { A[it].modeLength }) { k, i, j ->
+            if (i == j || j in A[k].nonzeroPattern()[i]) A[k].multFromRight(i, j, eye(A[k].cols)) else null
+        }
+
+private fun partialTraceComponents(modes: Array<Int>, block: (Int, Int, Int) -> SimpleMatrix?): List<SimpleMatrix> {
+    val d = modes.size
+    // the averages of the diagonal blocks of the cores, which are contracted with the other cores
+    val traces = List(d) { k ->
+        val n = modes[k]
+        (0 until n).map { block(k, it, it)!! }.reduce { acc, m -> acc + m } / n.toDouble()
+    }
+    val left = ArrayList<SimpleMatrix>(d)
+    left.add(ones(1, 1))
+    for (k in 0 until d - 1) left.add(left[k] * traces[k])
+    val right = arrayOfNulls<SimpleMatrix>(d)
+    right[d - 1] = ones(1, 1)
+    for (k in d - 1 downTo 1) right[k - 1] = traces[k] * right[k]!!
+    val components = List(d) { k ->
+        val n = modes[k]
+        val C = SimpleMatrix(n, n)
+        for (i in 0 until n)
+            for (j in 0 until n)
+                C[i, j] = block(k, i, j)?.let { (left[k] * it * right[k]!!)[0, 0] } ?: 0.0
+        C
+    }
+    val average = components[0].trace() / modes[0]
+    return components.map { it - (d - 1).toDouble() / d * average * eye(it.numRows()) }
+}
@@ -0,0 +1,112 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import org.ejml.data.DMatrixRMaj
+import org.ejml.data.DMatrixSparseCSC
+import org.ejml.ops.ConvertDMatrixStruct
+import org.ejml.simple.SimpleMatrix
+
+/**
+ * A core of the operator diag(m)*A*diag(m), where m is a mask vector (e.g. the indicator of the reachable states) and
+ * mask is its kth core. The (i,j)th matrix of the core is mask[i] (x) A[i,j] (x) mask[j], which is never assembled: the
+ * mask matrices and the core of A are applied one after the other. The pairs (i,j) for which mask[i] or mask[j] is
+ * zero are left out of the nonzero pattern, so the masked states are skipped by the contractions.
+ */
+class MaskedCoreTensor(val core: Abstract2DCoreTensor, val mask: CoreTensor) :
+        Abstract2DCoreTensor(core.modeLength, mask.rows * core.rows * mask.rows, mask.cols * core.cols * mask.cols) {
+    init {
+        require(mask.modeLength == core.modeLength) { "The mode lengths of the core and the mask must be identical!" }
+    }
+
+    private val pattern by lazy {
+        val masked = BooleanArray(modeLength) { mask[it].elementMaxAbs() == 0.0 }
+        Array(modeLength) { i ->
+            if (masked[i]) IntArray(0) else core.nonzeroPattern()[i].filter { !masked[it] }.toIntArray()
+        }
+    }
+
+    override fun nonzeroPattern(): Array<IntArray> = pattern
+
+    /**
+     * Returns v*This[i,j], where the columns of v are indexed by (m, a, m').
+     */
+    override fun multFromLeft(i: Int, j: Int, v: SimpleMatrix): SimpleMatrix {
+        val r = v.numRows()
+        val m = mask.rows
+        val a = core.rows
+        val mNext = mask.cols
+        val aNext = core.cols
+        // (r, m, a) x m'
+        val V = v.copy()
+        V.reshape(r * m * a, m)
+        val VM = V * mask[j]
+        // (r, m, m') x a
+        val AV = core.multFromLeft(i, j, VM.permuteModes(r * m, a, mNext, 1, intArrayOf(0, 2, 1, 3)))
+        AV.reshape(r * m, mNext * aNext)
+        // (r, a, m') x m
+        val T = AV.permuteModes(r, m, mNext, aNext, intArrayOf(0, 3, 2, 1))
+        T.reshape(r * aNext * mNext, m)
+        // r x (m, a, m')
+        val res = (T * mask[i]).permuteModes(r, aNext * mNext, mNext, 1, intArrayOf(0, 2, 1, 3))
+        res.reshape(r, mNext * aNext * mNext)
+        return res
+    }
+
+    /**
+     * Returns This[i,j]*v, where the rows of v are indexed by (m, a, m').
+     */
+    override fun multFromRight(i: Int, j: Int, v: SimpleMatrix): SimpleMatrix {
+        val c = v.numCols()
+        val m = mask.cols
+        val a = core.cols
+        val mPrev = mask.rows
+        val aPrev = core.rows
+        // m' x (m, a, c)
+        val MV = mask[j] * v.permuteModes(m * a, m, c, 1, intArrayOf(1, 3, 0, 2))
+        // a x (m, m', c)
+        MV.reshape(mPrev * m, a * c)
+        val T = MV.permuteModes(mPrev, m, a, c, intArrayOf(2, 1, 0, 3))
+        T.reshape(a, m * mPrev * c)
+        // m x (a, m', c)
+        val AT = core.multFromRight(i, j, T)
+        AT.reshape(aPrev * m, mPrev * c)
+        val U = AT.permuteModes(aPrev, m, mPrev, c, intArrayOf(1, 0, 2, 3))
+        U.reshape(m, aPrev * mPrev * c)
+        val res = mask[i] * U
+        res.reshape(mPrev * aPrev * mPrev, c)
+        return res
+    }
+
+    override fun multFromLeft(i: Int, j: Int, v: DMatrixSparseCSC): DMatrixSparseCSC =
+            multFromLeft(i, j, SimpleMatrix(ConvertDMatrixStruct.convert(v, null as DMatrixRMaj?))).toSparse()
+
+    override fun multFromRight(i: Int, j: Int, v: DMatrixSparseCSC): DMatrixSparseCSC =
+            multFromRight(i, j, SimpleMatrix(ConvertDMatrixStruct.convert(v, null as DMatrixRMaj?))).toSparse()
+
+    override fun toDenseCore(): CoreTensor {
+        val n = modeLength
+        val dense = core.toDenseCore()
+        val res = CoreTensor(n * n, rows, cols)
+        for (i in 0 until n)
+            for (j in 0 until n)
+                res[i * n + j] = mask[i].kron(dense[i * n + j]).kron(mask[j])
+        return res
+    }
+}
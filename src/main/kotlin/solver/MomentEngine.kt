@@ -0,0 +1,86 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import solver.solvers.AMEnOperator
+
+/**
+ * Solves A*x=b for the moment engine. The operator is the prepared form of A, which can be passed on to AMEnALSSolve
+ * and stays the same for all the systems with the same A.
+ */
+typealias MomentSolver = (A: TTSquareMatrix, b: TTVector, threshold: Double, warmStart: WarmStart?, operator: AMEnOperator) -> TTSolution
+
+/**
+ * Computes successive moments pi0 * (-Q)^-n * 1 of the time to absorption with the generator kept alive between them.
+ * The vectors pi0 * Q^-k and Q^-k * 1 of the left and right chains are stored, so computing the moments 1..n needs only
+ * n linear systems instead of n(n+1)/2, and every system after the first one of a chain is started from the solution
+ * and enrichment of the previous system of the same chain. The prepared operators of Q and its transpose (the
+ * unfoldings and nonzero patterns of their cores) are created once, and are reused by all the solves.
+ * The interfaces of AMEn-ALS are not carried between the systems: they are projections onto the current iterate, which
+ * every solve orthogonalizes again from the right before its first sweep, so each solve rebuilds them for its start.
+ */
+class MomentEngine(
+        val Q: TTSquareMatrix,
+        val pi0: TTVector,
+        val relativeThreshold: Double,
+        val solver: MomentSolver
+) {
+    private val QOperator by lazy { AMEnOperator(Q) }
+    private val QTOperator by lazy {
+        val QT = Q.T()
+        QT.tt.roundAbsolute(1e-16)
+        QT.tt.roundRelative(1e-16)
+        AMEnOperator(QT)
+    }
+    private val left = arrayListOf(TTSolution(pi0, 0.0))
+    private val right = arrayListOf(TTSolution(TTVector.ones(pi0.modes), 0.0))
+
+    /**
+     * The number of linear systems solved so far
+     */
+    val solvedSystems: Int
+        get() = left.size + right.size - 2
+
+    private fun extend(chain: ArrayList<TTSolution>, operator: AMEnOperator) {
+        val prev = chain.last()
+        val warmStart = if (chain.size > 1) WarmStart(prev.solution.copy(), prev.enrichment?.copy()) else null
+        chain.add(solver(operator.A, prev.solution, relativeThreshold * prev.solution.norm(), warmStart, operator))
+    }
+
+    /**
+     * Returns the nth moment, solving only the systems that were not needed for the previous moments. New systems are
+     * added to the chain whose last vector has the lower rank.
+     */
+    fun moment(n: Int): Double {
+        require(n >= 0) { "The order of the moment must be non-negative!" }
+        while (left.size + right.size - 2 < n) {
+            if ((left.last().solution.ttRanks().max() ?: 0) <= (right.last().solution.ttRanks().max() ?: 0))
+                extend(left, QTOperator)
+            else
+                extend(right, QOperator)
+        }
+        val a = minOf(left.size - 1, n)
+        return (if (n % 2 == 0) 1 else -1) * (left[a].solution * right[n - a].solution)
+    }
+
+    /**
+     * Returns the moments 1..n
+     */
+    fun moments(n: Int) = (1..n).map { moment(it) }
+}
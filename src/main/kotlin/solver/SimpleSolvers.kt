@@ -21,7 +21,11 @@ package solver
 import org.ejml.simple.SimpleMatrix
 import kotlin.math.sqrt
 
-data class SolverResult(val solution: SimpleMatrix, val residualNorm: Double)
+/**
+ * The solution of a small linear system with its residual norm, and the number of matrix-vector products used by an
+ * iterative solver.
+ */
+data class SolverResult(val solution: SimpleMatrix, val residualNorm: Double, val matVecs: Int = 0)
 
 fun ReGMRES(linearMap: (SimpleMatrix) -> SimpleMatrix, b: SimpleMatrix, m: Int,
             x0: SimpleMatrix = SimpleMatrix(b.numRows(), 1), threshold: Double, maxIters: Int = 200): SimpleMatrix {
@@ -60,6 +64,32 @@ fun biCGStab(linearMap: (SimpleMatrix) -> SimpleMatrix, b: SimpleMatrix, m: Int,
     return result
 }
 
+/**
+ * Solves min ||A*x - b|| with the conjugate gradient method on the normal equations (CGLS), which only needs products
+ * with A and its transpose, and converges for singular A as well. Stops when the residual of the normal equations
+ * ||A^T*(b - A*x)|| is below threshold, or after m iterations.
+ */
+fun CGLS(linearMap: (SimpleMatrix) -> SimpleMatrix, transposeMap: (SimpleMatrix) -> SimpleMatrix, b: SimpleMatrix,
+         m: Int, x0: SimpleMatrix, threshold: Double): SimpleMatrix {
+    var result = x0.copy()
+    var r = b - linearMap(x0)
+    var s = transposeMap(r)
+    var p = s
+    var gamma = s.scalarProduct(s)
+    for (j in 0 until m) {
+        if (sqrt(gamma) < threshold) break
+        val q = linearMap(p)
+        val alpha = gamma / q.scalarProduct(q)
+        result = result + alpha * p
+        r = r - alpha * q
+        s = transposeMap(r)
+        val gammaNext = s.scalarProduct(s)
+        p = s + (gammaNext / gamma) * p
+        gamma = gammaNext
+    }
+    return result
+}
+
 fun BiCGStabL(l: Int, linearMap: (SimpleMatrix) -> SimpleMatrix, b: SimpleMatrix, m: Int,
               x0: SimpleMatrix = SimpleMatrix(b.numRows(), 1), threshold: Double): SolverResult {
     //TODO: not working
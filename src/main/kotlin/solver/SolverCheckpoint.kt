@@ -0,0 +1,134 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+/**
+ * The state of a sweep-based solver after a finished sweep: the solution, the residual approximation of AMEn (if the
+ * solver has one), the index of the next sweep and the residual norms of the finished sweeps. The key identifies the
+ * linear system, see checkpointKey.
+ */
+class SolverCheckpoint(
+        val solver: String,
+        val key: DoubleArray,
+        val nextSweep: Int,
+        val x: TTVector,
+        val z: TTVector?,
+        val residuals: List<Double>
+)
+
+/**
+ * Returns the key of the system A*x=y for checkpointing, made of the fingerprint of the operator and the norm and the
+ * sum of the elements of the right hand side.
+ */
+fun checkpointKey(operatorFingerprint: DoubleArray, y: TTVector) =
+        operatorFingerprint + doubleArrayOf(y.norm(), y * TTVector.ones(y.modes))
+
+/**
+ * Writes the state of a solver to a directory after every interval-th sweep, and restores it when the same solver is
+ * started on the same system again. Every system has its own file, named after the solver and the hash of the key of
+ * the system, so in a sequence of solves (e.g. the systems of a moment chain) the finished ones do not overwrite the
+ * checkpoint of the interrupted one, and solves of different systems can run concurrently. The file of a system is
+ * deleted when its solve converges, so only unfinished solves are resumed. A file is replaced atomically, so a crash
+ * while writing leaves the previous checkpoint intact. As the interfaces are recomputed from the solution at the
+ * beginning of every sweep, resuming continues with the next sweep of the interrupted solve.
+ * @param resume whether to continue from an existing checkpoint
+ */
+class Checkpointer(val directory: File, val interval: Int = 1, val resume: Boolean = true) {
+    init {
+        require(interval > 0) { "The checkpoint interval must be positive!" }
+        directory.mkdirs()
+        require(directory.isDirectory) { "${directory.path} is not a directory!" }
+    }
+
+    private fun fileOf(solver: String, key: DoubleArray): File {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { out -> for (v in key) out.writeDouble(v) }
+        val hash = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray())
+                .take(8).joinToString("") { "%02x".format(it) }
+        return File(directory, "${solver.replace(Regex("[^A-Za-z0-9]"), "")}-$hash.ckpt")
+    }
+
+    /**
+     * Returns the stored state if resuming is enabled and there is a checkpoint of the same solver and system.
+     */
+    fun load(solver: String, key: DoubleArray, modes: Array<Int>): SolverCheckpoint? {
+        val file = fileOf(solver, key)
+        if (!resume || !file.exists()) return null
+        val checkpoint = try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { readSolverCheckpoint(it) }
+        } catch (e: IOException) {
+            return null
+        }
+        if (checkpoint.solver != solver || !checkpoint.key.contentEquals(key) || !checkpoint.x.modes.contentEquals(modes))
+            return null
+        return checkpoint
+    }
+
+    /**
+     * Writes the checkpoint if its sweep index is a multiple of the interval.
+     */
+    fun save(checkpoint: SolverCheckpoint) {
+        if (checkpoint.nextSweep % interval != 0) return
+        val file = fileOf(checkpoint.solver, checkpoint.key)
+        val tmp = File(file.path + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { checkpoint.writeTo(it) }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    /**
+     * Deletes the checkpoint of a converged solve.
+     */
+    fun remove(solver: String, key: DoubleArray) {
+        fileOf(solver, key).delete()
+    }
+}
+
+private const val CHECKPOINT_MAGIC = 0x54544350
+
+fun SolverCheckpoint.writeTo(out: DataOutput) {
+    out.writeInt(CHECKPOINT_MAGIC)
+    out.writeUTF(solver)
+    out.writeInt(key.size)
+    for (v in key) out.writeDouble(v)
+    out.writeInt(nextSweep)
+    out.writeInt(residuals.size)
+    for (v in residuals) out.writeDouble(v)
+    x.writeTo(out)
+    out.writeBoolean(z != null)
+    z?.writeTo(out)
+}
+
+/**
+ * Reads a checkpoint written by SolverCheckpoint.writeTo.
+ */
+fun readSolverCheckpoint(input: DataInput): SolverCheckpoint {
+    if (input.readInt() != CHECKPOINT_MAGIC) throw IOException("Not a solver checkpoint")
+    val solver = input.readUTF()
+    val key = DoubleArray(input.readInt()) { input.readDouble() }
+    val nextSweep = input.readInt()
+    val residuals = List(input.readInt()) { input.readDouble() }
+    val x = readTTVector(input)
+    val z = if (input.readBoolean()) readTTVector(input) else null
+    return SolverCheckpoint(solver, key, nextSweep, x, z, residuals)
+}
@@ -0,0 +1,120 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import java.io.Closeable
+import java.io.Writer
+
+/**
+ * Telemetry of a core update of a sweep-based solver. The time of the update is split into the interface contractions
+ * (including the ones of the orthogonalization sweep), the local solve and the truncation with the enrichment.
+ * localIterations is the number of matrix-vector products of an iterative local solver, and 0 for direct solves.
+ */
+data class CoreEvent(
+        val solver: String,
+        val sweep: Int,
+        val core: Int,
+        val rank: Int,
+        val localSize: Int,
+        val localIterations: Int,
+        val interfaceTimeMs: Double,
+        val solveTimeMs: Double,
+        val truncationTimeMs: Double
+) {
+    val timeMs: Double
+        get() = interfaceTimeMs + solveTimeMs + truncationTimeMs
+}
+
+/**
+ * Telemetry of a sweep or outer iteration of a solver. If approximate is true, the residual norm is the estimate
+ * used by the solver instead of a computed one.
+ */
+data class SweepEvent(
+        val solver: String,
+        val sweep: Int,
+        val residual: Double,
+        val approximate: Boolean,
+        val ranks: List<Int>,
+        val timeMs: Double
+)
+
+/**
+ * Receives the progress of the TT solvers. The events are only assembled if a listener is passed to the solver, so the
+ * rank profiles and timings cost nothing otherwise.
+ */
+interface SolverListener {
+    fun onCore(event: CoreEvent) {}
+    fun onSweep(event: SweepEvent) {}
+}
+
+internal fun elapsedMs(startNanos: Long) = (System.nanoTime() - startNanos) / 1e6
+
+/**
+ * Writes the events as CSV lines with a common header, leaving the fields of the other event kind empty. The rank
+ * profile is written with ';' separators.
+ */
+class CsvSolverListener(private val writer: Writer) : SolverListener, Closeable {
+    init {
+        writer.write("kind,solver,sweep,core,rank,localSize,localIterations,interfaceMs,solveMs,truncationMs,residual,approximate,ranks,timeMs\n")
+    }
+
+    @Synchronized
+    override fun onCore(event: CoreEvent) {
+        with(event) {
+            writer.write("core,$solver,$sweep,$core,$rank,$localSize,$localIterations,$interfaceTimeMs,$solveTimeMs,$truncationTimeMs,,,,$timeMs\n")
+        }
+    }
+
+    @Synchronized
+    override fun onSweep(event: SweepEvent) {
+        with(event) {
+            writer.write("sweep,$solver,$sweep,,,,,,,,$residual,$approximate,${ranks.joinToString(";")},$timeMs\n")
+            writer.flush()
+        }
+    }
+
+    override fun close() = writer.close()
+}
+
+/**
+ * Writes every event as a JSON object on its own line.
+ */
+class JsonLinesSolverListener(private val writer: Writer) : SolverListener, Closeable {
+    private fun number(value: Double) = if (value.isFinite()) value.toString() else "null"
+
+    @Synchronized
+    override fun onCore(event: CoreEvent) {
+        with(event) {
+            writer.write("{\"kind\":\"core\",\"solver\":\"$solver\",\"sweep\":$sweep,\"core\":$core,\"rank\":$rank," +
+                    "\"localSize\":$localSize,\"localIterations\":$localIterations,\"interfaceMs\":${number(interfaceTimeMs)}," +
+                    "\"solveMs\":${number(solveTimeMs)},\"truncationMs\":${number(truncationTimeMs)},\"timeMs\":${number(timeMs)}}\n")
+        }
+    }
+
+    @Synchronized
+    override fun onSweep(event: SweepEvent) {
+        with(event) {
+            writer.write("{\"kind\":\"sweep\",\"solver\":\"$solver\",\"sweep\":$sweep,\"residual\":${number(residual)}," +
+                    "\"approximate\":$approximate,\"ranks\":[${ranks.joinToString(",")}],\"timeMs\":${number(timeMs)}}\n")
+            writer.flush()
+        }
+    }
+
+    override fun close() = writer.close()
+}
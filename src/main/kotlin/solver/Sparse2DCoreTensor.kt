@@ -34,9 +34,23 @@ class Sparse2DCoreTensor(
         cols: Int,
         private val data: Array<Array<DMatrixSparseCSC>> = Array(modeLength) { Array(modeLength) { DMatrixSparseCSC(rows, cols) } }
 ): Abstract2DCoreTensor(modeLength, rows, cols) {
+    private var pattern: Array<IntArray>? = null
+
     operator fun get(i: Int, j: Int) = data[i][j]
 
-    operator fun set(i: Int, j: Int, value: DMatrixSparseCSC) { data[i][j] = value }
+    operator fun set(i: Int, j: Int, value: DMatrixSparseCSC) {
+        data[i][j] = value
+        pattern = null
+    }
+
+    /**
+     * Returns the (i,j) pairs with at least one stored element. The pattern is computed at the first call, so the
+     * matrices of the core should not be modified in place after the core is passed to a solver.
+     */
+    override fun nonzeroPattern(): Array<IntArray> =
+            pattern ?: Array(modeLength) { i ->
+                (0 until modeLength).filter { j -> data[i][j].nz_length > 0 }.toIntArray()
+            }.also { pattern = it }
 
     /**
      * Returns v*This[i,j]
@@ -20,9 +20,12 @@ package solver
 
 import org.ejml.data.SingularMatrixException
 import org.ejml.simple.SimpleMatrix
+import solver.solvers.AMEnALSSolve
+import solver.solvers.AMEnOperator
 import java.util.*
 import kotlin.math.abs
 import kotlin.math.max
+import kotlin.math.min
 import kotlin.math.sqrt
 
 //TODO: do something with vectors with elements with different signs
@@ -63,27 +66,47 @@ fun jacobiPreconditioner(A: TTSquareMatrix, zeroMaskVector: TTVector): TTSquareM
     return TTSquareMatrix.diag(inv)
 }
 
-fun TTJacobi(A: TTSquareMatrix, b: TTVector, thresh: Double, roundingAccuracy: Double, zeroMaskVector: TTVector = TTVector.ones(A.modes), log: Boolean = false): TTSolution {
+/**
+ * Jacobi iteration in the TT format. The iterate is rounded to roundingAccuracy and to at most maxRank in every
+ * iteration, and the iteration stops after maxIter iterations even if the residual norm is above thresh.
+ */
+fun TTJacobi(
+        A: TTSquareMatrix,
+        b: TTVector,
+        thresh: Double,
+        roundingAccuracy: Double,
+        zeroMaskVector: TTVector = TTVector.ones(A.modes),
+        log: Boolean = false,
+        residualNorm: ResidualNormFunction = ::computeResidualNorm,
+        listener: SolverListener? = null,
+        maxIter: Int = Int.MAX_VALUE,
+        maxRank: Int = Int.MAX_VALUE
+): TTSolution {
     for ((idx, mode) in A.modes.withIndex()) {
         require(mode == b.modes[idx]) { "The modes of A and b must be identical!" }
     }
+    require(maxIter > 0) { "The maximal number of iterations must be positive!" }
+    require(maxRank > 0) { "The maximal rank must be positive!" }
     val D = A.diagVect()
     val Dinv = TTSquareMatrix.diag(
             NSInvertVect(D, thresh * D.norm(), thresh / 10, zeroMaskVector)
     )
     val R = A - A.diag()
     var x = TTVector.zeros(A.modes)
-    var residual: TTVector
+    var resNorm: Double
+    var truncationError: Double
     var i = 0
     do {
+        val iterStart = System.nanoTime()
         x = Dinv * (b - R * x)
         x.tt.roundAbsolute(0.0)
-        x.tt.roundRelative(roundingAccuracy)
-        residual = b - A * x
-        if (log) println("Jacobi iter $i: resnorm=${residual.norm()} maxrank=${x.ttRanks().max()}")
+        truncationError = x.tt.roundRelative(roundingAccuracy, maxRank = maxRank)
+        resNorm = residualNorm(A, x, b)
+        listener?.onSweep(SweepEvent("Jacobi", i, resNorm, false, x.ttRanks(), elapsedMs(iterStart)))
+        if (log) println("Jacobi iter $i: resnorm=$resNorm maxrank=${x.ttRanks().max()}${if (maxRank < Int.MAX_VALUE) " truncation error=$truncationError" else ""}")
         i++
-    } while (residual.norm() > thresh)
-    return TTSolution(x, residual.norm())
+    } while (resNorm > thresh && i < maxIter)
+    return TTSolution(x, resNorm, truncationError = truncationError)
 }
 
 fun TTReGMRES(
@@ -95,9 +118,14 @@ fun TTReGMRES(
         maxInnerIter: Int = 5,
         maxOuterIter: Int = 100,
         verbose: Boolean = false,
-        approxSpectralRadius: Double = 1.0): TTSolution =
+        approxSpectralRadius: Double = 1.0,
+        residualNorm: ResidualNormFunction? = null,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE): TTSolution =
         TTReGMRES(if (preconditioner == null) { v: TTVector -> A * v } else { v: TTVector -> preconditioner * (A * v) },
-                b, x0, relativeResThresold, maxInnerIter, maxOuterIter, verbose, approxSpectralRadius)
+                if (preconditioner == null) b else preconditioner * b, x0, relativeResThresold, maxInnerIter, maxOuterIter, verbose, approxSpectralRadius,
+                residualNorm = residualNorm?.let { norm -> { v: TTVector -> norm(A, v, b) } }, listener = listener,
+                maxRank = maxRank)
 
 fun TTReGMRES(
         linearMap: (TTVector) -> TTVector,
@@ -108,23 +136,30 @@ fun TTReGMRES(
         maxOuterIter: Int = 100,
         verbose: Boolean = false,
         approxSpectralRadius: Double = 1.0,
-        normalize: Boolean = false
+        normalize: Boolean = false,
+        residualNorm: ((TTVector) -> Double)? = null,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE
 ): TTSolution {
     val residualThreshold = b.norm() * relativeResThresold
     var x = x0.copy()
     val ones = TTVector.ones(x.modes)
+    var truncationError = 0.0
     for (i in 0 until maxOuterIter) {
-        val solution = TTGMRES(linearMap, b, x, relativeResThresold, maxInnerIter, verbose)
+        val iterStart = System.nanoTime()
+        val solution = TTGMRES(linearMap, b, x, relativeResThresold, maxInnerIter, verbose, maxRank)
         x = solution.solution
+        truncationError = solution.truncationError
+        listener?.onSweep(SweepEvent("TTReGMRES", i, solution.resNorm, true, x.ttRanks(), elapsedMs(iterStart)))
         if (solution.resNorm < residualThreshold) break
-        x.tt.roundRelative(relativeResThresold / approxSpectralRadius)
+        truncationError = x.tt.roundRelative(relativeResThresold / approxSpectralRadius, maxRank = maxRank)
 //        val realResNorm = (linearMap * x - b).norm()
         if (verbose) println("TTReGMRES iter $i: resnorm=${solution.resNorm} maxrank=${x.ttRanks().max()}")
 //        if(solution.resNorm < residualThreshold && (linearMap * x - b).norm() < residualThreshold) break
         if (normalize) x.divAssign((x * ones))
     }
     x.tt.roundAbsolute(1e-16)
-    return TTSolution(x, (linearMap(x) - b).norm())
+    return TTSolution(x, residualNorm?.invoke(x) ?: (linearMap(x) - b).norm(), truncationError = truncationError)
 }
 
 fun TTGMRES(
@@ -136,90 +171,359 @@ fun TTGMRES(
 fun TTGMRES(
         A: TTSquareMatrix, b: TTVector, x0: TTVector,
         eps: Double, maxIter: Int = 100,
-        verbose: Boolean = false
-): TTSolution = TTGMRES(A::times, b, x0, eps, maxIter, verbose)
+        verbose: Boolean = false,
+        maxRank: Int = Int.MAX_VALUE
+): TTSolution = TTGMRES(A::times, b, x0, eps, maxIter, verbose, maxRank)
 
+/**
+ * TT-GMRES. With a finite maxRank, the basis vectors and the partial sums of the solution are rounded to at most this
+ * rank, and the truncation error of the solution is reported.
+ */
 fun TTGMRES(
         linearMap: (TTVector) -> TTVector,
         b: TTVector, x0: TTVector,
-        eps: Double, maxIter: Int = 100, verbose: Boolean = false): TTSolution {
+        eps: Double, maxIter: Int = 100, verbose: Boolean = false,
+        maxRank: Int = Int.MAX_VALUE): TTSolution {
     // Reference for the algorithm:
     // S. V. DOLGOV - TT-GMRES: on solution to a linear system in the structured tensor format
     val res0 = b - linearMap(x0)
     res0.tt.roundRelative(0.0)
-    val R = arrayListOf(res0.norm())
-    val beta = R[0]
-    val V = arrayListOf(res0 / beta)
-    val h = hashMapOf<Pair<Int, Int>, Double>() //TODO: vmi értelmesebb ehelyett
-    lateinit var y: SimpleMatrix
-    var r = 0.0
-    var x = x0.copy()
+    val beta = res0.norm()
+    val bNorm = b.norm()
+    res0.divAssign(beta)
+    val V = arrayListOf(res0)
+    val H = IncrementalHessenberg(maxIter, beta)
+    var r = beta
     for (j in 1..maxIter) {
-        val delta = eps / R[j - 1]
-        var w = linearMap(V[j - 1])
-        w.tt.roundAbsolute(0.0)
-        w.tt.roundRelative(delta)
-        for (i in 0 until j) {
-            val t = w * V[i]
-            h[Pair(i, j - 1)] = t
-            w = w - V[i] * t
-        }
-        w.tt.roundAbsolute(0.0)
-        w.tt.roundRelative(delta)
-        val norm = w.norm()
-        h[Pair(j, j - 1)] = norm
-        V.add(w / norm)
-        val H = SimpleMatrix(j + 1, j)
-        H.fill { i, k -> h.getOrDefault(Pair(i, k), 0.0) } //TODO: wastes time, the data should instantly be written into the H matrix instead of the dictionary
-
-        val solv = solveWithRots(H, beta) //TODO: use solution from prev
-        r = solv.resNorm
-        y = solv.solution
-
-        R.add(r)
-        val relResNorm = r / b.norm()
+        val delta = eps / r
+        val w = linearMap(V[j - 1])
+        r = arnoldiStep(w, V, H, delta, maxRank)
+        val relResNorm = r / bNorm
         if (relResNorm < eps) {
             if (verbose) println("approximate relative residual norm: $relResNorm (required: <$eps)")
             break
         }
     }
+    val (x, truncationError) = combineBasis(x0, H.solve(), V, maxRank)
+    return TTSolution(x, r, truncationError = truncationError)
+}
+
+/**
+ * Returns x0 + sum_i y_i*basis_i and the sum of the norms of the truncation errors. With a finite maxRank, every partial
+ * sum is rounded to at most this rank, so the ranks stay bounded while the solution is assembled.
+ */
+private fun combineBasis(x0: TTVector, y: SimpleMatrix, basis: List<TTVector>, maxRank: Int): Pair<TTVector, Double> {
+    var x = x0.copy()
+    var truncationError = 0.0
     for (i in 0 until y.numElements) {
-        x = x + y[i] * V[i]
+        x = x + y[i] * basis[i]
+        if (maxRank < Int.MAX_VALUE) truncationError += x.tt.roundAbsolute(0.0, maxRank = maxRank)
     }
-    return TTSolution(x, r)
+    return Pair(x, truncationError)
 }
 
-data class TTSolution(val solution: TTVector, val resNorm: Double)
+/**
+ * Flexible TT-GMRES, where the preconditioner can change in every iteration, e.g. it can be an inexact solver like a
+ * few sweeps of ALS. The preconditioned basis vectors are stored besides the Krylov basis, and the solution is
+ * assembled from them. With a finite maxRank, the basis vectors, the preconditioned ones and the solution are rounded to
+ * at most this rank, like in TTGMRES.
+ * @param preconditioner Returns the preconditioned vector M_j(v) for the iteration index j and the basis vector v
+ */
+fun TTFGMRES(
+        linearMap: (TTVector) -> TTVector,
+        preconditioner: (Int, TTVector) -> TTVector,
+        b: TTVector, x0: TTVector,
+        eps: Double, maxIter: Int = 100, verbose: Boolean = false,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE): TTSolution {
+    val res0 = b - linearMap(x0)
+    res0.tt.roundRelative(0.0)
+    val beta = res0.norm()
+    val bNorm = b.norm()
+    res0.divAssign(beta)
+    val V = arrayListOf(res0)
+    val Z = arrayListOf<TTVector>()
+    val H = IncrementalHessenberg(maxIter, beta)
+    var r = beta
+    for (j in 1..maxIter) {
+        val iterStart = System.nanoTime()
+        val delta = eps / r
+        val z = preconditioner(j - 1, V[j - 1])
+        z.tt.roundAbsolute(0.0)
+        z.tt.roundRelative(delta, maxRank = maxRank)
+        Z.add(z)
+        r = arnoldiStep(linearMap(z), V, H, delta, maxRank)
+        val relResNorm = r / bNorm
+        listener?.onSweep(SweepEvent("TTFGMRES", j, r, true, z.ttRanks(), elapsedMs(iterStart)))
+        if (verbose) println("TTFGMRES iter $j: approximate relative residual norm: $relResNorm maxrank=${z.ttRanks().max()}")
+        if (relResNorm < eps) break
+    }
+    val (x, truncationError) = combineBasis(x0, H.solve(), Z, maxRank)
+    return TTSolution(x, r, truncationError = truncationError)
+}
+
+/**
+ * Returns a preconditioner for TTFGMRES that approximately solves A*z = v with ALS sweeps, starting from v. As ALS keeps
+ * the ranks of its initial guess, the ranks of z are capped by rounding the copy of v to at most maxRank.
+ */
+fun alsPreconditioner(A: TTSquareMatrix, relativeThreshold: Double, maxSweeps: Int = 0,
+                      maxRank: Int = Int.MAX_VALUE): (Int, TTVector) -> TTVector =
+        { _, v ->
+            val z0 = v.copy()
+            if (maxRank < Int.MAX_VALUE) z0.tt.roundAbsolute(0.0, maxRank = maxRank)
+            ALSSolve(A, v, z0, relativeThreshold * v.norm(), maxSweeps).solution
+        }
+
+/**
+ * Rounds the TT vector in place to the given relative accuracy and to at most maxRank, and returns it.
+ */
+private fun TTVector.rounded(accuracy: Double, maxRank: Int = Int.MAX_VALUE): TTVector {
+    tt.roundAbsolute(0.0)
+    tt.roundRelative(accuracy, maxRank = maxRank)
+    return this
+}
+
+/**
+ * BiCGStab in TT format. Every vector of the recurrences is rounded to roundingAccuracy and to at most maxRank, so the
+ * memory is independent of the number of iterations. The returned residual norm is computed from the solution, as the
+ * rounded recurrences do not keep the updated residual exact.
+ * @param eps Required relative residual norm
+ */
+fun TTBiCGStab(
+        linearMap: (TTVector) -> TTVector,
+        b: TTVector, x0: TTVector,
+        eps: Double, maxIter: Int = 100,
+        roundingAccuracy: Double = eps / 10,
+        verbose: Boolean = false,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE
+): TTSolution {
+    val threshold = eps * b.norm()
+    var x = x0.copy()
+    var r = (b - linearMap(x0)).rounded(roundingAccuracy, maxRank)
+    val rHat = r.copy()
+    var rho = 1.0
+    var alpha = 1.0
+    var omega = 1.0
+    var v = TTVector.zeros(b.modes)
+    var p = TTVector.zeros(b.modes)
+    for (i in 0 until maxIter) {
+        val iterStart = System.nanoTime()
+        val rhoNew = rHat * r
+        val beta = (rhoNew / rho) * (alpha / omega)
+        rho = rhoNew
+        p = (r + (p - v * omega) * beta).rounded(roundingAccuracy, maxRank)
+        v = linearMap(p).rounded(roundingAccuracy, maxRank)
+        alpha = rho / (rHat * v)
+        val s = (r - v * alpha).rounded(roundingAccuracy, maxRank)
+        val sNorm = s.norm()
+        if (sNorm < threshold) {
+            x = (x + p * alpha).rounded(roundingAccuracy, maxRank)
+            listener?.onSweep(SweepEvent("TTBiCGStab", i, sNorm, true, x.ttRanks(), elapsedMs(iterStart)))
+            break
+        }
+        val t = linearMap(s).rounded(roundingAccuracy, maxRank)
+        omega = (t * s) / (t * t)
+        x = (x + p * alpha + s * omega).rounded(roundingAccuracy, maxRank)
+        r = (s - t * omega).rounded(roundingAccuracy, maxRank)
+        val resNorm = r.norm()
+        listener?.onSweep(SweepEvent("TTBiCGStab", i, resNorm, true, x.ttRanks(), elapsedMs(iterStart)))
+        if (verbose) println("TTBiCGStab iter $i: resnorm~=$resNorm maxrank=${x.ttRanks().max()}")
+        if (resNorm < threshold) break
+    }
+    return TTSolution(x, (b - linearMap(x)).norm())
+}
+
+/**
+ * Conjugate gradient squared method in TT format, with the same rounding of the recurrences as TTBiCGStab.
+ * @param eps Required relative residual norm
+ */
+fun TTCGS(
+        linearMap: (TTVector) -> TTVector,
+        b: TTVector, x0: TTVector,
+        eps: Double, maxIter: Int = 100,
+        roundingAccuracy: Double = eps / 10,
+        verbose: Boolean = false,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE
+): TTSolution {
+    val threshold = eps * b.norm()
+    var x = x0.copy()
+    var r = (b - linearMap(x0)).rounded(roundingAccuracy, maxRank)
+    val rHat = r.copy()
+    var rho = rHat * r
+    var u = r.copy()
+    var p = r.copy()
+    for (i in 0 until maxIter) {
+        val iterStart = System.nanoTime()
+        val Ap = linearMap(p).rounded(roundingAccuracy, maxRank)
+        val alpha = rho / (rHat * Ap)
+        val q = (u - Ap * alpha).rounded(roundingAccuracy, maxRank)
+        val update = ((u + q) * alpha).rounded(roundingAccuracy, maxRank)
+        x = (x + update).rounded(roundingAccuracy, maxRank)
+        r = (r - linearMap(update)).rounded(roundingAccuracy, maxRank)
+        val resNorm = r.norm()
+        listener?.onSweep(SweepEvent("TTCGS", i, resNorm, true, x.ttRanks(), elapsedMs(iterStart)))
+        if (verbose) println("TTCGS iter $i: resnorm~=$resNorm maxrank=${x.ttRanks().max()}")
+        if (resNorm < threshold) break
+        val rhoNew = rHat * r
+        val beta = rhoNew / rho
+        rho = rhoNew
+        u = (r + q * beta).rounded(roundingAccuracy, maxRank)
+        p = (u + (q + p * beta) * beta).rounded(roundingAccuracy, maxRank)
+    }
+    return TTSolution(x, (b - linearMap(x)).norm())
+}
+
+/**
+ * Transpose-free QMR in TT format, with the same rounding of the recurrences as TTBiCGStab. The iteration stops when
+ * the QMR upper bound of the residual norm gets below the threshold.
+ * @param eps Required relative residual norm
+ */
+fun TTTFQMR(
+        linearMap: (TTVector) -> TTVector,
+        b: TTVector, x0: TTVector,
+        eps: Double, maxIter: Int = 100,
+        roundingAccuracy: Double = eps / 10,
+        verbose: Boolean = false,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE
+): TTSolution {
+    // Reference for the algorithm:
+    // Y. SAAD - Iterative Methods for Sparse Linear Systems, Algorithm 7.8
+    val threshold = eps * b.norm()
+    var x = x0.copy()
+    val r0 = (b - linearMap(x0)).rounded(roundingAccuracy, maxRank)
+    val rHat = r0.copy()
+    var w = r0.copy()
+    var y1 = r0.copy()
+    var u1 = linearMap(y1).rounded(roundingAccuracy, maxRank)
+    var v = u1.copy()
+    var d = TTVector.zeros(b.modes)
+    var theta = 0.0
+    var eta = 0.0
+    var tau = r0.norm()
+    var rho = rHat * r0
+    var halfSteps = 0
+    mainLoop@ for (i in 0 until maxIter) {
+        val iterStart = System.nanoTime()
+        val alpha = rho / (rHat * v)
+        val y2 = (y1 - v * alpha).rounded(roundingAccuracy, maxRank)
+        val u2 = linearMap(y2).rounded(roundingAccuracy, maxRank)
+        for ((y, u) in arrayOf(y1 to u1, y2 to u2)) {
+            w = (w - u * alpha).rounded(roundingAccuracy, maxRank)
+            d = (y + d * (theta * theta * eta / alpha)).rounded(roundingAccuracy, maxRank)
+            theta = w.norm() / tau
+            val c = 1.0 / sqrt(1.0 + theta * theta)
+            tau *= theta * c
+            eta = c * c * alpha
+            x = (x + d * eta).rounded(roundingAccuracy, maxRank)
+            halfSteps++
+            if (tau * sqrt(halfSteps + 1.0) < threshold) {
+                listener?.onSweep(SweepEvent("TTTFQMR", i, tau * sqrt(halfSteps + 1.0), true, x.ttRanks(), elapsedMs(iterStart)))
+                break@mainLoop
+            }
+        }
+        listener?.onSweep(SweepEvent("TTTFQMR", i, tau * sqrt(halfSteps + 1.0), true, x.ttRanks(), elapsedMs(iterStart)))
+        if (verbose) println("TTTFQMR iter $i: resnorm<=${tau * sqrt(halfSteps + 1.0)} maxrank=${x.ttRanks().max()}")
+        val rhoNew = rHat * w
+        val beta = rhoNew / rho
+        rho = rhoNew
+        y1 = (w + y2 * beta).rounded(roundingAccuracy, maxRank)
+        u1 = linearMap(y1).rounded(roundingAccuracy, maxRank)
+        v = (u1 + (u2 + v * beta) * beta).rounded(roundingAccuracy, maxRank)
+    }
+    return TTSolution(x, (b - linearMap(x)).norm())
+}
+
+/**
+ * Orthogonalizes w = A*V[j-1] against the basis with modified Gram-Schmidt and rounding to the accuracy delta (and
+ * to at most maxRank), adds
+ * the resulting column to the Hessenberg matrix, and appends the normalized vector to the basis unless the iteration
+ * converged. Returns the residual norm of the least squares problem.
+ */
+private fun arnoldiStep(w0: TTVector, V: ArrayList<TTVector>, H: IncrementalHessenberg, delta: Double,
+                        maxRank: Int = Int.MAX_VALUE): Double {
+    var w = w0
+    w.tt.roundAbsolute(0.0)
+    w.tt.roundRelative(delta, maxRank = maxRank)
+    val h = DoubleArray(V.size + 1)
+    for ((i, v) in V.withIndex()) {
+        h[i] = w * v
+        w = w - v * h[i]
+    }
+    w.tt.roundAbsolute(0.0)
+    w.tt.roundRelative(delta, maxRank = maxRank)
+    val norm = w.norm()
+    h[V.size] = norm
+    val r = H.addColumn(h)
+    if (norm != 0.0 && V.size < H.maxIter) {
+        w.divAssign(norm)
+        V.add(w)
+    }
+    return r
+}
+
+/**
+ * The solution of a linear system with its residual norm, and the residual approximation of AMEn that can be used for
+ * starting the enrichment of a later solution. The truncation error is the norm of the singular values dropped by the
+ * truncations of the last sweep (or by the last rounding of the solution), including the ones dropped because of a
+ * rank cap.
+ */
+data class TTSolution(
+        val solution: TTVector,
+        val resNorm: Double,
+        val enrichment: TTVector? = null,
+        val truncationError: Double = 0.0
+)
 data class MatSolution(val solution: SimpleMatrix, val resNorm: Double)
 
-private fun solveWithRots(H: SimpleMatrix, beta: Double): MatSolution {
-    val g = SimpleMatrix(H.numRows(), 1)
-    g[0] = beta
-    for (i in 0 until H.numCols()) {
-        val rowNext = H[i + 1, i]
-        val rowCurr = H[i, i]
-        val denom = sqrt(rowCurr * rowCurr + rowNext * rowNext)
-        val s = rowNext / denom
-        val c = rowCurr / denom
-        val r1 = H.row(i)
-        val r2 = H.row(i + 1)
-        H[i, 0] = c * r1 + s * r2
-        H[i + 1, 0] = c * r2 - s * r1
-        val g1 = g[i]
-        val g2 = g[i + 1]
-        g[i] = c * g1 + s * g2
-        g[i + 1] = c * g2 - s * g1
-    }
-    val residualNorm = abs(g[g.numElements - 1])
-    val H1 = H[0..H.numRows() - 1, 0..H.numCols()]
-    val y = g[0..g.numElements - 1, 0..1]
-    for (i in y.numElements - 1 downTo 0) {
-        for (j in y.numElements - 1 downTo i + 1) {
-            y[i] -= H1[i, j] * y[j]
+/**
+ * Upper Hessenberg matrix of GMRES reduced to triangular form by Givens rotations applied as the columns are added, so
+ * the residual norm of the least squares problem is available after each iteration.
+ */
+private class IncrementalHessenberg(val maxIter: Int, beta: Double) {
+    private val R = SimpleMatrix(maxIter + 1, maxIter)
+    private val g = SimpleMatrix(maxIter + 1, 1).apply { set(0, beta) }
+    private val cs = DoubleArray(maxIter)
+    private val sn = DoubleArray(maxIter)
+    var numCols = 0
+        private set
+
+    /**
+     * Adds the next column h (of length numCols+2) and returns the new residual norm.
+     */
+    fun addColumn(h: DoubleArray): Double {
+        val j = numCols
+        for (i in 0 until j) {
+            val hi = cs[i] * h[i] + sn[i] * h[i + 1]
+            h[i + 1] = cs[i] * h[i + 1] - sn[i] * h[i]
+            h[i] = hi
+        }
+        val denom = sqrt(h[j] * h[j] + h[j + 1] * h[j + 1])
+        cs[j] = if (denom == 0.0) 1.0 else h[j] / denom
+        sn[j] = if (denom == 0.0) 0.0 else h[j + 1] / denom
+        for (i in 0..j) R[i, j] = h[i]
+        R[j, j] = denom
+        g[j + 1] = -sn[j] * g[j]
+        g[j] = cs[j] * g[j]
+        numCols++
+        return abs(g[j + 1])
+    }
+
+    /**
+     * Solves the triangular system of the columns added so far.
+     */
+    fun solve(): SimpleMatrix {
+        val y = g[0..numCols, 0..1]
+        for (i in numCols - 1 downTo 0) {
+            for (k in numCols - 1 downTo i + 1) {
+                y[i] -= R[i, k] * y[k]
+            }
+            y[i] /= R[i, i]
         }
-        y[i] /= H1[i, i]
+        return y
     }
-    return MatSolution(y, residualNorm)
 }
 
 fun ALSSolve(
@@ -242,7 +546,9 @@ fun ALSSolve(
         residualThreshold: Double,
         maxSweeps: Int,
         maxLocalIters: Int = 200,
-        normalize: Boolean = false
+        normalize: Boolean = false,
+        residualNorm: ResidualNormFunction = ::computeResidualNorm,
+        listener: SolverListener? = null
 ): TTSolution {
     // Reference for the algorithm:
     // I. V. OSELEDETS AND S. V. DOLGOV - Solution of Linear Systems and Matrix Inversion in the TT-Format
@@ -260,8 +566,9 @@ fun ALSSolve(
     psiCache[0] = Array(1) { Array(1) { mat[r[1]] } }
     val phiCache = Array<Array<Array<SimpleMatrix>>?>(x.modes.size) { null }
     phiCache[phiCache.size - 1] = Array(1) { Array(1) { mat[r[1]] } }
-    var resNorm = (A * x - f).norm()
+    var resNorm = residualNorm(A, x, f)
     for (sweep in 0..maxSweeps) {
+        val sweepStart = System.nanoTime()
         for ((k, forward) in sweepRange) {
 
             applyALSStep(A, x, f, k, psiCache, phiCache, residualThreshold, maxLocalIters, normalize)
@@ -274,12 +581,17 @@ fun ALSSolve(
 
         }
 
-        resNorm = (f - A * x).norm()
+        resNorm = residualNorm(A, x, f)
+        listener?.onSweep(SweepEvent("ALS", sweep, resNorm, false, x.ttRanks(), elapsedMs(sweepStart)))
         if (resNorm <= residualThreshold) break
     }
     return TTSolution(x, resNorm)
 }
 
+/**
+ * Updates the kth core of x by solving the local system, and returns the norm of the local residual of the core before
+ * the update.
+ */
 private fun applyALSStep(
         A: TTSquareMatrix,
         x: TTVector,
@@ -290,7 +602,7 @@ private fun applyALSStep(
         residualThreshold: Double,
         maxLocalIters: Int = 200,
         normalize: Boolean = false
-) {
+): Double {
     val currCore = x.tt.cores[k]
     //TODO: parallel computation of elements
 
@@ -387,6 +699,18 @@ private fun applyALSStep(
     }
     //endregion
 
+    val w0 = F.createLike()
+    for (i in 0 until currCore.modeLength) {
+        val M = currCore[i]
+        for (row in 0 until M.numRows()) {
+            for (col in 0 until M.numCols()) {
+                w0[i * M.numRows() * M.numCols() + row * M.numCols() + col] = M[row, col]
+            }
+        }
+    }
+    val localOperator = createLocalOperator(psi, phi, A, k)
+    val localResidual = (localOperator(w0) - F).normF()
+
 //    val solveDirectly =true // currCore.modeLength * currCore.modeLength * currCore.cols * currCore.rows < 100
     val solveDirectly = currCore.modeLength * currCore.modeLength * currCore.cols * currCore.rows < 100
     val ACore = A.tt.cores[k]
@@ -449,16 +773,6 @@ private fun applyALSStep(
             }
         }
     } else {
-        val w0 = F.createLike()
-        for (i in 0 until currCore.modeLength) {
-            val M = currCore[i]
-            for (row in 0 until M.numRows()) {
-                for (col in 0 until M.numCols()) {
-                    w0[i * M.numRows() * M.numCols() + row * M.numCols() + col] = M[row, col]
-                }
-            }
-        }
-
         if (normalize) {
             var normalizerLeft = ones(1)
             // TODO: cache
@@ -482,9 +796,9 @@ private fun applyALSStep(
             }
             // TODO: check middle kron
             val normalizer = normalizerLeft.kron(ones(F.numElements / normalizerLeft.numElements / normalizerRight.numElements).T()).kron(normalizerRight.T())
-            w = ALSLocalIterSolve(psi, phi, A, w0, F, k, residualThreshold * 0.001, maxLocalIters = maxLocalIters, normalizerVector = normalizer)
+            w = ALSLocalIterSolve(localOperator, w0, F, residualThreshold * 0.001, maxLocalIters = maxLocalIters, normalizerVector = normalizer)
         } else {
-            w = ALSLocalIterSolve(psi, phi, A, w0, F, k, residualThreshold * 0.001, maxLocalIters = maxLocalIters)
+            w = ALSLocalIterSolve(localOperator, w0, F, residualThreshold * 0.001, maxLocalIters = maxLocalIters)
         }
     }
     for (i in 0 until currCore.modeLength) {
@@ -494,20 +808,98 @@ private fun applyALSStep(
             }
         }
     }
+    return localResidual
 }
 
-private fun ALSLocalIterSolve(
+/**
+ * Contracts a mode slice of Y'' (R_{k-1} x (beta, gamma_minus)) with the left interface matrix, giving the
+ * r_{k-1} x r_k slice of the result that belongs to its output mode index.
+ */
+internal fun projectedSlice(YDoublePrimeI: SimpleMatrix, psiMat: SimpleMatrix): SimpleMatrix {
+    val R_kminus = YDoublePrimeI.numRows()
+    val r_kminusy = psiMat.numCols() / R_kminus
+    val r_kx = YDoublePrimeI.numCols() / r_kminusy
+    // (gamma_minus, idx) x beta
+    val YDoublePrimeIReshaped = YDoublePrimeI.permuteModes(R_kminus, 1, r_kx, r_kminusy, intArrayOf(3, 0, 2, 1))
+    return psiMat * YDoublePrimeIReshaped
+}
+
+/**
+ * Computes the slices of the projected local matvec and writes them to res, which is indexed like F. The work is split
+ * over blocks (ik, a) of the output mode index and the rank index of A, so that a core with few mode indices still
+ * uses every thread: slice(ik, a) returns the rows a of the ik-th slice of Y'', and the contributions of the blocks of
+ * a slice are summed afterwards.
+ */
+internal fun projectSlicesByRank(
+        n_k: Int,
+        R_kminus: Int,
+        psiMat: SimpleMatrix,
+        res: SimpleMatrix,
+        work: Long,
+        slice: (Int, IntRange) -> SimpleMatrix
+) {
+    val r_kminusx = psiMat.numRows()
+    val size = res.numRows() / n_k
+    val ranges = splitRange(R_kminus, parallelBlocks(n_k, R_kminus, work))
+    // the columns (gamma_minus, a) of the left interface matrix for each block of a
+    val r_kminusy = psiMat.numCols() / R_kminus
+    val psiBlocks = ranges.map { range ->
+        if (ranges.size == 1) psiMat else {
+            val block = SimpleMatrix(r_kminusx, r_kminusy * (range.last - range.first + 1))
+            for (gamma_minus in 0 until r_kminusy)
+                block[0, gamma_minus * (range.last - range.first + 1)] =
+                        psiMat.cols(gamma_minus * R_kminus + range.first, gamma_minus * R_kminus + range.last + 1)
+            block
+        }
+    }
+    val parts = arrayOfNulls<SimpleMatrix>(n_k * ranges.size)
+    parallelFor(parts.size, work) { t ->
+        val b = t % ranges.size
+        parts[t] = projectedSlice(slice(t / ranges.size, ranges[b]), psiBlocks[b])
+    }
+    for (ik in 0 until n_k) {
+        var resI = parts[ik * ranges.size]!!
+        for (b in 1 until ranges.size) resI = resI.plus(parts[ik * ranges.size + b]!!)
+        //res is indexed like F, hint: "F[i*currCore.rows*currCore.cols+alphaMinus*currCore.cols+alpha] = elem[0]"
+        System.arraycopy(resI.ddrm.data, 0, res.ddrm.data, ik * size, size)
+    }
+}
+
+/**
+ * Same as [projectSlicesByRank], but split over blocks (ik, beta) of the output mode index and the rank index of the
+ * result, for operators whose slices of Y'' are not cheaper to compute row by row: slice(ik, beta) returns the columns
+ * (beta, gamma_minus) of the ik-th slice of Y''. Different blocks write disjoint parts of res.
+ */
+internal fun projectSlicesByColumn(
+        n_k: Int,
+        r_kx: Int,
+        psiMat: SimpleMatrix,
+        res: SimpleMatrix,
+        work: Long,
+        slice: (Int, IntRange) -> SimpleMatrix
+) {
+    val r_kminusx = psiMat.numRows()
+    val ranges = splitRange(r_kx, parallelBlocks(n_k, r_kx, work))
+    parallelFor(n_k * ranges.size, work) { t ->
+        val ik = t / ranges.size
+        val range = ranges[t % ranges.size]
+        val resI = projectedSlice(slice(ik, range), psiMat)
+        val len = range.last - range.first + 1
+        for (alphaMinus in 0 until r_kminusx)
+            System.arraycopy(resI.ddrm.data, alphaMinus * len, res.ddrm.data,
+                    ik * r_kminusx * r_kx + alphaMinus * r_kx + range.first, len)
+    }
+}
+
+/**
+ * Returns the matrix-vector product with the projected operator of the local system of the kth core.
+ */
+private fun createLocalOperator(
         psi: Array<Array<SimpleMatrix>>,
         phi: Array<Array<SimpleMatrix>>,
         A: TTSquareMatrix,
-        w0: SimpleMatrix,
-        F: SimpleMatrix,
-        k: Int,
-        threshold: Double,
-        preconditioner: SimpleMatrix? = null,
-        maxLocalIters: Int = 200,
-        normalizerVector: SimpleMatrix? = null
-): SimpleMatrix {
+        k: Int
+): (SimpleMatrix) -> SimpleMatrix {
     val r_k = phi.size
     val r_kminus = psi.size
     //TODO: assemble this matrix while computing phi, instead of storing phi in an array-of-arrays
@@ -526,12 +918,16 @@ private fun ALSLocalIterSolve(
             psiMat[beta_minus, gamma_minus * R_kminus] = psiCurr
         }
     }
+    val n_k = A.modes[k]
+    val AkUnfolding = SimpleMatrix(n_k * R_kminus, n_k * Ak.cols)
+    for (ik in 0 until n_k) {
+        for (jk in 0 until n_k) {
+            AkUnfolding[ik * R_kminus, jk * Ak.cols] = Ak[ik * n_k + jk]
+        }
+    }
 
-    fun computeMatVec(y: SimpleMatrix): SimpleMatrix {
-        val lambda = y[y.numElements - 1] //used only if normalization is applied
-        val y = if (normalizerVector != null) y[0..y.numElements - 1, 0..1] else y
-        var res = y.createLike()
-        val n_k = A.modes[k]
+    return { y ->
+        val res = y.createLike()
 
         //Computation of Y'
         val YMat = SimpleMatrix(r_k, r_kminus * n_k)
@@ -553,35 +949,29 @@ private fun ALSLocalIterSolve(
                 }
             }
         }
-        val AkUnfolding = SimpleMatrix(n_k * R_kminus, n_k * Ak.cols)
-        for (ik in 0 until n_k) {
-            for (jk in 0 until n_k) {
-                AkUnfolding[ik * R_kminus, jk * Ak.cols] = Ak[ik * n_k + jk]
-            }
-        }
-        val YDoublePrime = AkUnfolding * YPrimeReshaped
-
-        //Computation of the result
-        val YDoublePrimeReshaped = SimpleMatrix(r_kminus * R_kminus, n_k * r_k)
-        for (gamma_minus in 0 until r_kminus) {
-            for (idx in 0 until R_kminus) {
-                for (ik in 0 until n_k) {
-                    for (beta in 0 until r_k) {
-                        YDoublePrimeReshaped[gamma_minus * R_kminus + idx, ik * r_k + beta] =
-                                YDoublePrime[ik * R_kminus + idx, beta * r_kminus + gamma_minus]
-                    }
-                }
-            }
-        }
-        val resTemp = psiMat * YDoublePrimeReshaped
-        //res is indexed like F, hint: "F[i*currCore.rows*currCore.cols+alphaMinus*currCore.cols+alpha] = elem[0]"
-        for (i in 0 until n_k) {
-            for (beta_minus in 0 until r_kminus) {
-                for (beta in 0 until r_k) {
-                    res[i * r_kminus * r_k + beta_minus * r_k + beta] = resTemp[beta_minus, i * r_k + beta]
-                }
-            }
+
+        //Computation of Y'' and the result, independently for each block of output mode slice and rank of A
+        val work = n_k.toLong() * R_kminus * (n_k * R_k + r_kminus) * r_k * r_kminus
+        projectSlicesByRank(n_k, R_kminus, psiMat, res, work) { ik, a ->
+            AkUnfolding.rows(ik * R_kminus + a.first, ik * R_kminus + a.last + 1) * YPrimeReshaped
         }
+        res
+    }
+}
+
+private fun ALSLocalIterSolve(
+        localOperator: (SimpleMatrix) -> SimpleMatrix,
+        w0: SimpleMatrix,
+        F: SimpleMatrix,
+        threshold: Double,
+        preconditioner: SimpleMatrix? = null,
+        maxLocalIters: Int = 200,
+        normalizerVector: SimpleMatrix? = null
+): SimpleMatrix {
+    fun computeMatVec(y: SimpleMatrix): SimpleMatrix {
+        val lambda = y[y.numElements - 1] //used only if normalization is applied
+        val y = if (normalizerVector != null) y[0..y.numElements - 1, 0..1] else y
+        var res = localOperator(y)
 
         if (normalizerVector != null) {
             res += lambda * normalizerVector.T()
@@ -617,16 +1007,38 @@ fun DMRGSolve(
         truncationRelativeThreshold: Double = 0.0,
         verbose: Boolean = false,
         maxLocalIters: Int = 100,
-        normalize: Boolean = false
+        normalize: Boolean = false,
+        residualNorm: ResidualNormFunction = ::computeResidualNorm,
+        listener: SolverListener? = null,
+        checkpointer: Checkpointer? = null,
+        maxRank: Int = Int.MAX_VALUE,
+        preconditioner: LeftPreconditionedOperator? = null
 ): TTSolution {
     // Reference for the algorithm:
     // I. V. OSELEDETS AND S. V. DOLGOV - Solution of Linear Systems and Matrix Inversion in the TT-Format
+    require(maxRank > 0) { "The maximal rank must be positive!" }
+    if (preconditioner != null) {
+        require(preconditioner.A === A) { "The preconditioned operator must belong to A!" }
+        // the local systems are the projections of P*A, the residual norm is that of the original system; the local
+        // residuals are in the units of P*f, so the threshold is scaled by ||P*f||/||f||
+        val Pf = preconditioner.rhs(f)
+        val threshold = absoluteResidualThreshold * Pf.norm() / f.norm()
+        return DMRGSolve(preconditioner.PA, Pf, x0, threshold, maxSweeps, truncationRelativeThreshold, verbose,
+                maxLocalIters, normalize, { _, x, _ -> residualNorm(A, x, f) }, listener, checkpointer, maxRank)
+    }
 
-    val x = x0.copy()
-    for (i in x.tt.cores.size - 2 downTo 1) {
-        x.tt.rightOrthogonalizeCore(i)
+    val systemKey = checkpointer?.let { checkpointKey(operatorFingerprint(A), f) }
+    val restored = if (checkpointer != null && systemKey != null) checkpointer.load("DMRG", systemKey, f.modes) else null
+    if (verbose && restored != null) println("DMRG: resuming from the checkpoint before sweep ${restored.nextSweep}")
+    val residuals = ArrayList(restored?.residuals ?: listOf())
+    var truncationError = 0.0
+    // a restored solution is already right-orthogonal, as it is saved after a backward half-sweep
+    val x = restored?.x ?: x0.copy()
+    if (restored == null) {
+        for (i in x.tt.cores.size - 2 downTo 1) {
+            x.tt.rightOrthogonalizeCore(i)
+        }
     }
-    var resNorm = (A * x - f).norm()
     val sweepRange = //list of (core index: Int, forward: Bool)
             (0 until x.modes.size - 1).toList().map { it to true } +
             (x.modes.size - 1 downTo 1).toList().map { it to false }
@@ -635,16 +1047,22 @@ fun DMRGSolve(
     val phiCache = Array<Array<Array<SimpleMatrix>>?>(x.modes.size - 1) { null }
     phiCache[phiCache.size - 1] = Array(1) { Array(1) { mat[r[1]] } }
 
-    fun createSupercoredVector(leftCoreIdx: Int, orig: TensorTrain): TTVector {
+    // A and f don't change during the solution, so their supercores are computed only once
+    val superFCores = arrayOfNulls<CoreTensor>(x.modes.size - 1)
+    val superACores = arrayOfNulls<CoreTensor>(x.modes.size - 1)
+
+    fun createSupercoredVector(leftCoreIdx: Int, orig: TensorTrain, cache: Array<CoreTensor?>? = null): TTVector {
         val leftCore = orig.cores[leftCoreIdx]
         val rightCore = orig.cores[leftCoreIdx + 1]
-        val superCore = CoreTensor(
+        val superCore = cache?.get(leftCoreIdx) ?: CoreTensor(
                 modeLength = leftCore.modeLength * rightCore.modeLength,
-                rows = leftCore.rows, cols = rightCore.cols)
-        for (i in 0 until leftCore.modeLength) {
-            for (j in 0 until rightCore.modeLength) {
-                superCore[i * rightCore.modeLength + j] = leftCore[i] * rightCore[j]
+                rows = leftCore.rows, cols = rightCore.cols).also { superCore ->
+            for (i in 0 until leftCore.modeLength) {
+                for (j in 0 until rightCore.modeLength) {
+                    superCore[i * rightCore.modeLength + j] = leftCore[i] * rightCore[j]
+                }
             }
+            cache?.set(leftCoreIdx, superCore)
         }
         val resCores = orig.cores.clone() as ArrayList<CoreTensor>
         resCores.removeAt(leftCoreIdx + 1)
@@ -653,25 +1071,27 @@ fun DMRGSolve(
         return TTVector(TensorTrain(resCores))
     }
 
-    fun createSupercoredMatrix(leftCoreIdx: Int, orig: TTSquareMatrix): TTSquareMatrix {
+    fun createSupercoredMatrix(leftCoreIdx: Int, orig: TTSquareMatrix, cache: Array<CoreTensor?>? = null): TTSquareMatrix {
         val leftCore = orig.tt.cores[leftCoreIdx]
         val rightCore = orig.tt.cores[leftCoreIdx + 1]
-        val superCore = CoreTensor(
-                modeLength = leftCore.modeLength * rightCore.modeLength,
-                rows = leftCore.rows, cols = rightCore.cols)
         val leftModeLength = orig.modes[leftCoreIdx]
         val rightModeLength = orig.modes[leftCoreIdx + 1]
-        for (rowLeft in 0 until leftModeLength) {
-            for (rowRight in 0 until rightModeLength) {
-                for (colLeft in 0 until leftModeLength) {
-                    for (colRight in 0 until rightModeLength) {
-                        val rowIdx = rowLeft * rightModeLength + rowRight
-                        val colIdx = colLeft * rightModeLength + colRight
-                        superCore[rowIdx * leftModeLength * rightModeLength + colIdx] =
-                                leftCore[rowLeft * leftModeLength + colLeft] * rightCore[rowRight * rightModeLength + colRight]
+        val superCore = cache?.get(leftCoreIdx) ?: CoreTensor(
+                modeLength = leftCore.modeLength * rightCore.modeLength,
+                rows = leftCore.rows, cols = rightCore.cols).also { superCore ->
+            for (rowLeft in 0 until leftModeLength) {
+                for (rowRight in 0 until rightModeLength) {
+                    for (colLeft in 0 until leftModeLength) {
+                        for (colRight in 0 until rightModeLength) {
+                            val rowIdx = rowLeft * rightModeLength + rowRight
+                            val colIdx = colLeft * rightModeLength + colRight
+                            superCore[rowIdx * leftModeLength * rightModeLength + colIdx] =
+                                    leftCore[rowLeft * leftModeLength + colLeft] * rightCore[rowRight * rightModeLength + colRight]
+                        }
                     }
                 }
             }
+            cache?.set(leftCoreIdx, superCore)
         }
         val resCores = orig.tt.cores.clone() as ArrayList<CoreTensor>
         resCores.removeAt(leftCoreIdx + 1)
@@ -684,15 +1104,20 @@ fun DMRGSolve(
         return TTSquareMatrix(TensorTrain(resCores), resModes.toTypedArray())
     }
 
-    for (sweep in 0 until maxSweeps) {
+    for (sweep in (restored?.nextSweep ?: 0) until maxSweeps) {
+        // The stopping test uses the largest local residual of the sweep instead of computing the residual of the
+        // full train after every sweep.
+        val sweepStart = System.nanoTime()
+        var maxLocalResNorm = 0.0
+        var truncation2 = 0.0
         for ((k, forward) in sweepRange) {
 
-            //TODO: precompute supercores for A and f
             if (forward) {
                 val superX = createSupercoredVector(k, x.tt)
-                val superF = createSupercoredVector(k, f.tt)
-                val superA = createSupercoredMatrix(k, A)
-                applyALSStep(superA, superX, superF, k, psiCache, phiCache, absoluteResidualThreshold, maxLocalIters, normalize)
+                val superF = createSupercoredVector(k, f.tt, superFCores)
+                val superA = createSupercoredMatrix(k, A, superACores)
+                val localResNorm = applyALSStep(superA, superX, superF, k, psiCache, phiCache, absoluteResidualThreshold, maxLocalIters, normalize)
+                maxLocalResNorm = max(maxLocalResNorm, localResNorm)
                 val optimizedCore = superX.tt.cores[k]
                 val unfolding = SimpleMatrix(optimizedCore.rows * x.modes[k], optimizedCore.cols * x.modes[k + 1])
                 for (i in 0 until x.modes[k]) {
@@ -714,7 +1139,8 @@ fun DMRGSolve(
                         sigma2Sum += sigma2
                     } else break
                 }
-                maxIdx = max(0, maxIdx)
+                maxIdx = min(max(0, maxIdx), maxRank - 1)
+                for (i in maxIdx + 1 until origSize) truncation2 += svd.singularValues[i] * svd.singularValues[i]
                 val W = svd.w[0..maxIdx + 1, 0..maxIdx + 1]
                 val U = svd.u[0..SimpleMatrix.END, 0..maxIdx + 1]
                 val SV = W * svd.v[0..SimpleMatrix.END, 0..maxIdx + 1].T()
@@ -730,9 +1156,10 @@ fun DMRGSolve(
                 rightCore.updateDimensions()
             } else {
                 val superX = createSupercoredVector(k - 1, x.tt)
-                val superF = createSupercoredVector(k - 1, f.tt)
-                val superA = createSupercoredMatrix(k - 1, A)
-                applyALSStep(superA, superX, superF, k - 1, psiCache, phiCache, absoluteResidualThreshold, maxLocalIters, normalize)
+                val superF = createSupercoredVector(k - 1, f.tt, superFCores)
+                val superA = createSupercoredMatrix(k - 1, A, superACores)
+                val localResNorm = applyALSStep(superA, superX, superF, k - 1, psiCache, phiCache, absoluteResidualThreshold, maxLocalIters, normalize)
+                maxLocalResNorm = max(maxLocalResNorm, localResNorm)
                 val optimizedCore = superX.tt.cores[k - 1]
                 val unfolding = SimpleMatrix(optimizedCore.rows * x.modes[k - 1], optimizedCore.cols * x.modes[k])
                 for (i in 0 until x.modes[k - 1]) {
@@ -755,7 +1182,8 @@ fun DMRGSolve(
                         sigma2Sum += sigma2
                     } else break
                 }
-                maxIdx = max(0, maxIdx)
+                maxIdx = min(max(0, maxIdx), maxRank - 1)
+                for (i in maxIdx + 1 until origSize) truncation2 += svd.singularValues[i] * svd.singularValues[i]
                 val W = svd.w[0..maxIdx + 1, 0..maxIdx + 1]
                 val US = svd.u[0..SimpleMatrix.END, 0..maxIdx + 1] * W
                 val V = svd.v[0..SimpleMatrix.END, 0..maxIdx + 1].T()
@@ -772,11 +1200,36 @@ fun DMRGSolve(
             }
         }
 
-        resNorm = (f - A * x).norm()
-        if (verbose) println("DMRG sweep $sweep: resnorm=$resNorm threshold=$absoluteResidualThreshold maxrank=${x.ttRanks().max()}")
-        if (resNorm <= absoluteResidualThreshold) break
+        truncationError = sqrt(truncation2)
+        listener?.onSweep(SweepEvent("DMRG", sweep, maxLocalResNorm, true, x.ttRanks(), elapsedMs(sweepStart)))
+        if (verbose) println("DMRG sweep $sweep: max local resnorm=$maxLocalResNorm threshold=$absoluteResidualThreshold maxrank=${x.ttRanks().max()}${if (maxRank < Int.MAX_VALUE) " truncation error=$truncationError" else ""}")
+        residuals.add(maxLocalResNorm)
+        if (maxLocalResNorm <= absoluteResidualThreshold) {
+            if (checkpointer != null && systemKey != null) checkpointer.remove("DMRG", systemKey)
+            break
+        }
+        if (checkpointer != null && systemKey != null)
+            checkpointer.save(SolverCheckpoint("DMRG", systemKey, sweep + 1, x, null, residuals))
     }
-    return TTSolution(x, resNorm)
+    val resNorm = residualNorm(A, x, f)
+    if (verbose) println("DMRG finished: resnorm=$resNorm")
+    return TTSolution(x, resNorm, truncationError = truncationError)
+}
+
+/**
+ * The left-preconditioned operator P*A of the systems A*x=f. As the ranks of P*A are the products of the ranks of P and
+ * A, it is rounded to the given relative accuracy. It is computed once, so the solves of several systems with the same
+ * operator (e.g. the systems of a moment chain) only multiply their right hand sides by P, and the AMEn-ALS solves share
+ * its prepared operator.
+ */
+class LeftPreconditionedOperator(val P: TTSquareMatrix, val A: TTSquareMatrix, val tolerance: Double = 1e-12) {
+    val PA: TTSquareMatrix = (P * A).also { it.tt.roundRelative(tolerance) }
+    val operator: AMEnOperator by lazy { AMEnOperator(PA) }
+
+    /**
+     * Returns the right hand side P*f of the preconditioned system.
+     */
+    fun rhs(f: TTVector): TTVector = (P * f).also { it.tt.roundRelative(tolerance) }
 }
 
 fun DMRGInvert(
@@ -825,6 +1278,10 @@ fun DMRGInvert(
 //    SVD, ALS
 //}
 
+/**
+ * AMEn with forward sweeps, run by the AMEn engine (see AMEnALSSolve) for the maxSweeps + 1 sweeps of the original
+ * forward-backward prototype.
+ */
 fun AMEnSolve(
         A: TTSquareMatrix,
         y: TTVector,
@@ -833,114 +1290,19 @@ fun AMEnSolve(
         maxSweeps: Int,
         enrichmentRank: Int,
         normalize: Boolean = false,
-        verbose: Boolean = true
+        verbose: Boolean = true,
+        residualNorm: ResidualNormFunction = ::computeResidualNorm,
+        listener: SolverListener? = null,
+        maxRank: Int = Int.MAX_VALUE
 //        enrichmentMethod: AmenEnrichmentMethod = AmenEnrichmentMethod.SVD
 ): TTSolution {
-    val relativeThreashold = residualThreshold / y.norm()
-
-    val x = x0.copy()
-    for (i in x.tt.cores.size - 2 downTo 1) {
-        x.tt.rightOrthogonalizeCore(i)
-    }
-
-//    val psiCache = Array<Array<Array<SimpleMatrix>>?>(x.modes.size) { null }
-//    psiCache[0] = Array(1) { Array(1) { mat[r[1]] } }
-//    val phiCache = Array<Array<Array<SimpleMatrix>>?>(x.modes.size) { null }
-//    phiCache[phiCache.size - 1] = Array(1) { Array(1) { mat[r[1]] } }
-
-    val AMirror = TTSquareMatrix(A.tt.mirror(), A.modes.reversedArray())
-    val yMirror = TTVector(y.tt.mirror())
-
-    var resNorm: Double = Double.MAX_VALUE
-    // Perform forward-backward sweeps
-    for (sweep in 0..maxSweeps) {
-
-        for ((A, y) in arrayOf(A to y, AMirror to yMirror)) {
-            //TODO: performance
-            val psiCache = Array<Array<Array<SimpleMatrix>>?>(x.modes.size) { null }
-            psiCache[0] = Array(1) { Array(1) { mat[r[1]] } }
-            val phiCache = Array<Array<Array<SimpleMatrix>>?>(x.modes.size) { null }
-            phiCache[phiCache.size - 1] = Array(1) { Array(1) { mat[r[1]] } }
-
-            var preY = SimpleMatrix(1, 1)
-            var preA = SimpleMatrix(1, 1)
-
-            for (k in 0 until x.modes.size - 1) {
-
-                applyALSStep(A, x, y, k, psiCache, phiCache, residualThreshold, normalize = normalize)
-
-                val yCore = y.tt.cores[k]
-                val ry_k = yCore.cols
-                val U_k = x.tt.cores[k]
-                val rx_k = U_k.cols
-                val ACore = A.tt.cores[k]
-
-                // Determine the residual core
-                val rx_kmin1 = if (k == 0) 1 else x.tt.cores[k - 1].cols
-                val rA_kmin1 = if (k == 0) 1 else A.tt.cores[k - 1].cols
-                val residualCore = CoreTensor(x.modes[k], U_k.rows,
-                        yCore.cols + ACore.cols * rx_k) //TODO: check
-
-                repeat(x.modes[k]) { i_k ->
-                    repeat(rx_kmin1) { alpha ->
-                        var sum = SimpleMatrix(1, ACore.cols * rx_k)
-                        repeat(x.modes[k]) { j_k ->
-                            repeat(rx_kmin1) { beta ->
-                                val idx: Int = alpha * rx_kmin1 + beta
-                                sum += (preA[0..1, idx * rA_kmin1..(idx + 1) * rA_kmin1] * ACore[i_k, j_k])
-                                        .kron(U_k[j_k].row(beta))
-                            }
-                        }
-                        residualCore[i_k][alpha, 0] = mat[
-                                preY[0..1, alpha * ry_k..(alpha + 1 * ry_k)] * yCore[i_k], -sum
-                        ]
-                    }
-                }
-
-                // SVD-based truncation of residual core
-                val unfolding = SimpleMatrix(residualCore.rows * residualCore.modeLength, residualCore.cols)
-                repeat(residualCore.modeLength) { i ->
-                    unfolding[i * residualCore.rows, 0] = residualCore[i]
-                }
-                val svd = unfolding.svd(true)
-                val currEnrichment = if (enrichmentRank < svd.u.numCols()) enrichmentRank else svd.u.numCols()
-                repeat(residualCore.modeLength) { i ->
-                    U_k[i] = mat[U_k[i], svd.u[i * residualCore.rows..(i + 1) * residualCore.rows, 0..currEnrichment]]
-                }
-                U_k.updateDimensions()
-                val nextCore = x.tt.cores[k + 1]
-                repeat(nextCore.modeLength) { i ->
-                    nextCore[i] = mat[nextCore[i].T(), SimpleMatrix(nextCore.cols, currEnrichment)].T()
-                }
-                nextCore.updateDimensions()
-
-                x.tt.leftOrthogonalizeCore(k)
-
-                val updatedCore = x.tt.cores[k]
-                var preyUpdate = SimpleMatrix(updatedCore.rows * yCore.rows,
-                        updatedCore.cols * yCore.cols)
-                repeat(updatedCore.modeLength) { i ->
-                    preyUpdate += updatedCore[i].kron(yCore[i])
-                }
-                preY *= preyUpdate
-
-                var preAUpdate = SimpleMatrix(
-                        updatedCore.rows * updatedCore.rows * ACore.rows,
-                        updatedCore.cols * updatedCore.cols * ACore.cols)
-                repeat(updatedCore.modeLength) { i ->
-                    repeat(updatedCore.modeLength) { j ->
-                        preAUpdate += updatedCore[i].kron(updatedCore[j].kron(ACore[i, j]))
-                    }
-                }
-                preA *= preAUpdate
-            }
-            x.tt = x.tt.mirror()
-        }
-        resNorm = (y - A * x).norm()
-        if (verbose) println("AMEn sweep $sweep: resnorm=$resNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
-        if (resNorm <= residualThreshold) break //TODO: stopping criterion based on the local residual
-//        x.tt.roundRelative(relativeThreashold / 1000000000000) //TODO: use maximal eigenvalue estimate of the matrix
-        x.tt.roundAbsolute(residualThreshold / 10)
-    }
-    return TTSolution(x, resNorm)
+    val solution = AMEnALSSolve(AMEnOperator(A), y, x0.copy(), residualThreshold, maxSweeps + 1, enrichmentRank,
+            normalize = normalize,
+            verbose = verbose,
+            residualNorm = { residualNorm(A, it, y) },
+            listener = listener,
+            maxRank = maxRank,
+            name = "AMEn"
+    )
+    return TTSolution(solution.solution, solution.resNorm, truncationError = solution.truncationError)
 }
@@ -21,6 +21,7 @@ import org.ejml.simple.SimpleMatrix
 import org.ejml.simple.SimpleMatrix.END
 import kotlin.math.abs
 import kotlin.math.max
+import kotlin.math.min
 import kotlin.math.sqrt
 
 class TensorTrain(val cores: ArrayList<CoreTensor>) {
@@ -233,28 +234,196 @@ class TensorTrain(val cores: ArrayList<CoreTensor>) {
         core.cols = core.data[0].numCols()
     }
 
+    /**
+     * The distribution of the error budget of the rounding among the truncated cores. The truncation errors of the
+     * cores are orthogonal, so the error of the rounding is at most the square root of the sum of their squares, and the
+     * budget is sqrt(d-1) times the tolerance of roundAbsolute in every mode.
+     */
     enum class BudgetMode {
-        NONE, UNIFORM, NEIGHBOR_SHARE
+        /**
+         * Every core is truncated with the tolerance.
+         */
+        NONE,
+
+        /**
+         * The budget left unused by the cores truncated so far is distributed uniformly among the remaining ones.
+         */
+        UNIFORM,
+
+        /**
+         * The budget left unused by a core is added to the tolerance of the next one.
+         */
+        NEIGHBOR_SHARE,
+
+        /**
+         * The budget is allocated by dropping the smallest singular values of all unfoldings while it allows, which
+         * minimizes the sum of the ranks for the spectra of the original tensor. As the spectra shrink with the
+         * truncation of the previous cores, the rank of every core is chosen again from its actual spectrum during
+         * the truncation, with the remaining budget. It needs an extra sweep of SVDs, and uses full SVDs even if
+         * useIterative is set.
+         */
+        OPTIMAL
     }
 
     /**
      * Performs SVD-based Tensor Train rounding
      * @param tolerance Relative tolerance of the rounding procedure
+     * @param maxRank the largest rank kept, which may increase the error above the tolerance
+     * @return the norm of the rounding error
      */
-    fun roundRelative(tolerance: Double, useIterative: Boolean = false, budgetMode: BudgetMode = BudgetMode.NONE) {
+    fun roundRelative(tolerance: Double, useIterative: Boolean = false, budgetMode: BudgetMode = BudgetMode.NONE,
+                      maxRank: Int = Int.MAX_VALUE): Double {
         val delta = if(tolerance == 0.0) 0.0 else (tolerance / sqrt((cores.size - 1).toDouble()) * frobenius())
-        roundAbsolute(delta, useIterative, budgetMode)
+        return roundAbsolute(delta, useIterative, budgetMode, maxRank)
     }
 
     /**
      * Performs SVD-based Tensor Train rounding
      * @param tolerance Absolute tolerance of the rounding procedure
+     * @param maxRank the largest rank kept, which may increase the error above the tolerance
+     * @return the norm of the rounding error
+     */
+    fun roundAbsolute(tolerance: Double, useIterative: Boolean = false, budgetMode: BudgetMode = BudgetMode.NONE,
+                      maxRank: Int = Int.MAX_VALUE): Double {
+        require(maxRank > 0) { "The maximal rank must be positive!" }
+        rightOrthogonalizeAll()
+        val delta2 = tolerance * tolerance
+        if (budgetMode == BudgetMode.OPTIMAL) return roundOptimal(delta2 * (cores.size - 1), maxRank)
+
+        //compression
+        var remaining2 = delta2 * (cores.size - 1)
+        var carried2 = 0.0
+        var error2 = 0.0
+        for (k in 0 until cores.size-1) {
+            val allowed2 = when (budgetMode) {
+                BudgetMode.UNIFORM -> max(0.0, remaining2) / (cores.size - 1 - k)
+                BudgetMode.NEIGHBOR_SHARE -> delta2 + carried2
+                else -> delta2
+            }
+            val Gkmat = cores[k].leftUnfolding()
+            val rank: Int
+            val discarded2: Double
+            val svd = if (useIterative) {
+                val trunc = Gkmat.truncatedSVDByIterativeEigen(sqrt(allowed2))
+                rank = min(trunc.S.numCols(), maxRank)
+                val kept = trunc.S[0..rank, 0..rank].normF()
+                discarded2 = max(0.0, Gkmat.normF() * Gkmat.normF() - kept * kept)
+                trunc
+            } else {
+                val fullSVD = Gkmat.svd(true)
+                val singularValues = fullSVD.singularValues
+                rank = min(truncationRank(singularValues, allowed2), maxRank)
+                discarded2 = tailSum2(singularValues, rank)
+                SVD(fullSVD.u, fullSVD.w, fullSVD.v)
+            }
+            truncateCore(k, svd, rank)
+            remaining2 -= discarded2
+            carried2 = allowed2 - discarded2
+            error2 += discarded2
+        }
+        return sqrt(error2)
+    }
+
+    /**
+     * Rounding with BudgetMode.OPTIMAL on a right-orthogonal train. The singular values of the unfoldings of the original
+     * tensor bound the ones of the truncated tensor, so they give an allocation of the budget that is always feasible.
+     * The truncation sweep then chooses the rank of every core from the actual spectrum of its unfolding, i.e. the one of
+     * the tensor with the previous cores already truncated, and reallocates the remaining budget to the rest of the
+     * cores with their a priori spectra. The error is the exact sum of the dropped singular values of the sweep.
+     */
+    private fun roundOptimal(budget2: Double, maxRank: Int): Double {
+        // singular values of the unfoldings from a sweep without truncation
+        val spectra = ArrayList<DoubleArray>(cores.size - 1)
+        for (k in 0 until cores.size-1) {
+            val fullSVD = cores[k].leftUnfolding().svd(true)
+            spectra.add(fullSVD.singularValues)
+            truncateCore(k, SVD(fullSVD.u, fullSVD.w, fullSVD.v), fullSVD.singularValues.size)
+        }
+
+        rightOrthogonalizeAll()
+        var remaining2 = budget2
+        var discarded2 = 0.0
+        for (k in 0 until cores.size-1) {
+            val fullSVD = cores[k].leftUnfolding().svd(true)
+            spectra[k] = fullSVD.singularValues
+            val rank = allocateRanks(spectra.subList(k, spectra.size), remaining2, maxRank)[0]
+            val dropped2 = tailSum2(fullSVD.singularValues, rank)
+            remaining2 -= dropped2
+            discarded2 += dropped2
+            truncateCore(k, SVD(fullSVD.u, fullSVD.w, fullSVD.v), rank)
+        }
+        return sqrt(discarded2)
+    }
+
+    /**
+     * Returns the ranks of the cores with the given spectra that minimize the sum of the ranks, dropping the smallest
+     * singular values of all cores while their sum of squares is below budget2. The ranks are at most maxRank.
+     */
+    private fun allocateRanks(spectra: List<DoubleArray>, budget2: Double, maxRank: Int): IntArray {
+        val ranks = IntArray(spectra.size) { min(spectra[it].size, maxRank) }
+        // the singular values above the rank cap are dropped in any case
+        var remaining2 = budget2 - ranks.indices.sumByDouble { tailSum2(spectra[it], ranks[it]) }
+        while (true) {
+            var smallest = -1
+            for (k in ranks.indices) {
+                if (ranks[k] > 1 && (smallest == -1 || spectra[k][ranks[k] - 1] < spectra[smallest][ranks[smallest] - 1]))
+                    smallest = k
+            }
+            if (smallest == -1) break
+            val sigma = spectra[smallest][ranks[smallest] - 1]
+            if (sigma * sigma >= remaining2) break
+            remaining2 -= sigma * sigma
+            ranks[smallest]--
+        }
+        return ranks
+    }
+
+    private fun tailSum2(singularValues: DoubleArray, rank: Int) =
+            (rank until singularValues.size).sumByDouble { singularValues[it] * singularValues[it] }
+
+    /**
+     * Returns the smallest rank (at least one) for which the sum of the squares of the dropped singular values is below
+     * allowed2.
+     */
+    private fun truncationRank(singularValues: DoubleArray, allowed2: Double): Int {
+        var rank = singularValues.size
+        var sigma2Sum = 0.0
+        while (rank > 1) {
+            val sigma2 = singularValues[rank - 1] * singularValues[rank - 1]
+            if (sigma2Sum + sigma2 >= allowed2) break
+            sigma2Sum += sigma2
+            rank--
+        }
+        return rank
+    }
+
+    /**
+     * Replaces the kth core with the first rank left singular vectors of its left unfolding, and multiplies the next
+     * core with the rest of the truncated SVD.
      */
-    fun roundAbsolute(tolerance: Double, useIterative: Boolean = false, budgetMode: BudgetMode = BudgetMode.NONE) {
-        //init
-        var delta = tolerance
+    private fun truncateCore(k: Int, svd: SVD, rank: Int) {
+        val Gk = cores[k]
+        val GkmatTrunc = svd.U[0..END, 0..rank]
+        repeat(Gk.modeLength) {
+            Gk.data[it] = GkmatTrunc[it*Gk.rows..(it+1)*Gk.rows, 0..GkmatTrunc.numCols()]
+        }
+        Gk.rows = Gk.data[0].numRows()
+        Gk.cols = Gk.data[0].numCols()
 
-        //right-to-left orthogonalization
+        val modifier = svd.S[0..rank, 0..rank]*svd.V[0..END, 0..rank].T()
+        val nextMatData = cores[k + 1].data
+        for ((i, mat) in nextMatData.withIndex()) {
+            nextMatData[i] = modifier*mat
+        }
+        val mat = cores[k + 1][0]
+        cores[k+1].rows = mat.numRows()
+        cores[k+1].cols = mat.numCols()
+    }
+
+    /**
+     * Right-to-left orthogonalization of every core except the first one.
+     */
+    private fun rightOrthogonalizeAll() {
         for(i in cores.lastIndex downTo 1) {
             val Gk = cores[i]
             val Gkmat = SimpleMatrix(Gk.rows, Gk.modeLength * Gk.cols)
@@ -278,54 +447,6 @@ class TensorTrain(val cores: ArrayList<CoreTensor>) {
             Gkprev.rows = Gkprev.data[0].numRows()
             Gkprev.cols = Gkprev.data[0].numCols()
         }
-
-        //compression
-        for (k in 0 until cores.size-1) {
-            val Gk = cores[k]
-            //reshaping into matrix
-            val Gkmat = SimpleMatrix(Gk.rows*Gk.modeLength, Gk.cols)
-            for ((i, mat) in Gk.data.withIndex()) {
-                Gkmat[i*Gk.rows, 0] = mat
-            }
-            var maxIdx = 0
-            val svd = if (useIterative) {
-                val trunc = Gkmat.truncatedSVDByIterativeEigen(delta)
-                maxIdx = trunc.S.numCols() - 1
-                trunc
-            } else {
-                val fullSVD = Gkmat.svd(true)
-                val origSize = fullSVD.singularValues.size
-                maxIdx = origSize - 1
-                var sigma2Sum = 0.0
-                val delta2 = delta * delta
-                for (i in origSize-1 downTo 1) {
-                    val sigma = fullSVD.singularValues[i]
-                    val sigma2 = sigma * sigma
-                    if(sigma2Sum + sigma2 < delta2) {
-                        maxIdx--
-                        sigma2Sum += sigma2
-                    } else break
-                }
-                maxIdx = max(0, maxIdx)
-                SVD(fullSVD.u, fullSVD.w, fullSVD.v)
-            }
-
-            val GkmatTrunc = svd.U[0..END, 0..maxIdx+1]
-            repeat(Gk.modeLength) {
-                Gk.data[it] = GkmatTrunc[it*Gk.rows..(it+1)*Gk.rows, 0..GkmatTrunc.numCols()]
-            }
-            Gk.rows = Gk.data[0].numRows()
-            Gk.cols = Gk.data[0].numCols()
-
-            val modifier = svd.S[0..maxIdx+1, 0..maxIdx+1]*svd.V[0..END, 0..maxIdx+1].T()
-            val nextMatData = cores[k + 1].data
-            for ((i, mat) in nextMatData.withIndex()) {
-                nextMatData[i] = modifier*mat
-            }
-            val mat = cores[k + 1][0]
-            cores[k+1].rows = mat.numRows()
-            cores[k+1].cols = mat.numCols()
-        }
     }
 
     /**
@@ -0,0 +1,196 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import kotlin.math.sqrt
+
+/**
+ * Identifies a model for the warm-start cache. Solutions can only be reused between models with the same variable
+ * ordering and modes, and among those the one with the closest generator fingerprint is chosen.
+ */
+class WarmStartKey(val ordering: List<String>, val modes: Array<Int>, val fingerprint: DoubleArray) {
+    val structureHash: String = MessageDigest.getInstance("SHA-256")
+            .digest((ordering.joinToString("\u0000") + "|" + modes.joinToString(",")).toByteArray())
+            .take(8).joinToString("") { "%02x".format(it) }
+
+    /**
+     * Relative distance of the generator fingerprints
+     */
+    fun distance(other: DoubleArray): Double {
+        if (other.size != fingerprint.size) return Double.POSITIVE_INFINITY
+        var diff = 0.0
+        var norm = 0.0
+        for (i in fingerprint.indices) {
+            diff += (fingerprint[i] - other[i]) * (fingerprint[i] - other[i])
+            norm += fingerprint[i] * fingerprint[i]
+        }
+        return if (norm == 0.0) sqrt(diff) else sqrt(diff / norm)
+    }
+}
+
+data class WarmStart(val x0: TTVector, val z0: TTVector?)
+
+/**
+ * Returns a cheap fingerprint of the operator: for each core, the sum of the norms of A_k[i,j]*1 and the same sum
+ * weighted by the position of (i,j). It is identical for operators built the same way, and changes continuously with
+ * the rates of the model.
+ */
+fun operatorFingerprint(A: TTSquareMatrix): DoubleArray {
+    val res = DoubleArray(2 * A.modes.size)
+    for ((k, n) in A.modes.withIndex()) {
+        val core = A.tt.cores[k]
+        val probe = ones(core.cols)
+        for (i in 0 until n) {
+            for (j in 0 until n) {
+                val norm = (core[i * n + j] * probe).normF()
+                res[2 * k] += norm
+                res[2 * k + 1] += norm * (i * n + j + 1) / (n * n)
+            }
+        }
+    }
+    return res
+}
+
+fun operatorFingerprint(A: Array<out Abstract2DCoreTensor>): DoubleArray {
+    val res = DoubleArray(2 * A.size)
+    for ((k, core) in A.withIndex()) {
+        val n = core.modeLength
+        val probe = ones(core.cols)
+        for ((i, row) in core.nonzeroPattern().withIndex()) {
+            for (j in row) {
+                val norm = core.multFromRight(i, j, probe).normF()
+                res[2 * k] += norm
+                res[2 * k + 1] += norm * (i * n + j + 1) / (n * n)
+            }
+        }
+    }
+    return res
+}
+
+/**
+ * On-disk cache of solutions and enrichment vectors for warm-starting repeated analyses of the same or slightly
+ * modified models. Every entry is a file in the directory, holding the fingerprint of the generator it was computed
+ * with, and a tag distinguishing the different solutions of the same model (e.g. the vectors of a moment chain).
+ * A lookup returns the entry with the same structure hash and tag whose fingerprint is the closest, if the relative
+ * distance is at most maxRelativeDistance. When there are more than maxEntries files, the least recently used ones are
+ * deleted. The methods are synchronized, so the cache can be shared by concurrently solved systems, and entries are
+ * replaced atomically, so it can also be shared by separate processes. Entries that cannot be read are deleted.
+ */
+class WarmStartCache(
+        val directory: File,
+        val maxEntries: Int = 64,
+        val maxRelativeDistance: Double = 0.1
+) {
+    var hits = 0
+        private set
+    var nearHits = 0
+        private set
+    var misses = 0
+        private set
+    var evictions = 0
+        private set
+
+    init {
+        directory.mkdirs()
+    }
+
+    private fun entryFiles() = directory.listFiles { f -> f.isFile && f.name.endsWith(".tt") }?.toList() ?: listOf()
+
+    private fun readFingerprint(input: DataInput) = DoubleArray(input.readInt()) { input.readDouble() }
+
+    /**
+     * Reads the entry, or returns null and deletes the file if it cannot be read, e.g. because it is corrupt.
+     */
+    private fun readEntry(file: File, key: WarmStartKey): WarmStart? {
+        val res = try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                readFingerprint(input)
+                val x0 = readTTVector(input)
+                val z0 = if (input.readBoolean()) readTTVector(input) else null
+                WarmStart(x0, z0)
+            }
+        } catch (e: Exception) {
+            // garbage can also make the reader fail with e.g. NegativeArraySizeException
+            file.delete()
+            return null
+        }
+        return if (res.x0.modes.contentEquals(key.modes)) res else null
+    }
+
+    @Synchronized
+    fun lookup(key: WarmStartKey, tag: String): WarmStart? {
+        val prefix = "${key.structureHash}-$tag-"
+        val candidates = ArrayList<Pair<File, Double>>()
+        for (file in entryFiles().filter { it.name.startsWith(prefix) }) {
+            val distance = try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { key.distance(readFingerprint(it)) }
+            } catch (e: Exception) {
+                file.delete()
+                continue
+            }
+            if (distance <= maxRelativeDistance) candidates.add(Pair(file, distance))
+        }
+        // the closest entry that can be read, so a corrupt one does not hide the others
+        for ((file, distance) in candidates.sortedBy { it.second }) {
+            val res = readEntry(file, key) ?: continue
+            if (distance == 0.0) hits++ else nearHits++
+            file.setLastModified(System.currentTimeMillis())
+            return res
+        }
+        misses++
+        return null
+    }
+
+    /**
+     * Stores the solution as the entry of the key and the tag. The entry is written to a temporary file first and moved
+     * in place atomically, so other processes sharing the directory never see a partially written entry.
+     */
+    @Synchronized
+    fun store(key: WarmStartKey, tag: String, solution: TTSolution) {
+        val fingerprintHash = Integer.toHexString(key.fingerprint.contentHashCode())
+        val file = File(directory, "${key.structureHash}-$tag-$fingerprintHash.tt")
+        val tmp = File.createTempFile(file.name, ".tmp", directory)
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                out.writeInt(key.fingerprint.size)
+                for (v in key.fingerprint) out.writeDouble(v)
+                solution.solution.writeTo(out)
+                val z = solution.enrichment
+                out.writeBoolean(z != null)
+                z?.writeTo(out)
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            tmp.delete()
+        }
+        val files = entryFiles()
+        if (files.size > maxEntries) {
+            for (f in files.sortedBy { it.lastModified() }.take(files.size - maxEntries)) {
+                if (f != file && f.delete()) evictions++
+            }
+        }
+    }
+
+    @Synchronized
+    fun statistics() = "warm-start cache: $hits hits, $nearHits near hits, $misses misses, $evictions evictions"
+}
@@ -21,58 +21,144 @@ package solver
 import faulttree.BasicEvent.Companion.BasicEventVar
 import faulttree.FaultTree
 import faulttree.PHBasicEvent.Companion.PHEventVar
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 
 fun FaultTree.mtff(relativeThreshold: Double, solver: (TTSquareMatrix, TTVector, threshold: Double)->TTSolution) =
         getNthMoment(1, relativeThreshold, solver)
 
-fun FaultTree.getNthMoment(n: Int, relativeThreshold: Double, solver: (TTSquareMatrix, TTVector, threshold: Double)->TTSolution): Double {
+fun FaultTree.getNthMoment(n: Int, relativeThreshold: Double, solver: (TTSquareMatrix, TTVector, threshold: Double)->TTSolution): Double =
+        getNthMoment(n, relativeThreshold, null) { M, b, threshold, _ -> solver(M, b, threshold) }
 
-    val variables = this.getOrderedVariables()
-    val pi0Cores = Array(variables.size) {
-        val core = CoreTensor(variables[it].variableDescriptor.domainSize, 1, 1)
-        core[0][0] = 1.0
-        return@Array core
-    }
+/**
+ * Computes the nth moment of the time to first failure. If cache is given, every linear system of the computation is
+ * warm-started from the closest cached solution of the same system, and its solution is stored in the cache.
+ */
+fun FaultTree.getNthMoment(
+        n: Int,
+        relativeThreshold: Double,
+        cache: WarmStartCache?,
+        parallelChains: Boolean = false,
+        solver: (TTSquareMatrix, TTVector, threshold: Double, warmStart: WarmStart?)->TTSolution
+): Double {
     val Q = this.getModifiedGenerator()
     Q.tt.roundAbsolute(1e-16)
     Q.tt.roundRelative(1e-16)
-    val QT = Q.T()
-    var left = TTVector(TensorTrain(ArrayList(pi0Cores.toList())))
-    var right = TTVector.ones(left.modes)
+    val pi0 = getInitialVector()
+    val key = cache?.let { WarmStartKey(getVariableNames(), pi0.modes, operatorFingerprint(Q)) }
+    val solve = { M: TTSquareMatrix, b: TTVector, tag: String ->
+        if (cache == null || key == null) solver(M, b, relativeThreshold*b.norm(), null)
+        else solver(M, b, relativeThreshold*b.norm(), cache.lookup(key, tag)).also { cache.store(key, tag, it) }
+    }
+    return if (parallelChains) parallelMomentChain(Q, Q.T(), pi0, n, solve = solve)
+    else momentChain(Q, Q.T(), pi0, n, solve)
+}
 
-    repeat(n) {
-        if( (left.ttRanks().max() ?: 0) <= (right.ttRanks().max() ?: 0) )
-            left = solver(QT, left, relativeThreshold*left.norm()).solution
-        else
-            right = solver(Q, right, relativeThreshold*right.norm()).solution
+fun FaultTree.getNthMomentSparse(n: Int, relativeThreshold: Double, solver: (Array<Sparse2DCoreTensor>, TTVector, threshold: Double)->TTSolution): Double =
+        getNthMomentSparse(n, relativeThreshold, null) { M, b, threshold, _ -> solver(M, b, threshold) }
+
+fun FaultTree.getNthMomentSparse(
+        n: Int,
+        relativeThreshold: Double,
+        cache: WarmStartCache?,
+        parallelChains: Boolean = false,
+        solver: (Array<Sparse2DCoreTensor>, TTVector, threshold: Double, warmStart: WarmStart?)->TTSolution
+): Double {
+    val Q = this.getModifiedGeneratorAsSparseCores().toTypedArray()
+    val QT = Q.map(Sparse2DCoreTensor::transpose).toTypedArray()
+    val pi0 = getInitialVector()
+    val key = cache?.let { WarmStartKey(getVariableNames(), pi0.modes, operatorFingerprint(Q)) }
+    val solve = { M: Array<Sparse2DCoreTensor>, b: TTVector, tag: String ->
+        if (cache == null || key == null) solver(M, b, relativeThreshold*b.norm(), null)
+        else solver(M, b, relativeThreshold*b.norm(), cache.lookup(key, tag)).also { cache.store(key, tag, it) }
     }
+    return if (parallelChains) parallelMomentChain(Q, QT, pi0, n, solve = solve)
+    else momentChain(Q, QT, pi0, n, solve)
+}
 
-    return (if(n % 2 == 0) 1 else -1) * (left * right)
+/**
+ * Returns a moment engine for the time to first failure, which keeps the modified and rounded generator and the
+ * solutions of the lower moments between the calls.
+ */
+fun FaultTree.momentEngine(relativeThreshold: Double, solver: MomentSolver): MomentEngine {
+    val Q = this.getModifiedGenerator()
+    Q.tt.roundAbsolute(1e-16)
+    Q.tt.roundRelative(1e-16)
+    return MomentEngine(Q, getInitialVector(), relativeThreshold, solver)
 }
 
-fun FaultTree.getNthMomentSparse(n: Int, relativeThreshold: Double, solver: (Array<Sparse2DCoreTensor>, TTVector, threshold: Double)->TTSolution): Double {
+internal fun FaultTree.getVariableNames() = getOrderedVariables().map { it.variableDescriptor.traceInfo.toString() }
 
+/**
+ * Returns the initial distribution of the chain, where every variable is in its 0th state.
+ */
+internal fun FaultTree.getInitialVector(): TTVector {
     val variables = this.getOrderedVariables()
     val pi0Cores = Array(variables.size) {
         val core = CoreTensor(variables[it].variableDescriptor.domainSize, 1, 1)
         core[0][0] = 1.0
         return@Array core
     }
-    val Q = this.getModifiedGeneratorAsSparseCores().toTypedArray()
-    val QT = Q.map(Sparse2DCoreTensor::transpose).toTypedArray()
-    var left = TTVector(TensorTrain(ArrayList(pi0Cores.toList())))
+    return TTVector(TensorTrain(ArrayList(pi0Cores.toList())))
+}
+
+/**
+ * Computes the nth moment as (-1)^n * pi0 * Q^-n * 1, by solving n linear systems with Q or its transpose QT. Each
+ * system is solved from the side with the lower rank, and is identified by a tag: left0, left1, ... and right0, right1,
+ * ... along each chain, so the tag of a system names the vector it computes (pi0 * Q^-(k+1) or Q^-(k+1) * 1), the same
+ * as in parallelMomentChain and in computations with different generators of the same structure.
+ */
+internal fun <M> momentChain(Q: M, QT: M, pi0: TTVector, n: Int, solve: (M, TTVector, tag: String) -> TTSolution): Double {
+    var left = pi0
     var right = TTVector.ones(left.modes)
+    var leftSteps = 0
+    var rightSteps = 0
 
     repeat(n) {
         if( (left.ttRanks().max() ?: 0) <= (right.ttRanks().max() ?: 0) )
-            left = solver(QT, left, relativeThreshold*left.norm()).solution
+            left = solve(QT, left, "left${leftSteps++}").solution
         else
-            right = solver(Q, right, relativeThreshold*right.norm()).solution
+            right = solve(Q, right, "right${rightSteps++}").solution
     }
 
     return (if(n % 2 == 0) 1 else -1) * (left * right)
 }
 
+/**
+ * Computes the nth moment like momentChain, but with the split of the n systems fixed in advance: leftSteps systems are
+ * solved with QT starting from pi0, and the rest with Q starting from the vector of ones. As the two chains only meet in
+ * the final inner product, the left chain runs on a separate thread concurrently with the right one. The tags of the
+ * systems are left0, left1, ... and right0, right1, ... along each chain.
+ */
+internal fun <M> parallelMomentChain(
+        Q: M,
+        QT: M,
+        pi0: TTVector,
+        n: Int,
+        leftSteps: Int = (n + 1) / 2,
+        solve: (M, TTVector, tag: String) -> TTSolution
+): Double {
+    require(leftSteps in 0..n) { "The number of left steps must be between 0 and n!" }
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+        val leftFuture = executor.submit(Callable {
+            var left = pi0
+            repeat(leftSteps) { left = solve(QT, left, "left$it").solution }
+            left
+        })
+        var right = TTVector.ones(pi0.modes)
+        repeat(n - leftSteps) { right = solve(Q, right, "right$it").solution }
+        val left = try {
+            leftFuture.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+        return (if(n % 2 == 0) 1 else -1) * (left * right)
+    } finally {
+        executor.shutdownNow()
+    }
+}
 
 fun FaultTree.getSteadyStateDistribution(): TTVector {
 //    this will be needed only for DFT-s
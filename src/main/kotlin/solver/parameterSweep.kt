@@ -0,0 +1,170 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import faulttree.BasicEvent
+import faulttree.BasicEvent.Companion.BasicEventVar
+import faulttree.FaultTree
+import faulttree.PHBasicEvent
+import faulttree.PHBasicEvent.Companion.PHEventVar
+import faulttree.assembleModifiedGenerator
+import faulttree.localRateMatrix
+import org.ejml.simple.SimpleMatrix
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * A point of a parameter sweep, given by the parameters of the basic events (identified by their names) that differ
+ * from the ones in the fault tree.
+ */
+data class SweepPoint(
+        val failureRates: Map<String, Double> = mapOf(),
+        val repairRates: Map<String, Double> = mapOf(),
+        val phRateMatrices: Map<String, SimpleMatrix> = mapOf()
+)
+
+data class SweepResult(val point: SweepPoint, val moment: Double, val timeMs: Long)
+
+/**
+ * Computes moments of the time to first failure of a fault tree for many parameter points. The MDD, the variable
+ * ordering and the indicator vectors are computed only once; for each point, only the generator cores of the basic
+ * events with changed parameters are rebuilt, and the rest of the assembly works core by core on the TT format. The
+ * points of a chain are processed in order, and each linear system is warm-started from the solution and enrichment
+ * of the same system at the previous point of the chain. Independent chains run on a thread pool.
+ */
+class FaultTreeSweep(val tree: FaultTree) {
+    private val variables = tree.getOrderedVariables()
+    private val baseCores = tree.getBaseRateMatrix().tt.cores.toList()
+    private val operationalIndicator = tree.getOperationalIndicatorVector()
+    private val absorbingIndicator = tree.getStrictAbsorbingIndicatorVector()
+    private val pi0 = tree.getInitialVector()
+    private val basicEventNames = variables.mapNotNull { (it as? BasicEventVar)?.event?.name }.toSet()
+    private val phEventNames = variables.mapNotNull { (it as? PHEventVar)?.event?.name }.toSet()
+
+    private fun absorbingRows(rateMatrix: SimpleMatrix) =
+            (0 until rateMatrix.numRows()).filter { rateMatrix.row(it).elementSum() == 0.0 }
+
+    /**
+     * Checks that every parameter of the point belongs to a basic event of the matching kind, as any other would be
+     * silently ignored: failure and repair rates to simple basic events, rate matrices to phase-type ones.
+     */
+    private fun checkPoint(point: SweepPoint) {
+        for (name in point.failureRates.keys + point.repairRates.keys)
+            require(name in basicEventNames) {
+                if (name in phEventNames) "$name is a phase-type event, only its rate matrix can be varied"
+                else "Unknown basic event: $name"
+            }
+        for (name in point.phRateMatrices.keys)
+            require(name in phEventNames) {
+                if (name in basicEventNames) "$name is not a phase-type event, only its failure and repair rates can be varied"
+                else "Unknown phase-type event: $name"
+            }
+    }
+
+    /**
+     * Returns the modified generator used for the moment computation at the given point.
+     */
+    fun getModifiedGenerator(point: SweepPoint): TTSquareMatrix {
+        checkPoint(point)
+        val cores = ArrayList<CoreTensor>(baseCores.size)
+        for ((idx, variable) in variables.withIndex()) {
+            val prevRank = cores.lastOrNull()?.cols ?: 1
+            val isLast = idx == variables.size - 1
+            val core = when {
+                variable is BasicEventVar &&
+                        (variable.event.name in point.failureRates || variable.event.name in point.repairRates) -> {
+                    val event = variable.event
+                    val repairRate = point.repairRates[event.name] ?: event.repairRate
+                    require((repairRate > 0.0) == (event.repairRate > 0.0))
+                    { "The repairability of ${event.name} cannot change during the sweep" }
+                    val failureRate = point.failureRates[event.name] ?: event.failureRate
+                    BasicEvent(event.name, failureRate, event.dormancy, repairRate).variable.getBaseCore(prevRank, isLast)
+                }
+                variable is PHEventVar && variable.event.name in point.phRateMatrices -> {
+                    val event = variable.event
+                    val rateMatrix = point.phRateMatrices.getValue(event.name)
+                    require(rateMatrix.numRows() == event.rateMatrix.numRows() &&
+                            absorbingRows(rateMatrix) == absorbingRows(event.rateMatrix))
+                    { "The state space and the absorbing states of ${event.name} cannot change during the sweep" }
+                    PHBasicEvent(event.name, rateMatrix, event.numFailureStates).getVariable().getBaseCore(prevRank, isLast)
+                }
+                else -> baseCores[idx].copy()
+            }
+            cores.add(core)
+        }
+        val Q = assembleModifiedGenerator(cores.map { it.localRateMatrix() }, operationalIndicator, absorbingIndicator)
+        Q.tt.roundAbsolute(1e-16)
+        Q.tt.roundRelative(1e-16)
+        return Q
+    }
+
+    private fun runChain(
+            chain: List<SweepPoint>,
+            n: Int,
+            relativeThreshold: Double,
+            solver: (TTSquareMatrix, TTVector, threshold: Double, warmStart: WarmStart?) -> TTSolution,
+            onResult: (SweepResult) -> Unit
+    ): List<SweepResult> {
+        var previous = hashMapOf<String, TTSolution>()
+        return chain.map { point ->
+            val start = System.currentTimeMillis()
+            val Q = getModifiedGenerator(point)
+            val current = hashMapOf<String, TTSolution>()
+            val moment = momentChain(Q, Q.T(), pi0, n) { M, b, tag ->
+                val warmStart = previous[tag]?.let { WarmStart(it.solution.copy(), it.enrichment?.copy()) }
+                solver(M, b, relativeThreshold * b.norm(), warmStart).also { current[tag] = it }
+            }
+            previous = current
+            SweepResult(point, moment, System.currentTimeMillis() - start).also(onResult)
+        }
+    }
+
+    /**
+     * Computes the nth moment for every point of the chains. The results are returned in the order of the points, and
+     * are also passed to onResult as soon as they are available (from the thread of the chain).
+     */
+    fun run(
+            chains: List<List<SweepPoint>>,
+            n: Int,
+            relativeThreshold: Double,
+            threads: Int = Runtime.getRuntime().availableProcessors(),
+            onResult: (SweepResult) -> Unit = {},
+            solver: (TTSquareMatrix, TTVector, threshold: Double, warmStart: WarmStart?) -> TTSolution
+    ): List<List<SweepResult>> {
+        require(threads > 0) { "The number of threads must be positive!" }
+        chains.flatten().forEach(::checkPoint)
+        val pool = Executors.newFixedThreadPool(threads)
+        try {
+            val futures = chains.map { chain ->
+                pool.submit(Callable { runChain(chain, n, relativeThreshold, solver, onResult) })
+            }
+            return futures.map {
+                try {
+                    it.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            // after a failure, the chains still waiting in the queue are dropped and the running ones are interrupted
+            pool.shutdownNow()
+        }
+    }
+}
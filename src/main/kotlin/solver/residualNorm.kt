@@ -0,0 +1,127 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import org.ejml.simple.SimpleMatrix
+import java.util.*
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Computes the norm of A*x-y given the operator, the solution and the right hand side.
+ */
+typealias ResidualNormFunction = (TTSquareMatrix, TTVector, TTVector) -> Double
+
+/**
+ * Randomized estimate of a residual norm with its approximate confidence interval.
+ */
+data class ResidualEstimate(val norm: Double, val lowerBound: Double, val upperBound: Double)
+
+/**
+ * Returns the ith slice of the kth core of A*x, i.e. sum_j A_k[i,j] kron x_k[j]
+ */
+private fun matVecCoreSlice(A: TTSquareMatrix, x: TTVector, k: Int, i: Int): SimpleMatrix {
+    val ACore = A.tt.cores[k]
+    val xCore = x.tt.cores[k]
+    val n = A.modes[k]
+    var res = SimpleMatrix(ACore.rows * xCore.rows, ACore.cols * xCore.cols)
+    for (j in 0 until n) {
+        res += ACore[i * n + j].kron(xCore[j])
+    }
+    return res
+}
+
+/**
+ * Computes the norm of A*x-y core by core without forming the TT of the residual. The cores of the residual are
+ * assembled one at a time, multiplied by the triangular factor of the Gram matrix of the already processed cores and
+ * QR decomposed, so the result does not suffer from the cancellation of computing the norm as sqrt(<r, r>).
+ */
+fun computeResidualNorm(A: TTSquareMatrix, x: TTVector, y: TTVector): Double {
+    require(A.modes.contentEquals(x.modes) && x.modes.contentEquals(y.modes))
+    { "The modes of A, x and y must be identical!" }
+    val d = A.modes.size
+    var R = ones(1, 1)
+    for (k in 0 until d) {
+        val n = A.modes[k]
+        val yCore = y.tt.cores[k]
+        val slices = Array(n) { i ->
+            val AxSlice = matVecCoreSlice(A, x, k, i)
+            when {
+                d == 1 -> R * (AxSlice - yCore[i])
+                k == 0 -> R * AxSlice.concatColumns(-yCore[i])
+                k == d - 1 -> R * AxSlice.concatRows(yCore[i])
+                else -> {
+                    val split = AxSlice.numRows()
+                    (R.cols(0, split) * AxSlice).concatColumns(R.cols(split, R.numCols()) * yCore[i])
+                }
+            }
+        }
+        val rows = slices[0].numRows()
+        val unfolding = SimpleMatrix(n * rows, slices[0].numCols())
+        for ((i, slice) in slices.withIndex()) {
+            unfolding[i * rows, 0] = slice
+        }
+        if (k == d - 1) return unfolding.normF()
+        R = unfolding.qr().R
+    }
+    throw IllegalArgumentException("The TT must have at least one core!")
+}
+
+/**
+ * Estimates the norm of A*x-y by projecting the residual on random rank-1 TT vectors with independent +-1 elements.
+ * The squared projections are unbiased estimates of the squared norm, the bounds are given by their mean +- two
+ * standard errors. Each sample costs a single left-to-right contraction, so the estimate is much cheaper than the exact
+ * norm for high TT ranks, but its variance grows with the number of cores.
+ */
+fun estimateResidualNorm(A: TTSquareMatrix, x: TTVector, y: TTVector, samples: Int = 16, random: Random = Random()): ResidualEstimate {
+    require(A.modes.contentEquals(x.modes) && x.modes.contentEquals(y.modes))
+    { "The modes of A, x and y must be identical!" }
+    require(samples > 1) { "At least two samples are needed for the confidence bounds!" }
+    val squaredProjections = DoubleArray(samples) {
+        var AxProj = ones(1, 1)
+        var yProj = ones(1, 1)
+        for ((k, n) in A.modes.withIndex()) {
+            val ACore = A.tt.cores[k]
+            val g = DoubleArray(n) { if (random.nextBoolean()) 1.0 else -1.0 }
+            var AxCore = SimpleMatrix(AxProj.numCols(), ACore.cols * x.tt.cores[k].cols)
+            for (j in 0 until n) {
+                var gA = SimpleMatrix(ACore.rows, ACore.cols)
+                for (i in 0 until n) gA = gA.plus(g[i], ACore[i * n + j])
+                AxCore += gA.kron(x.tt.cores[k][j])
+            }
+            AxProj *= AxCore
+            var yCore = SimpleMatrix(yProj.numCols(), y.tt.cores[k].cols)
+            for (i in 0 until n) yCore = yCore.plus(g[i], y.tt.cores[k][i])
+            yProj *= yCore
+        }
+        val proj = AxProj[0] - yProj[0]
+        proj * proj
+    }
+    val mean = squaredProjections.average()
+    val variance = squaredProjections.sumByDouble { (it - mean) * (it - mean) } / (samples - 1)
+    val halfWidth = 2.0 * sqrt(variance / samples)
+    return ResidualEstimate(sqrt(mean), sqrt(max(0.0, mean - halfWidth)), sqrt(mean + halfWidth))
+}
+
+/**
+ * Returns a residual norm function for the stopping tests of the solvers that uses the upper bound of the randomized
+ * estimate.
+ */
+fun randomizedResidualNorm(samples: Int = 16, random: Random = Random()): ResidualNormFunction =
+        { A, x, y -> estimateResidualNorm(A, x, y, samples, random).upperBound }
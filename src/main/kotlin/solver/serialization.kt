@@ -0,0 +1,60 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import org.ejml.simple.SimpleMatrix
+import java.io.DataInput
+import java.io.DataOutput
+
+/**
+ * Writes the cores of the TT vector in binary format: the number of cores, then for each core its mode length, row and
+ * column count followed by the elements of its matrices in row-major order.
+ */
+fun TTVector.writeTo(out: DataOutput) {
+    out.writeInt(tt.cores.size)
+    for (core in tt.cores) {
+        out.writeInt(core.modeLength)
+        out.writeInt(core.rows)
+        out.writeInt(core.cols)
+        for (mat in core.data) {
+            for (idx in 0 until mat.numElements) out.writeDouble(mat[idx])
+        }
+    }
+}
+
+/**
+ * Reads a TT vector written by TTVector.writeTo.
+ */
+fun readTTVector(input: DataInput): TTVector {
+    val numCores = input.readInt()
+    val cores = ArrayList<CoreTensor>(numCores)
+    repeat(numCores) {
+        val modeLength = input.readInt()
+        val rows = input.readInt()
+        val cols = input.readInt()
+        val core = CoreTensor(modeLength, rows, cols)
+        for (i in 0 until modeLength) {
+            val mat = SimpleMatrix(rows, cols)
+            for (idx in 0 until rows * cols) mat[idx] = input.readDouble()
+            core[i] = mat
+        }
+        cores.add(core)
+    }
+    return TTVector(TensorTrain(cores))
+}
@@ -0,0 +1,251 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver.solvers
+
+import org.ejml.data.DMatrixRMaj
+import org.ejml.data.DMatrixSparseCSC
+import org.ejml.simple.SimpleMatrix
+import org.ejml.sparse.FillReducing
+import org.ejml.sparse.csc.CommonOps_DSCC
+import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC
+import solver.*
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Computes the eigenvector of A belonging to the eigenvalue closest to zero, e.g. the steady-state distribution from the
+ * transposed generator, without the bordered linear system formulation. In every core update, the Galerkin projection
+ * of A to the frame of the other cores is formed, and its smallest singular vector is computed by dense SVD if the
+ * local system has at most maxDenseSize unknowns, or by shift-invert iteration with a sparse LU decomposition
+ * otherwise. The ranks are adapted by truncating the updated cores to relative accuracy truncationThreshold and
+ * enriching them with the enrichmentRank dominant directions of the residual A*x projected to the left frame, like in
+ * AMEn. Directions that are not needed are removed again by the truncation in the next sweep. The iteration stops
+ * when ||A*x|| / ||x|| is below residualThreshold. The returned vector has unit norm and a non-negative sum of elements.
+ */
+fun ALSEigenSolve(
+        A: Array<Abstract2DCoreTensor>,
+        x0: TTVector = TTVector.ones(A.map(Abstract2DCoreTensor::modeLength).toTypedArray()),
+        residualThreshold: Double,
+        maxSweeps: Int,
+        enrichmentRank: Int = 2,
+        truncationThreshold: Double = residualThreshold * 1e-2,
+        maxDenseSize: Int = 400,
+        maxLocalIters: Int = 20,
+        verbose: Boolean = true,
+        listener: SolverListener? = null
+): TTSolution {
+    val d = A.size
+    require(x0.modes.size == d && (0 until d).all { x0.modes[it] == A[it].modeLength })
+    { "The modes of A and x0 must be identical!" }
+    val x = x0.copy()
+    val backend = AbstractCoreBackend(A)
+    val psi = Array(d + 1) { listOf(listOf(ones(1))) }
+    val phi = Array(d + 1) { listOf(listOf(ones(1))) }
+    var residNorm = Double.POSITIVE_INFINITY
+    for (swp in 0 until maxSweeps) {
+        val sweepStart = System.nanoTime()
+        val interfaceMs = DoubleArray(d)
+        for (k in d - 1 downTo 1) {
+            val orthStart = System.nanoTime()
+            x.tt.rightOrthogonalizeCore(k)
+            phi[k] = backend.computePhi(k, phi[k + 1], x.tt.cores[k], x.tt.cores[k])
+            interfaceMs[k] = elapsedMs(orthStart)
+        }
+        for (k in 0 until d) {
+            val solveStart = System.nanoTime()
+            val core = x.tt.cores[k]
+            val w0 = core.leftUnfolding()
+            w0.reshape(w0.numElements, 1)
+            val system = LocalSystem(psi[k], phi[k + 1], A[k].modeLength, A[k].nonzeroPattern(),
+                    SimpleMatrix(w0.numElements, 1), multFromRight = A[k]::multFromRight)
+            val w = if (system.size <= maxDenseSize) smallestSingularVector(system)
+                    else shiftInvert(system, w0, residualThreshold * 1e-2, maxLocalIters) ?: smallestSingularVector(system)
+            val solveMs = elapsedMs(solveStart)
+            val truncationStart = System.nanoTime()
+            val U = w.copy()
+            U.reshape(core.modeLength * core.rows, core.cols)
+            if (k == d - 1) {
+                repeat(core.modeLength) { core[it] = U.rows(it * core.rows, (it + 1) * core.rows) }
+                listener?.onCore(CoreEvent("ALS-eigen", swp, k, core.cols, system.size, 0, interfaceMs[k], solveMs,
+                        elapsedMs(truncationStart)))
+                continue
+            }
+            val svd = U.svd(true)
+            val sigmas = svd.singularValues
+            val order = sigmas.indices.sortedByDescending { sigmas[it] }
+            var rank = order.size
+            var tail = 0.0
+            while (rank > 1) {
+                val sigma = sigmas[order[rank - 1]]
+                if (tail + sigma * sigma > truncationThreshold * truncationThreshold) break
+                tail += sigma * sigma
+                rank--
+            }
+            val kept = order.take(rank)
+            var newU = SimpleMatrix(U.numRows(), rank)
+            val modifier = SimpleMatrix(rank, U.numCols())
+            for ((col, idx) in kept.withIndex()) {
+                newU[0, col] = svd.u.cols(idx, idx + 1)
+                modifier[col, 0] = svd.v.cols(idx, idx + 1).T() * sigmas[idx]
+            }
+            var newModifier = modifier
+            val kick = minOf(enrichmentRank, newU.numRows() - rank)
+            if (kick > 0) {
+                val R = leftProjectedResidual(psi[k], A[k], U, core.rows, core.cols)
+                val Rorth = R - newU * (newU.T() * R)
+                val kickSVD = Rorth.svd(true)
+                val kickOrder = kickSVD.singularValues.indices.sortedByDescending { kickSVD.singularValues[it] }
+                val Z = SimpleMatrix(newU.numRows(), kick)
+                for ((col, idx) in kickOrder.take(kick).withIndex()) Z[0, col] = kickSVD.u.cols(idx, idx + 1)
+                val qr = newU.concatColumns(Z).qr()
+                newU = qr.Q
+                newModifier = qr.R * modifier.concatRows(SimpleMatrix(kick, modifier.numCols()))
+            }
+            repeat(core.modeLength) { core[it] = newU.rows(it * core.rows, (it + 1) * core.rows) }
+            core.updateDimensions()
+            val nextCore = x.tt.cores[k + 1]
+            repeat(nextCore.modeLength) { nextCore[it] = newModifier * nextCore[it] }
+            nextCore.updateDimensions()
+            val truncationMs = elapsedMs(truncationStart)
+            val psiStart = System.nanoTime()
+            psi[k + 1] = backend.computePsi(k, psi[k], core, core)
+            listener?.onCore(CoreEvent("ALS-eigen", swp, k, core.cols, system.size, 0, interfaceMs[k] + elapsedMs(psiStart),
+                    solveMs, truncationMs))
+        }
+        residNorm = matVecNorm(A, x) / x.norm()
+        listener?.onSweep(SweepEvent("ALS-eigen", swp, residNorm, false, x.ttRanks(), elapsedMs(sweepStart)))
+        if (verbose) println("ALS-eigen sweep $swp: resnorm=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
+        if (residNorm < residualThreshold) break
+    }
+    val sign = if (x * TTVector.ones(x.modes) < 0.0) -1.0 else 1.0
+    x /= sign * x.norm()
+    return TTSolution(x, residNorm)
+}
+
+/**
+ * Runs ALSEigenSolve with an operator given in the dense TT format.
+ */
+fun ALSEigenSolve(
+        A: TTSquareMatrix,
+        x0: TTVector = TTVector.ones(A.modes),
+        residualThreshold: Double,
+        maxSweeps: Int,
+        enrichmentRank: Int = 2,
+        truncationThreshold: Double = residualThreshold * 1e-2,
+        maxDenseSize: Int = 400,
+        verbose: Boolean = true,
+        listener: SolverListener? = null
+): TTSolution {
+    val cores = Array<Abstract2DCoreTensor>(A.modes.size) { k ->
+        val core = A.tt.cores[k]
+        val n = A.modes[k]
+        Sparse2DCoreTensor(n, core.rows, core.cols, Array(n) { i -> Array(n) { j -> core[i, j].toSparse() } })
+    }
+    return ALSEigenSolve(cores, x0, residualThreshold, maxSweeps, enrichmentRank, truncationThreshold, maxDenseSize,
+            verbose = verbose, listener = listener)
+}
+
+/**
+ * Computes ||A*x|| with a left-to-right QR sweep over the cores of A*x, which, unlike computeResidualNorm with a zero
+ * right hand side, does not lose the small norms near convergence to cancellation.
+ */
+private fun matVecNorm(A: Array<Abstract2DCoreTensor>, x: TTVector): Double {
+    var R = ones(1, 1)
+    for ((k, ACore) in A.withIndex()) {
+        val n = ACore.modeLength
+        val denseCore = ACore.toDenseCore()
+        val xCore = x.tt.cores[k]
+        val pattern = ACore.nonzeroPattern()
+        val rows = R.numRows()
+        val unfolding = SimpleMatrix(n * rows, ACore.cols * xCore.cols)
+        for (i in 0 until n) {
+            var slice = SimpleMatrix(ACore.rows * xCore.rows, ACore.cols * xCore.cols)
+            for (j in pattern[i]) slice += denseCore[i * n + j].kron(xCore[j])
+            unfolding[i * rows, 0] = R * slice
+        }
+        if (k == A.size - 1) return unfolding.normF()
+        R = unfolding.qr().R
+    }
+    return 0.0
+}
+
+/**
+ * Returns the left unfolding of the kth core of A*x projected to the left frame of x, with the operator and solution
+ * ranks kept open on the right. Its columns span the left unfolding of the residual with the same left frame, so its
+ * dominant left singular vectors are used for enriching the solution core. U is the left unfolding of the solution core.
+ */
+private fun leftProjectedResidual(psi: TPhi, ACore: Abstract2DCoreTensor, U: SimpleMatrix, rx: Int, rxNext: Int): SimpleMatrix {
+    val n = ACore.modeLength
+    val RANext = ACore.cols
+    // (beta_prev, gamma_prev) x a
+    val psiMat = SimpleMatrix(rx * rx, ACore.rows)
+    for (beta_prev in 0 until rx)
+        for (gamma_prev in 0 until rx)
+            psiMat[beta_prev * rx + gamma_prev, 0] = psi[beta_prev][gamma_prev]
+    // (i, beta_prev) x (a', gamma)
+    val res = SimpleMatrix(n * rx, RANext * rxNext)
+    val pattern = ACore.nonzeroPattern()
+    for (i in pattern.indices) {
+        for (j in pattern[i]) {
+            // (beta_prev, gamma_prev) x a'
+            val PA = ACore.multFromLeft(i, j, psiMat)
+            val xCore = U.rows(j * rx, (j + 1) * rx)
+            for (beta_prev in 0 until rx) {
+                // a' x gamma
+                val block = PA.rows(beta_prev * rx, (beta_prev + 1) * rx).T() * xCore
+                block.reshape(1, block.numElements)
+                res[i * rx + beta_prev, 0] = res.rows(i * rx + beta_prev, i * rx + beta_prev + 1) + block
+            }
+        }
+    }
+    return res
+}
+
+private fun smallestSingularVector(system: LocalSystem): SimpleMatrix {
+    val svd = system.toDenseMatrix().svd()
+    val sigmas = svd.singularValues
+    val idx = sigmas.indices.minBy { sigmas[it] } ?: 0
+    return svd.v.cols(idx, idx + 1)
+}
+
+/**
+ * Inverse iteration with a small shift, started from w0. Returns null if the shifted matrix cannot be factorized.
+ */
+private fun shiftInvert(system: LocalSystem, w0: SimpleMatrix, tolerance: Double, maxIters: Int): SimpleMatrix? {
+    val B = system.toSparseMatrix()
+    var scale = 0.0
+    for (idx in 0 until B.nz_length) scale = max(scale, abs(B.nz_values[idx]))
+    val shift = 1e-8 * max(scale, 1.0)
+    val shifted = system.toSparseMatrix(shift)
+    val solver = LinearSolverFactory_DSCC.lu(FillReducing.NONE)
+    if (!solver.setA(shifted)) return null
+    var w = if (w0.normF() > 0.0) w0 / w0.normF() else ones(w0.numRows(), 1) / sqrt(w0.numRows().toDouble())
+    repeat(maxIters) {
+        val next = DMatrixRMaj(w.numRows(), 1)
+        solver.solve(w.copy().ddrm, next)
+        if (next.data.any { !it.isFinite() }) return null
+        w = SimpleMatrix(next)
+        w /= w.normF()
+        val Bw = DMatrixRMaj(w.numRows(), 1)
+        CommonOps_DSCC.mult(B, w.ddrm, Bw)
+        if (SimpleMatrix(Bw).normF() < tolerance) return w
+    }
+    return w
+}
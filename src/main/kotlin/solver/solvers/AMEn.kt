@@ -24,7 +24,6 @@ import solver.*
 import java.util.*
 import kotlin.math.max
 import kotlin.math.min
-import kotlin.math.round
 import kotlin.math.sqrt
 
 typealias TPhi = List<List<SimpleMatrix>>
@@ -35,6 +34,8 @@ enum class AmenStoppingCriterion {
 
 // Quick non-optimized prototype
 // based on the amen_solve2 function of the TT matlab toolbox
+// With parallelSegments > 1, contiguous segments of the cores are updated concurrently, see SegmentFrames, on threads
+// or on the given worker processes.
 fun AMEnALSSolve(
         A: TTSquareMatrix,
         y: TTVector,
@@ -48,26 +49,130 @@ fun AMEnALSSolve(
         truncateBasedOnResidual: Boolean = true,
         useApproxResidualForStopping: Boolean = false,
         z0: TTVector? = null,
-        useDirectForSmall: Boolean = false
+        useDirectForSmall: Boolean = false,
+        useLocalPreconditioner: Boolean = false,
+        localSolverPolicy: AdaptiveLocalSolverPolicy? = null,
+        enrichmentPolicy: AdaptiveEnrichmentPolicy? = null,
+        residualNorm: ResidualNormFunction = ::computeResidualNorm,
+        operator: AMEnOperator = AMEnOperator(A),
+        listener: SolverListener? = null,
+        checkpointer: Checkpointer? = null,
+        parallelSegments: Int = 1,
+        workers: SegmentWorkerPool? = null,
+        maxRank: Int = Int.MAX_VALUE,
+        preconditioner: LeftPreconditionedOperator? = null
 ): TTSolution {
-    val phiA = Array(A.modes.size + 1) { listOf(listOf(ones(1))) }
-    val phiy = Array(A.modes.size + 1) { listOf(listOf(ones(1))) }
-    val phizA = Array(A.modes.size + 1) { listOf(listOf(ones(1))) }
-    val phizy = Array(A.modes.size + 1) { listOf(listOf(ones(1))) }
-    val z = z0 ?: TTVector.rand(y.modes, enrichmentRank, 0.0, 1.0)
-
-    var zAt = SimpleMatrix(0, 0)
-    var x = x0
+    require(operator.A === A) { "The prepared operator must belong to A!" }
+    require(preconditioner == null || preconditioner.A === A) { "The preconditioned operator must belong to A!" }
+    // with a preconditioner, the local systems are the projections of P*A, the residual norm is that of the original system
+    val (system, rhs) = if (preconditioner == null) Pair(operator, y) else Pair(preconditioner.operator, preconditioner.rhs(y))
+    val residualScale = if (preconditioner == null) 1.0 else rhs.norm() / y.norm()
+    return AMEnALSSolve(system, rhs, x0, residualThreshold, maxSweeps, enrichmentRank,
+            normalize = normalize,
+            verbose = verbose,
+            residDamp = residDamp,
+            truncateBasedOnResidual = truncateBasedOnResidual,
+            useApproxResidualForStopping = useApproxResidualForStopping,
+            z0 = z0,
+            useDirectForSmall = useDirectForSmall,
+            useLocalPreconditioner = useLocalPreconditioner,
+            localSolverPolicy = localSolverPolicy,
+            enrichmentPolicy = enrichmentPolicy,
+            residualNorm = { residualNorm(A, it, y) },
+            listener = listener,
+            checkpointer = checkpointer,
+            parallelSegments = parallelSegments,
+            workers = workers,
+            maxRank = maxRank,
+            residualScale = residualScale
+    )
+}
+
+/**
+ * The AMEn engine behind every AMEn-ALS solve path. The operator is only accessed through the backend, see AMEnBackend.
+ * @param normalizationSet with normalize, the solution is normalized to sum(normalizationSet .* x) = 1 instead of
+ * sum(x) = 1, e.g. to the sum over the reachable states
+ * @param normalizationFactor scales the normalization constraint of the local systems
+ * @param residualNorm returns the residual norm of an iterate for the stopping criterion, ||A*x-y|| by default
+ * @param name the name of the solver in the messages, the listener events and the checkpoints
+ * @param leastSquaresLocalSolve solve the local systems in the least-squares sense through their normal equations
+ * instead of the Galerkin ones, see LocalSystem.solveLeastSquares, e.g. for operators with singular projections
+ * @param residualScale the ratio of the residual norms of the solved system and of the one measured by residualNorm,
+ * e.g. ||P*y||/||y|| for the left-preconditioned system P*A*x = P*y. The thresholds of the local solves and the
+ * truncation, and the approximate residual norm from z are scaled with it
+ */
+fun AMEnALSSolve(
+        backend: AMEnBackend,
+        y: TTVector,
+        x0: TTVector = TTVector.ones(y.modes),
+        residualThreshold: Double,
+        maxSweeps: Int,
+        enrichmentRank: Int,
+        normalize: Boolean = false,
+        verbose: Boolean = true,
+        residDamp: Double = 1e-2,
+        truncateBasedOnResidual: Boolean = true,
+        useApproxResidualForStopping: Boolean = false,
+        z0: TTVector? = null,
+        normalizationSet: TTVector? = null,
+        normalizationFactor: Double = 1.0,
+        useDirectForSmall: Boolean = false,
+        useLocalPreconditioner: Boolean = false,
+        localSolverPolicy: AdaptiveLocalSolverPolicy? = null,
+        enrichmentPolicy: AdaptiveEnrichmentPolicy? = null,
+        residualNorm: (TTVector) -> Double = { backend.residualNorm(it, y) },
+        listener: SolverListener? = null,
+        checkpointer: Checkpointer? = null,
+        parallelSegments: Int = 1,
+        workers: SegmentWorkerPool? = null,
+        maxRank: Int = Int.MAX_VALUE,
+        name: String = "AMEn-ALS",
+        leastSquaresLocalSolve: Boolean = false,
+        residualScale: Double = 1.0
+): TTSolution {
+    require(maxRank > 0) { "The maximal rank must be positive!" }
+    require(residualScale > 0.0) { "The residual scale must be positive!" }
+    require(backend.modes.contentEquals(y.modes)) { "The modes of the operator and y must be identical!" }
+    require(workers == null || backend is AMEnOperator) { "Worker processes can only be used with a TTSquareMatrix operator!" }
+    val phiA = Array(y.modes.size + 1) { listOf(listOf(ones(1))) }
+    val phiy = Array(y.modes.size + 1) { listOf(listOf(ones(1))) }
+    val phizA = Array(y.modes.size + 1) { listOf(listOf(ones(1))) }
+    val phizy = Array(y.modes.size + 1) { listOf(listOf(ones(1))) }
+    val systemKey = checkpointer?.let { checkpointKey(backend.fingerprint(), y) }
+    val restored = if (checkpointer != null && systemKey != null) checkpointer.load(name, systemKey, y.modes) else null
+    if (verbose && restored != null) println("$name: resuming from the checkpoint before sweep ${restored.nextSweep}")
+    val residuals = ArrayList(restored?.residuals ?: listOf())
+    var z = restored?.z ?: z0 ?: TTVector.rand(y.modes, enrichmentRank, 0.0, 1.0)
+    // set if the ranks of z were increased, so its interfaces of the previous sweep cannot be used
+    var zResized = false
+
+    val x = restored?.x ?: x0
     val d = x.modes.size
-    for (swp in 0 until maxSweeps) {
+    var previousRanks = x.ttRanks()
+    var truncationError = 0.0
+    // the first orthogonalization of a sweep updates z using the left interfaces of the previous sweep
+    if (restored != null) for (i in 0 until d - 1) {
+        phizA[i + 1] = backend.computePsi(i, phizA[i], z.tt.cores[i], x.tt.cores[i])
+        phizy[i + 1] = computePsi(phizy[i], z.tt.cores[i], null, y.tt.cores[i])
+    }
+    val settings = AMEnCoreSettings(name, residualThreshold * residualScale, residDamp, enrichmentRank, maxRank, normalize,
+            normalizationFactor, normalizationSet, truncateBasedOnResidual, useDirectForSmall, useLocalPreconditioner,
+            leastSquaresLocalSolve)
+    fun updateCore(swp: Int, i: Int, last: Boolean, x: TTVector, z: TTVector, phiA: Array<TPhi>, phiy: Array<TPhi>,
+                   phizA: Array<TPhi>, phizy: Array<TPhi>, interfaceMs: Double) =
+            updateAMEnCore(backend, y, settings, localSolverPolicy, listener, swp, i, last, x, z, phiA, phiy, phizA, phizy, interfaceMs)
+
+    for (swp in (restored?.nextSweep ?: 0) until maxSweeps) {
+        val sweepStart = System.nanoTime()
+        val interfaceMs = DoubleArray(d)
+        var truncation2 = 0.0
         // orthogonalization
         for (i in d - 1 downTo 1) {
-            if (swp > 0) {
+            val orthStart = System.nanoTime()
+            if (swp > 0 && !zResized) {
                 val xCoreVect = x.tt.cores[i].leftUnfolding()
                 xCoreVect.reshape(xCoreVect.numElements, 1)
-                zAt = projectMatVec(phizA[i], A.tt.cores[i], phizA[i + 1], xCoreVect)
-                val yCoreVect = y.tt.cores[i].leftUnfolding()
-                yCoreVect.reshape(yCoreVect.numElements, 1)
+                val zAt = backend.projectMatVec(i, phizA[i], phizA[i + 1], xCoreVect)
                 val zy = projectVector(phizy[i], phizy[i + 1], y.tt.cores[i])
                 val znew = zy - zAt
                 val rz1 = z.tt.cores[i].rows
@@ -80,10 +185,11 @@ fun AMEnALSSolve(
                         }
                     }
                 }
-                val V = znewReshaped.svd(true).v.T()
+                // only the leading right singular vectors are kept, the rank of z is at most the enrichment rank
+                val V = znewReshaped.truncatedSVD(min(settings.enrichmentRank, min(rz1, z.modes[i] * rz2))).V.T()
                 val currZCore = z.tt.cores[i]
                 for (n in 0 until currZCore.modeLength) {
-                    currZCore[n] = V[0..V.numRows(), 0..rz2]
+                    currZCore[n] = V[0..V.numRows(), n * rz2..(n + 1) * rz2]
                 }
                 currZCore.updateDimensions()
             } else {
@@ -92,212 +198,320 @@ fun AMEnALSSolve(
 
             x.tt.rightOrthogonalizeCore(i)
             val cr = x.tt.cores[i]
-            phiA[i] = computePhi(phiA[i + 1], cr, A.tt.cores[i], cr)
+            phiA[i] = backend.computePhi(i, phiA[i + 1], cr, cr)
             phiy[i] = computePhi(phiy[i + 1], cr, null, y.tt.cores[i])
 
-            phizA[i] = computePhi(phizA[i + 1], z.tt.cores[i], A.tt.cores[i], x.tt.cores[i])
+            phizA[i] = backend.computePhi(i, phizA[i + 1], z.tt.cores[i], x.tt.cores[i])
             phizy[i] = computePhi(phizy[i + 1], z.tt.cores[i], null, y.tt.cores[i])
+            interfaceMs[i] = elapsedMs(orthStart)
         }
 
-        for (i in 0 until d) {
-            val phi1 = phiA[i]
-            val phi2 = phiA[i + 1]
-            val A1 = A.tt.cores[i]
-            val y1 = y.tt.cores[i]
-            var rhs = projectVector(phiy[i], phiy[i + 1], y1)
-            if (normalize) rhs = rhs.concatRows(ones(1))
-            val normalizer = if (normalize) computeNormalizer(x, i) else null
-            applyALSStep(
-                    A,
-                    x,
-                    y,
-                    i,
-                    phi1,
-                    phi2,
-                    residualThreshold * residDamp,
-                    normalizer = normalizer,
-                    useDirectForSmall = useDirectForSmall
-            )
-
-            //truncation
-            val newCore = x.tt.cores[i]
-            val fullSVD = newCore.leftUnfolding().svd(true)
-            var newU = fullSVD.u
-            var newS = fullSVD.w
-            var newV = fullSVD.v
-            if (i < d - 1) {
-                if (truncateBasedOnResidual) {
-                    while (true) {
-                        val u = newU[0..SimpleMatrix.END, 0..newU.numCols() - 1]
-                        val s = newS[0..newS.numRows() - 1, 0..newS.numCols() - 1]
-                        val v = newV[0..SimpleMatrix.END, 0..newV.numCols() - 1]
-                        val currSol = u * s * v.T()
-                        currSol.reshape(currSol.numElements, 1)
-                        var product = projectMatVec(phi1, A.tt.cores[i], phi2, currSol)
-                        if (normalize)
-                            product = product.concatRows(normalizer!! * currSol)
-                        val res = rhs - product
-                        if (res.vecNorm2() > residualThreshold * residDamp || u.numCols()<=1) break
-                        newU = u
-                        newS = s
-                        newV = v
-                    }
-                } else {
-                    val origSize = fullSVD.singularValues.size
-                    var maxIdx = origSize - 1
-                    var sigma2Sum = 0.0
-                    val delta = residualThreshold * residDamp
-                    val delta2 = delta * delta
-                    for (j in origSize - 1 downTo 1) {
-                        val sigma = fullSVD.singularValues[j]
-                        val sigma2 = sigma * sigma
-                        if (sigma2Sum + sigma2 < delta2) {
-                            maxIdx--
-                            sigma2Sum += sigma2
-                        } else break
-                    }
-                    maxIdx = max(0, maxIdx)
-                    newU = fullSVD.u[0..SimpleMatrix.END, 0..maxIdx + 1]
-                    newS = fullSVD.w[0..maxIdx + 1, 0..maxIdx + 1]
-                    newV = fullSVD.v[0..SimpleMatrix.END, 0..maxIdx + 1]
-                }
+        val segments = sweepSegments(d, parallelSegments, swp % 2 == 1)
+        if (segments.size == 1) {
+            for (i in 0 until d) truncation2 += updateCore(swp, i, i == d - 1, x, z, phiA, phiy, phizA, phizy, interfaceMs[i])
+        } else {
+            // left interfaces at the segment starts, the right ones are the ones of the orthogonalization
+            val xFrames = SegmentFrames(x, segments)
+            val zFrames = SegmentFrames(z, segments)
+            val psiA = phiA.copyOf()
+            val psiy = phiy.copyOf()
+            val psizA = phizA.copyOf()
+            val psizy = phizy.copyOf()
+            for (i in 0 until segments.last().first) {
+                val xc = xFrames.left.tt.cores[i]
+                val zc = zFrames.left.tt.cores[i]
+                psiA[i + 1] = backend.computePsi(i, psiA[i], xc, xc)
+                psiy[i + 1] = computePsi(psiy[i], xc, null, y.tt.cores[i])
+                psizA[i + 1] = backend.computePsi(i, psizA[i], zc, xc)
+                psizy[i + 1] = computePsi(psizy[i], zc, null, y.tt.cores[i])
             }
-
-            val modifier = newS * newV.T()
-
-            val truncSol = newU * newS * newV.T()
-            truncSol.reshape(truncSol.numElements, 1)
-            // update approximate residual
-            val crzy = projectVector(phizy[i], phizy[i + 1], y1)
-            val crzAt = projectMatVec(phizA[i], A1, phizA[i + 1], truncSol)
-            val crznew = crzy - crzAt
-            assert(newCore.modeLength * z.ttRanks()[i] * z.ttRanks()[i + 1] == crznew.numElements) //TODO: for debug purposes; remove it once tested
-            crznew.reshape(newCore.modeLength * z.ttRanks()[i], z.ttRanks()[i + 1])
-            val svd = crznew.svd(true)
-            val rank = min(enrichmentRank, svd.u.numCols())
-            val kickU = svd.u.cols(0, rank)
-            val kickSV = svd.w[0..rank, 0..rank] * svd.v.cols(0, rank).T()
-            val zCurrCore = z.tt.cores[i]
-            if (i < d - 1) {
-                for (j in 0 until zCurrCore.modeLength) {
-                    zCurrCore[j] = kickU.rows(j * z.ttRanks()[i], (j + 1) * z.ttRanks()[i])
-                }
-                zCurrCore.updateDimensions()
-                //TODO: this may be redundant, as the next core will be recomputed in the next step
-                val zNextCore = z.tt.cores[i + 1]
-                for (j in 0 until zNextCore.modeLength) {
-                    zNextCore[j] = kickSV * zNextCore[j]
-                }
-                zNextCore.updateDimensions()
-
-                // enrichment
-                val yVect = newU*modifier
-                yVect.reshape(yVect.numElements, 1)
-                val leftresid = projectMatVec(phiA[i], A1, phizA[i + 1], yVect)
-                val lefty = projectVector(phiy[i], phizy[i + 1], y1)
-                val uk = lefty - leftresid
-                uk.reshape(newU.numRows(), uk.numElements/newU.numRows())
-
-                newU = newU.concatColumns(uk)
-                val qr = newU.qr()
-                newU = qr.Q
-                val newModifier = qr.R * modifier.concatRows(SimpleMatrix(uk.numCols(), modifier.numRows()))
-                val nextMatData = x.tt.cores[i + 1].data
-                for ((j, mat) in nextMatData.withIndex()) {
-                    nextMatData[j] = newModifier * mat
-                }
-                x.tt.cores[i + 1].updateDimensions()
-
-                repeat(newCore.modeLength) {
-                    newCore.data[it] = newU[it * newCore.rows..(it + 1) * newCore.rows, 0..newU.numCols()]
-                }
-                newCore.updateDimensions()
-
-                phiA[i + 1] = computePsi(phiA[i], newCore, A.tt.cores[i], newCore)
-                phiy[i + 1] = computePsi(phiy[i], newCore, null, y.tt.cores[i])
-
-                // update z and its projections
-                phizA[i + 1] = computePsi(phizA[i], zCurrCore, A.tt.cores[i], newCore)
-                phizy[i + 1] = computePsi(phizy[i], zCurrCore, null, y.tt.cores[i])
-            } else {
-                for (j in 0 until zCurrCore.modeLength) {
-                    zCurrCore[j] = crznew.rows(j * z.ttRanks()[i], (j + 1) * z.ttRanks()[i])
+            val tasks = segments.mapIndexed { k, segment ->
+                val s = segment.first
+                SegmentTask(swp, segment, xFrames.segmentTrain(k), zFrames.segmentTrain(k),
+                        phiA.copyOf().also { it[s] = psiA[s] }, phiy.copyOf().also { it[s] = psiy[s] },
+                        phizA.copyOf().also { it[s] = psizA[s] }, phizy.copyOf().also { it[s] = psizy[s] })
+            }
+            if (workers != null)
+                workers.run(backend as AMEnOperator, y, settings, localSolverPolicy, tasks)
+            else
+                forEachSegment(segments) { k, _ -> tasks[k].run(backend, y, settings, localSolverPolicy, listener, interfaceMs) }
+            truncation2 += tasks.sumByDouble { it.truncation2 }
+            xFrames.glue(tasks.map { it.x })
+            zFrames.glue(tasks.map { it.z })
+            // reconciliation: a sequential sweep over the glued trains that solves only the last cores of the segments,
+            // which corrects the gluing and enriches the ranks at the boundaries frozen in the segments
+            for (i in d - 1 downTo 1) {
+                x.tt.rightOrthogonalizeCore(i)
+                z.tt.rightOrthogonalizeCore(i)
+                val xc = x.tt.cores[i]
+                val zc = z.tt.cores[i]
+                phiA[i] = backend.computePhi(i, phiA[i + 1], xc, xc)
+                phiy[i] = computePhi(phiy[i + 1], xc, null, y.tt.cores[i])
+                phizA[i] = backend.computePhi(i, phizA[i + 1], zc, xc)
+                phizy[i] = computePhi(phizy[i + 1], zc, null, y.tt.cores[i])
+            }
+            val segmentEnds = segments.map { it.last }.toSet()
+            for (i in 0 until d) {
+                if (i in segmentEnds) {
+                    truncation2 += updateCore(swp, i, i == d - 1, x, z, phiA, phiy, phizA, phizy, 0.0)
+                } else {
+                    x.tt.leftOrthogonalizeCore(i)
+                    z.tt.leftOrthogonalizeCore(i)
+                    val xc = x.tt.cores[i]
+                    val zc = z.tt.cores[i]
+                    phiA[i + 1] = backend.computePsi(i, phiA[i], xc, xc)
+                    phiy[i + 1] = computePsi(phiy[i], xc, null, y.tt.cores[i])
+                    phizA[i + 1] = backend.computePsi(i, phizA[i], zc, xc)
+                    phizy[i + 1] = computePsi(phizy[i], zc, null, y.tt.cores[i])
                 }
-                zCurrCore.updateDimensions()
-
-                // no need to change solution core here;
-                // already updated by applyALSStep, and no enrichment is needed for the last core
             }
         }
 
+        truncationError = sqrt(truncation2)
         if (useApproxResidualForStopping) {
-            val residNorm = z.norm()
-            if (verbose) println("AMEn-ALS sweep ${swp}: resnorm~=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
-            if (residNorm < residualThreshold) return TTSolution(x, residNorm)
+            val residNorm = z.norm() / residualScale
+            residuals.add(residNorm)
+            listener?.onSweep(SweepEvent(name, swp, residNorm, true, x.ttRanks(), elapsedMs(sweepStart)))
+            if (verbose) println("$name sweep ${swp}: resnorm~=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}${if (maxRank < Int.MAX_VALUE) " truncation error=$truncationError" else ""}")
+            if (residNorm < residualThreshold) {
+                if (checkpointer != null && systemKey != null) checkpointer.remove(name, systemKey)
+                return TTSolution(x, residNorm, z, truncationError)
+            }
         } else {
-            val resid = (A*x-y)
-            val residNorm = resid.norm()
-            if (verbose) println("AMEn-ALS sweep ${swp}: resnorm=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
-            if (residNorm < residualThreshold)
-                return TTSolution(x, residNorm)
+            val residNorm = residualNorm(x)
+            residuals.add(residNorm)
+            listener?.onSweep(SweepEvent(name, swp, residNorm, false, x.ttRanks(), elapsedMs(sweepStart)))
+            if (verbose) println("$name sweep ${swp}: resnorm=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}${if (maxRank < Int.MAX_VALUE) " truncation error=$truncationError" else ""}")
+            if (residNorm < residualThreshold) {
+                if (checkpointer != null && systemKey != null) checkpointer.remove(name, systemKey)
+                return TTSolution(x, residNorm, z, truncationError)
+            }
+        }
+        zResized = false
+        if (enrichmentPolicy != null && residuals.size > 1) {
+            val rank = settings.enrichmentRank
+            settings.enrichmentRank = enrichmentPolicy.next(rank, residuals[residuals.size - 2], residuals.last(),
+                    previousRanks, x.ttRanks())
+            if (settings.enrichmentRank > z.ttRanks().max()!!) {
+                // new random directions for the residual approximation, fitted in the next sweep
+                val extra = TTVector.rand(y.modes, settings.enrichmentRank - rank, 0.0, 1.0)
+                z = z + extra * (z.norm() / extra.norm())
+                zResized = true
+            }
         }
+        previousRanks = x.ttRanks()
+        if (checkpointer != null && systemKey != null)
+            checkpointer.save(SolverCheckpoint(name, systemKey, swp + 1, x, z, residuals))
     }
 
     if (useApproxResidualForStopping) {
-        val residNorm = z.norm()
-        if (verbose) println("AMEn-ALS exit: resnorm~=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
-        return TTSolution(x, residNorm)
+        val residNorm = z.norm() / residualScale
+        if (verbose) println("$name exit: resnorm~=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
+        return TTSolution(x, residNorm, z, truncationError)
     } else {
-        val residNorm = (A * x - y).norm()
-        if (verbose) println("AMEn-ALS exit: resnorm=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
-        return TTSolution(x, residNorm)
+        val residNorm = residualNorm(x)
+        if (verbose) println("$name exit: resnorm=$residNorm threshold=$residualThreshold maxrank=${x.ttRanks().max()}")
+        return TTSolution(x, residNorm, z, truncationError)
     }
 }
 
-private fun computePsi(PsiPrev: TPhi, xCore: CoreTensor, ACore: CoreTensor?, yCore: CoreTensor): TPhi {
-    val res = arrayListOf<ArrayList<SimpleMatrix>>()
-    for (beta in 0 until xCore.cols) {
-        res.add(arrayListOf<SimpleMatrix>())
-        for (gamma in 0 until yCore.cols) {
-            var M = SimpleMatrix(1, ACore?.cols ?: 1)
-            for (beta_prev in 0 until xCore.rows)
-                for (gamma_prev in 0 until yCore.rows)
-                    if (ACore == null)
-                        for (i in 0 until xCore.modeLength)
-                            M += PsiPrev[beta_prev][gamma_prev] * (xCore[i][beta_prev, beta] * yCore[i][gamma_prev, gamma])
-                    else {
-                        for (i in 0 until xCore.modeLength)
-                            for (j in 0 until yCore.modeLength) {
-                                M += PsiPrev[beta_prev][gamma_prev] * ACore[i, j] * (xCore[i][beta_prev, beta] * yCore[j][gamma_prev, gamma])
-                            }
-                    }
-            res.last().add(M)
+/**
+ * The settings of AMEnALSSolve used by the core updates
+ */
+internal class AMEnCoreSettings(
+        val name: String,
+        val residualThreshold: Double,
+        val residDamp: Double,
+        var enrichmentRank: Int,
+        val maxRank: Int,
+        val normalize: Boolean,
+        val normalizationFactor: Double,
+        val normalizationSet: TTVector?,
+        val truncateBasedOnResidual: Boolean,
+        val useDirectForSmall: Boolean,
+        val useLocalPreconditioner: Boolean,
+        val leastSquaresLocalSolve: Boolean
+)
+
+/**
+ * Updates the ith core of x and z in a sweep of AMEnALSSolve with the given interfaces: the local solve, the truncation,
+ * the update of the residual approximation z and the enrichment. The last core of a sweep is not truncated and not
+ * enriched, and it is the only core whose update leaves the next core unchanged. The ranks are capped at maxRank,
+ * keeping room for the enrichment. Returns the sum of the squares of the singular values dropped by the truncation.
+ */
+internal fun updateAMEnCore(
+        backend: AMEnBackend,
+        y: TTVector,
+        settings: AMEnCoreSettings,
+        localSolverPolicy: AdaptiveLocalSolverPolicy?,
+        listener: SolverListener?,
+        swp: Int,
+        i: Int,
+        last: Boolean,
+        x: TTVector,
+        z: TTVector,
+        phiA: Array<TPhi>,
+        phiy: Array<TPhi>,
+        phizA: Array<TPhi>,
+        phizy: Array<TPhi>,
+        interfaceMs: Double
+): Double {
+    val residualThreshold = settings.residualThreshold
+    val residDamp = settings.residDamp
+    val normalize = settings.normalize
+    val normalizationFactor = settings.normalizationFactor
+    val truncateBasedOnResidual = settings.truncateBasedOnResidual
+    val enrichmentRank = settings.enrichmentRank
+
+    val solveStart = System.nanoTime()
+    val phi1 = phiA[i]
+    val phi2 = phiA[i + 1]
+    val y1 = y.tt.cores[i]
+    val F = projectVector(phiy[i], phiy[i + 1], y1)
+    val rhs = if (normalize) F.concatRows(normalizationFactor * ones(1)) else F
+    val normalizer = if (normalize) normalizationFactor * computeNormalizer(x, i, settings.normalizationSet) else null
+    val localSolve = applyALSStep(
+            backend,
+            x,
+            i,
+            phi1,
+            phi2,
+            F,
+            residualThreshold * residDamp,
+            normalizer = normalizer,
+            normalizationFactor = normalizationFactor,
+            useDirectForSmall = settings.useDirectForSmall,
+            useLocalPreconditioner = settings.useLocalPreconditioner,
+            localSolverPolicy = localSolverPolicy,
+            leastSquares = settings.leastSquaresLocalSolve
+    )
+    val solveMs = elapsedMs(solveStart)
+    val truncationStart = System.nanoTime()
+    var psiMs = 0.0
+
+    //truncation
+    val newCore = x.tt.cores[i]
+    val fullSVD = newCore.leftUnfolding().svd(true)
+    var newU = fullSVD.u
+    var newS = fullSVD.w
+    var newV = fullSVD.v
+    if (!last) {
+        if (truncateBasedOnResidual) {
+            while (newU.numCols() > 1) {
+                val u = newU[0..SimpleMatrix.END, 0..newU.numCols() - 1]
+                val s = newS[0..newS.numRows() - 1, 0..newS.numCols() - 1]
+                val v = newV[0..SimpleMatrix.END, 0..newV.numCols() - 1]
+                val currSol = u * s * v.T()
+                currSol.reshape(currSol.numElements, 1)
+                var product = backend.projectMatVec(i, phi1, phi2, currSol)
+                if (normalize)
+                    product = product.concatRows(normalizer!! * currSol)
+                val res = rhs - product
+                if (res.vecNorm2() > residualThreshold * residDamp) break
+                newU = u
+                newS = s
+                newV = v
+            }
+        } else {
+            val origSize = fullSVD.singularValues.size
+            var maxIdx = origSize - 1
+            var sigma2Sum = 0.0
+            val delta = residualThreshold * residDamp
+            val delta2 = delta * delta
+            for (j in origSize - 1 downTo 1) {
+                val sigma = fullSVD.singularValues[j]
+                val sigma2 = sigma * sigma
+                if (sigma2Sum + sigma2 < delta2) {
+                    maxIdx--
+                    sigma2Sum += sigma2
+                } else break
+            }
+            maxIdx = max(0, maxIdx)
+            newU = fullSVD.u[0..SimpleMatrix.END, 0..maxIdx + 1]
+            newS = fullSVD.w[0..maxIdx + 1, 0..maxIdx + 1]
+            newV = fullSVD.v[0..SimpleMatrix.END, 0..maxIdx + 1]
+        }
+        val cap = max(1, settings.maxRank - enrichmentRank)
+        if (newU.numCols() > cap) {
+            newU = newU.cols(0, cap)
+            newS = newS[0..cap, 0..cap]
+            newV = newV.cols(0, cap)
         }
     }
-    return res
-}
+    var truncation2 = 0.0
+    for (j in newU.numCols() until fullSVD.singularValues.size)
+        truncation2 += fullSVD.singularValues[j] * fullSVD.singularValues[j]
+
+    val modifier = newS * newV.T()
+
+    val truncSol = newU * newS * newV.T()
+    truncSol.reshape(truncSol.numElements, 1)
+    // update approximate residual
+    val crzy = projectVector(phizy[i], phizy[i + 1], y1)
+    val crzAt = backend.projectMatVec(i, phizA[i], phizA[i + 1], truncSol)
+    val crznew = crzy - crzAt
+    crznew.reshape(newCore.modeLength * z.ttRanks()[i], z.ttRanks()[i + 1])
+    val svd = crznew.truncatedSVD(min(enrichmentRank, min(crznew.numRows(), crznew.numCols())))
+    val kickU = svd.U
+    val kickSV = svd.S * svd.V.T()
+    val zCurrCore = z.tt.cores[i]
+    if (!last) {
+        for (j in 0 until zCurrCore.modeLength) {
+            zCurrCore[j] = kickU.rows(j * z.ttRanks()[i], (j + 1) * z.ttRanks()[i])
+        }
+        zCurrCore.updateDimensions()
+        //TODO: this may be redundant, as the next core will be recomputed in the next step
+        val zNextCore = z.tt.cores[i + 1]
+        for (j in 0 until zNextCore.modeLength) {
+            zNextCore[j] = kickSV * zNextCore[j]
+        }
+        zNextCore.updateDimensions()
+
+        // enrichment
+        val yVect = newU*modifier
+        yVect.reshape(yVect.numElements, 1)
+        val leftresid = backend.projectMatVec(i, phiA[i], phizA[i + 1], yVect)
+        val lefty = projectVector(phiy[i], phizy[i + 1], y1)
+        var uk = lefty - leftresid
+        uk.reshape(newU.numRows(), uk.numElements/newU.numRows())
+        val room = settings.maxRank - newU.numCols()
+        if (uk.numCols() > room) uk = uk.cols(0, room)
+
+        newU = newU.concatColumns(uk)
+        val qr = newU.qr()
+        newU = qr.Q
+        val newModifier = qr.R * modifier.concatRows(SimpleMatrix(uk.numCols(), modifier.numRows()))
+        val nextMatData = x.tt.cores[i + 1].data
+        for ((j, mat) in nextMatData.withIndex()) {
+            nextMatData[j] = newModifier * mat
+        }
+        x.tt.cores[i + 1].updateDimensions()
 
-private fun computePhi(PhiPrev: TPhi, xCore: CoreTensor, ACore: CoreTensor?, yCore: CoreTensor): TPhi {
-    val res = arrayListOf<ArrayList<SimpleMatrix>>()
-    for (beta in 0 until xCore.rows) {
-        res.add(arrayListOf<SimpleMatrix>())
-        for (gamma in 0 until yCore.rows) {
-            var M = SimpleMatrix(ACore?.rows ?: 1, 1)
-            for (beta_prev in 0 until xCore.cols)
-                for (gamma_prev in 0 until yCore.cols)
-                    if (ACore == null) {
-                        for (i in 0 until xCore.modeLength)
-                            M += PhiPrev[beta_prev][gamma_prev] * (xCore[i][beta, beta_prev] * yCore[i][gamma, gamma_prev])
-                    } else {
-                        for (i in 0 until xCore.modeLength)
-                            for (j in 0 until yCore.modeLength) {
-                                M += ACore[i, j] * PhiPrev[beta_prev][gamma_prev] * (xCore[i][beta, beta_prev] * yCore[j][gamma, gamma_prev])
-                            }
-                    }
-            res.last().add(M)
+        repeat(newCore.modeLength) {
+            newCore.data[it] = newU[it * newCore.rows..(it + 1) * newCore.rows, 0..newU.numCols()]
+        }
+        newCore.updateDimensions()
+
+        val psiStart = System.nanoTime()
+        phiA[i + 1] = backend.computePsi(i, phiA[i], newCore, newCore)
+        phiy[i + 1] = computePsi(phiy[i], newCore, null, y.tt.cores[i])
+
+        // update z and its projections
+        phizA[i + 1] = backend.computePsi(i, phizA[i], zCurrCore, newCore)
+        phizy[i + 1] = computePsi(phizy[i], zCurrCore, null, y.tt.cores[i])
+        psiMs = elapsedMs(psiStart)
+    } else {
+        for (j in 0 until zCurrCore.modeLength) {
+            zCurrCore[j] = crznew.rows(j * z.ttRanks()[i], (j + 1) * z.ttRanks()[i])
         }
+        zCurrCore.updateDimensions()
+
+        // no need to change solution core here;
+        // already updated by applyALSStep, and no enrichment is needed for the last core
     }
-    return res
+    listener?.onCore(CoreEvent(settings.name, swp, i, x.tt.cores[i].cols, localSolve.size, localSolve.iterations,
+            interfaceMs + psiMs, solveMs, elapsedMs(truncationStart) - psiMs))
+    return truncation2
 }
 
 private fun projectVector(psi: TPhi, phi: TPhi, y: CoreTensor): SimpleMatrix {
@@ -320,343 +534,254 @@ private fun projectVector(psi: TPhi, phi: TPhi, y: CoreTensor): SimpleMatrix {
     return res
 }
 
-//Phi1[beta][gamma] row vector, Phi2[beta][gamma] col vector
-fun projectMatVec(
+/**
+ * Applies the local operator of the kth core to v, extended by the normalization constraint normalizerVector*w = c if
+ * normalizerVector is given, in which case the last element of v is the Lagrange multiplier.
+ */
+private fun localMatVec(
+        backend: AMEnBackend,
+        k: Int,
         psi: TPhi,
-        ACore: CoreTensor,
         phi: TPhi,
-        y: SimpleMatrix,
+        v: SimpleMatrix,
         normalizerVector: SimpleMatrix? = null,
         preconditioner: ((SimpleMatrix) -> SimpleMatrix)? = null
 ): SimpleMatrix {
-    val r_kx = phi.size
-    val r_ky = phi[0].size
-    val r_kminusx = psi.size
-    val r_kminusy = psi[0].size
-    val phiMat = SimpleMatrix(ACore.cols * phi.size, phi[0].size)
-    val R_k = ACore.cols
-    for ((beta, phi_beta) in phi.withIndex()) {
-        for ((gamma, phi_beta_gamma) in phi_beta.withIndex()) {
-            phiMat[beta * R_k, gamma] = phi_beta_gamma
-        }
-    }
-    val R_kminus = ACore.rows
-    val psiMat = SimpleMatrix(r_kminusx, r_kminusy * R_kminus)
-    for ((beta_minus, psi_beta_minus) in psi.withIndex()) {
-        for ((gamma_minus, psiCurr) in psi_beta_minus.withIndex()) {
-            psiMat[beta_minus, gamma_minus * R_kminus] = psiCurr
-        }
-    }
-
-    val lambda = y[y.numElements - 1] //used only if normalization is applied
-    val y = if (normalizerVector != null) y[0..y.numElements - 1, 0..1] else y
-    val n_k = round(sqrt(ACore.modeLength.toDouble())).toInt() //TODO: as param? or any other way but not sqrt...
-    var res = SimpleMatrix(n_k * r_kminusx * r_kx, 1)// y.createLike()
-
-    //Computation of Y'
-    val YMat = SimpleMatrix(r_ky, r_kminusy * n_k)
-    for (i in 0 until n_k) {
-        for (gamma_minus in 0 until r_kminusy) {
-            YMat[0, i * r_kminusy + gamma_minus] = y[i * r_kminusy * r_ky + gamma_minus * r_ky..i * r_kminusy * r_ky + (gamma_minus + 1) * r_ky, 0..1]
-        }
-    }
-    val YPrime = phiMat * YMat
-
-    //Computation of Y''
-    val YPrimeReshaped = SimpleMatrix(n_k * R_k, r_kx * r_kminusy)
-    for (beta in 0 until r_kx) {
-        for (gamma_minus in 0 until r_kminusy) {
-            for (jk in 0 until n_k) {
-                for (idx in 0 until R_k) {
-                    YPrimeReshaped[jk * R_k + idx, beta * r_kminusy + gamma_minus] = YPrime[beta * R_k + idx, jk * r_kminusy + gamma_minus]
-                }
-            }
-        }
-    }
-    val AkUnfolding = SimpleMatrix(n_k * R_kminus, n_k * ACore.cols)
-    for (ik in 0 until n_k) {
-        for (jk in 0 until n_k) {
-            AkUnfolding[ik * R_kminus, jk * ACore.cols] = ACore[ik * n_k + jk]
-        }
-    }
-    val YDoublePrime = AkUnfolding * YPrimeReshaped
-
-    //Computation of the result
-    val YDoublePrimeReshaped = SimpleMatrix(r_kminusy * R_kminus, n_k * r_kx)
-    for (gamma_minus in 0 until r_kminusy) {
-        for (idx in 0 until R_kminus) {
-            for (ik in 0 until n_k) {
-                for (beta in 0 until r_kx) {
-                    YDoublePrimeReshaped[gamma_minus * R_kminus + idx, ik * r_kx + beta] =
-                            YDoublePrime[ik * R_kminus + idx, beta * r_kminusy + gamma_minus]
-                }
-            }
-        }
-    }
-    val resTemp = psiMat * YDoublePrimeReshaped
-    //res is indexed like F, hint: "F[i*currCore.rows*currCore.cols+alphaMinus*currCore.cols+alpha] = elem[0]"
-    for (i in 0 until n_k) {
-        for (beta_minus in 0 until r_kminusx) {
-            for (beta in 0 until r_kx) {
-                res[i * r_kminusx * r_kx + beta_minus * r_kx + beta] = resTemp[beta_minus, i * r_kx + beta]
-            }
-        }
-    }
-
+    val w = if (normalizerVector != null) v[0..v.numElements - 1, 0..1] else v
+    var res = backend.projectMatVec(k, psi, phi, w)
     if (normalizerVector != null) {
-        res += lambda * normalizerVector.T()
-        res = res.concatRows(mat[r[(normalizerVector * y)[0]]])
+        res += v[v.numElements - 1] * normalizerVector.T()
+        res = res.concatRows(normalizerVector * w)
     }
-
     return preconditioner?.invoke(res) ?: res
 }
 
+/**
+ * Solves the local system of the kth core with the local right-hand side F and writes the solution to the kth core of x.
+ */
 private fun applyALSStep(
-        A: TTSquareMatrix,
+        backend: AMEnBackend,
         x: TTVector,
-        f: TTVector,
         k: Int,
         psi: TPhi,
         phi: TPhi,
+        F: SimpleMatrix,
         residualThreshold: Double,
         maxLocalIters: Int = 200,
         normalizer: SimpleMatrix? = null,
-        useDirectForSmall: Boolean = false
-) {
+        normalizationFactor: Double = 1.0,
+        useDirectForSmall: Boolean = false,
+        useLocalPreconditioner: Boolean = false,
+        localSolverPolicy: AdaptiveLocalSolverPolicy? = null,
+        leastSquares: Boolean = false
+): LocalSolveRecord {
     val currCore = x.tt.cores[k]
-
-    //Local solution
-
-    //region Computation of local right-hand side
-    //assemble full F=[ Q^T*f^_k(0); Q^T*f^_k(1) ... Q^T*f^_k(n_k) ]  matrix
-    var leftPart = eye(1)
-    for (l in 0 until k) {
-        var currFactor = SimpleMatrix(x.tt.cores[l].rows * f.tt.cores[l].rows, x.tt.cores[l].cols * f.tt.cores[l].cols)
-        for (m in 0 until x.modes[l])
-            currFactor += x.tt.cores[l][m].kron(f.tt.cores[l][m])
-        leftPart *= currFactor
-    }
-    var rightPart = eye(1)
-    for (l in x.modes.size - 1 downTo k + 1) {
-        var currFactor = SimpleMatrix(x.tt.cores[l].rows * f.tt.cores[l].rows, x.tt.cores[l].cols * f.tt.cores[l].cols)
-        for (m in 0 until x.modes[l])
-            currFactor += x.tt.cores[l][m].kron(f.tt.cores[l][m])
-        rightPart = currFactor * rightPart
-    }
-    val F = SimpleMatrix(currCore.modeLength * currCore.rows * currCore.cols, 1)
-    val middleAux = SimpleMatrix(currCore.rows, currCore.cols)
-    //TODO: can this be done more efficiently by computing a product leftpart*(something_that_gives_the_whole_result)*rightpart?
-    for (i in 0 until currCore.modeLength) {
-        for (alphaMinus in 0 until currCore.rows) {
-            for (alpha in 0 until currCore.cols) {
-                middleAux[alphaMinus, alpha] = 1.0
-                val elem = leftPart * middleAux.kron(f.tt.cores[k][i]) * rightPart
-                assert(elem.numElements == 1)
-                F[i * currCore.rows * currCore.cols + alphaMinus * currCore.cols + alpha] = elem[0]
-                middleAux[alphaMinus, alpha] = 0.0
-            }
+    val solveDirectly = useDirectForSmall && currCore.modeLength * currCore.modeLength * currCore.cols * currCore.rows < 100
+    val n = currCore.modeLength
+    val nonzeros = backend.nonzeroPattern(k)
+    val multFromRight = { i: Int, j: Int, v: SimpleMatrix -> backend.multFromRight(k, i, j, v) }
+    val system = LocalSystem(psi, phi, n, nonzeros, F, normalizer, normalizationFactor, multFromRight)
+    val solverType = if (leastSquares) LocalSolverType.LEAST_SQUARES
+                     else localSolverPolicy?.choose(k, system.size, system.fill)
+                          ?: if (solveDirectly) LocalSolverType.DENSE_LU else LocalSolverType.BICGSTAB
+    val start = System.nanoTime()
+    var converged = true
+    var iterations = 0
+    // the solver that actually ran, as the direct solvers fall back to the iterative ones if they fail
+    var usedType = solverType
+    val w = when (solverType) {
+        LocalSolverType.DENSE_LU -> system.solveDense()
+        LocalSolverType.SPARSE_LU -> system.solveSparse()
+        LocalSolverType.LEAST_SQUARES -> {
+            val w0 = currCore.leftUnfolding()
+            w0.reshape(w0.numElements, 1)
+            val maxDenseSize = if (solveDirectly) system.size else localSolverPolicy?.maxDenseSize ?: 0
+            val (solution, matVecs) = system.solveLeastSquares(maxDenseSize, w0, residualThreshold * 0.001, maxLocalIters)
+            iterations = matVecs
+            solution
         }
+        else -> null
+    } ?: run {
+        val w0 = currCore.leftUnfolding()
+        w0.reshape(w0.numElements, 1)
+        val preconditioner =
+                if (useLocalPreconditioner)
+                    createBlockJacobiPreconditioner(psi, phi, n, nonzeros, multFromRight = multFromRight)
+                    ?: createDiagonalPreconditioner(backend.diagonal(k, psi, phi))
+                else null
+        val threshold = residualThreshold * 0.001
+        val useGMRES = solverType == LocalSolverType.GMRES
+        usedType = if (useGMRES) LocalSolverType.GMRES else LocalSolverType.BICGSTAB
+        val gmresRestart = localSolverPolicy?.gmresRestart ?: 20
+        val result = ALSLocalIterSolve(backend, psi, phi, w0, F, k, threshold, preconditioner, maxLocalIters, normalizer,
+                normalizationFactor, useGMRES, gmresRestart, computeResidual = localSolverPolicy != null)
+        // the residual is only computed (and the convergence only known) if a policy records it
+        converged = !(result.residualNorm > threshold)
+        iterations = result.matVecs
+        result.solution
     }
-    //endregion
-
-    val solveDirectly = useDirectForSmall && currCore.modeLength * currCore.modeLength * currCore.cols * currCore.rows < 100
-//    val solveDirectly = currCore.modeLength * currCore.modeLength * currCore.cols * currCore.rows < 100
-    val ACore = A.tt.cores[k]
-    lateinit var w: SimpleMatrix
-    if (solveDirectly) {
-        val dim = currCore.modeLength * currCore.rows * currCore.cols
-        val FullB = SimpleMatrix(dim, dim)
-        //TODO: Parallel computation
-        for (betaMinus in 0 until currCore.rows) {
+    val record = LocalSolveRecord(k, system.size, usedType, (System.nanoTime() - start) / 1e6, converged, iterations)
+    localSolverPolicy?.record(record)
+    for (i in 0 until currCore.modeLength) {
+        for (beta_minus in 0 until currCore.rows) {
             for (beta in 0 until currCore.cols) {
-                for (gammaMinus in 0 until currCore.rows) {
-                    for (gamma in 0 until currCore.cols) {
-                        for (i in 0 until currCore.modeLength) {
-                            for (j in 0 until currCore.modeLength) {
-                                FullB[i * currCore.rows * currCore.cols + betaMinus * currCore.cols + beta, j * currCore.rows * currCore.cols + gammaMinus * currCore.cols + gamma] =
-                                        psi[betaMinus][gammaMinus] * ACore[i * currCore.modeLength + j] * phi[beta][gamma]
-                            }
-                        }
-                    }
-                }
+                currCore[i][beta_minus, beta] = w[i * currCore.rows * currCore.cols + beta_minus * currCore.cols + beta]
             }
         }
+    }
+    return record
+}
 
-        //solve Bw=F
-        w = if (normalizer != null) {
-            val FullBExtended = FullB.concatRows(normalizer).concatColumns(normalizer.T().concatRows(SimpleMatrix(1, 1)))
-            val FExtended = F.concatRows(mat[r[1.0]])
-            try {
-                FullBExtended.solve(FExtended)
-            } catch (e: SingularMatrixException) {
-                FullBExtended.pseudoInverse() * FExtended
-            }
-        } else {
-            try {
-                FullB.solve(F)
-            } catch (e: SingularMatrixException) {
-                FullB.pseudoInverse() * F
-            }
+/**
+ * Creates a block Jacobi preconditioner for the local system of a core update, similar to the "rjacobi" local
+ * preconditioner of amen_solve2. Keeping only the diagonal slices phi[beta][beta] of the right interface, the projected
+ * operator falls apart into one (n*r_{k-1}) x (n*r_{k-1}) block for each right rank index beta. These blocks are
+ * inverted once, and the returned function multiplies each slice of its argument with the corresponding inverse. An
+ * additional last element (the normalization constraint of the extended local system) is left unchanged.
+ * @param pattern the column mode indices j for which the (i,j)th matrix of the operator core can be nonzero
+ * @param multFromRight returns A_k[i,j]*v
+ * @param maxBlockSize no preconditioner is created (null is returned) if the blocks would be larger than this
+ */
+internal fun createBlockJacobiPreconditioner(
+        psi: TPhi,
+        phi: TPhi,
+        n: Int,
+        pattern: Array<IntArray>,
+        maxBlockSize: Int = 500,
+        multFromRight: (Int, Int, SimpleMatrix) -> SimpleMatrix
+): ((SimpleMatrix) -> SimpleMatrix)? {
+    val r_kminus = psi.size
+    val r_k = phi.size
+    val blockSize = n * r_kminus
+    if (blockSize > maxBlockSize) return null
+    // (betaMinus, gammaMinus) x a
+    val psiMat = SimpleMatrix(r_kminus * r_kminus, psi[0][0].numCols())
+    for ((betaMinus, psi_betaMinus) in psi.withIndex()) {
+        for ((gammaMinus, psiCurr) in psi_betaMinus.withIndex()) {
+            psiMat[betaMinus * r_kminus + gammaMinus, 0] = psiCurr
         }
-    } else {
-        val w0 = F.createLike()
-        for (i in 0 until currCore.modeLength) {
-            val M = currCore[i]
-            for (row in 0 until M.numRows()) {
-                for (col in 0 until M.numCols()) {
-                    w0[i * M.numRows() * M.numCols() + row * M.numCols() + col] = M[row, col]
+    }
+    val blockInverses = Array(r_k) { beta ->
+        // (i, betaMinus) x (j, gammaMinus)
+        val B = SimpleMatrix(blockSize, blockSize)
+        for (i in 0 until n) {
+            for (j in pattern[i]) {
+                val v = psiMat * multFromRight(i, j, phi[beta][beta])
+                for (betaMinus in 0 until r_kminus) {
+                    for (gammaMinus in 0 until r_kminus) {
+                        B[i * r_kminus + betaMinus, j * r_kminus + gammaMinus] = v[betaMinus * r_kminus + gammaMinus]
+                    }
                 }
             }
         }
-
-        if (normalizer != null) {
-            w = ALSLocalIterSolve(psi, phi, A, w0, F, k, residualThreshold * 0.001, maxLocalIters = maxLocalIters, normalizerVector = normalizer)
-        } else {
-            w = ALSLocalIterSolve(psi, phi, A, w0, F, k, residualThreshold * 0.001, maxLocalIters = maxLocalIters)
+        try {
+            B.invert()
+        } catch (e: SingularMatrixException) {
+            B.pseudoInverse()
         }
     }
-    for (i in 0 until currCore.modeLength) {
-        for (beta_minus in 0 until currCore.rows) {
-            for (beta in 0 until currCore.cols) {
-                currCore[i][beta_minus, beta] = w[i * currCore.rows * currCore.cols + beta_minus * currCore.cols + beta]
-            }
+    return { v ->
+        val res = v.copy()
+        // local vectors are indexed by (i, betaMinus, beta)
+        val vBeta = SimpleMatrix(blockSize, 1)
+        for (beta in 0 until r_k) {
+            for (idx in 0 until blockSize) vBeta[idx] = v[idx * r_k + beta]
+            val wBeta = blockInverses[beta] * vBeta
+            for (idx in 0 until blockSize) res[idx * r_k + beta] = wBeta[idx]
         }
+        res
     }
 }
 
-private fun computeNormalizer(x: TTVector, k: Int): SimpleMatrix {
+/**
+ * Creates a point Jacobi preconditioner from the diagonal of the local operator (see AMEnBackend.diagonal), used when
+ * the blocks of the block Jacobi preconditioner would be too large. The elements with a zero diagonal and the last
+ * element of the extended local system are left unchanged.
+ */
+private fun createDiagonalPreconditioner(diagonal: SimpleMatrix): (SimpleMatrix) -> SimpleMatrix = { v ->
+    val res = v.copy()
+    for (idx in 0 until diagonal.numElements) if (diagonal[idx] != 0.0) res[idx] = v[idx] / diagonal[idx]
+    res
+}
+
+private fun computeNormalizer(x: TTVector, k: Int, normalizationSetIndicator: TTVector? = null): SimpleMatrix {
     var normalizerLeft = ones(1)
     // TODO: cache
     repeat(k) {
         val coreTensor = x.tt.cores[it]
-        var sum = coreTensor[0].createLike()
-        for (M in coreTensor.data) {
-            sum += M
+        val normCore = normalizationSetIndicator?.tt?.cores?.get(it)
+        var sum =
+                if(normCore==null) coreTensor[0].createLike()
+                else SimpleMatrix(coreTensor.rows*normCore.rows, coreTensor.cols*normCore.cols)
+        for ((idx, M) in coreTensor.data.withIndex()) {
+            sum += (normCore?.get(idx)?.kron(M) ?: M)
         }
-        normalizerLeft *= sum
+        normalizerLeft = normalizerLeft * sum
     }
     var normalizerRight = ones(1)
     for (i in x.tt.cores.size - 1 downTo k + 1) {
         val coreTensor = x.tt.cores[i]
-        var sum = coreTensor[0].createLike()
-        for (M in coreTensor.data) {
-            sum += M
+        val normCore = normalizationSetIndicator?.tt?.cores?.get(i)
+        var sum =
+                if(normCore==null) coreTensor[0].createLike()
+                else SimpleMatrix(coreTensor.rows*normCore.rows, coreTensor.cols*normCore.cols)
+        for ((idx, M) in coreTensor.data.withIndex()) {
+            sum += (normCore?.get(idx)?.kron(M) ?: M)
         }
+//        normalizerRight = sum
         normalizerRight = sum * normalizerRight
     }
     val normalizer = ones(x.modes[k]).T().kron(normalizerLeft).kron(normalizerRight.T())
-    return normalizer
+    if(normalizationSetIndicator == null)
+        return normalizer
+    else {
+        val A = normalizationSetIndicator.tt.cores[k]
+        val B = x.tt.cores[k]
+        // TODO: sparse?
+        val numelementsA = A.rows * A.cols
+        val numelementsB = B.rows * B.cols
+        val modifier = SimpleMatrix(numelementsA * B.rows * B.cols * A.modeLength, numelementsB * B.modeLength)
+        for(i in 0 until A.modeLength) {
+            for(j in 0 until A[i].numRows()) {
+                val r = A[i].row(j).T()
+                modifier[i*numelementsB*numelementsA+j*A.cols*numelementsB, i*numelementsB] = eye(B.rows).kron(r.kron(eye(B.cols)))
+            }
+        }
+        return normalizer*modifier
+    }
 }
 
 private fun ALSLocalIterSolve(
-        psi: List<List<SimpleMatrix>>,
-        phi: List<List<SimpleMatrix>>,
-        A: TTSquareMatrix,
+        backend: AMEnBackend,
+        psi: TPhi,
+        phi: TPhi,
         w0: SimpleMatrix,
         F: SimpleMatrix,
         k: Int,
         threshold: Double,
-        preconditioner: SimpleMatrix? = null,
+        preconditioner: ((SimpleMatrix) -> SimpleMatrix)? = null,
         maxLocalIters: Int = 200,
-        normalizerVector: SimpleMatrix? = null
-): SimpleMatrix {
-    val r_k = phi.size
-    val r_kminus = psi.size
-    //TODO: assemble this matrix while computing phi, instead of storing phi in an array-of-arrays
-    val Ak = A.tt.cores[k]
-    val phiMat = SimpleMatrix(Ak.cols * phi.size, phi.size)
-    val R_k = Ak.cols
-    for ((beta, phi_beta) in phi.withIndex()) {
-        for ((gamma, phi_beta_gamma) in phi_beta.withIndex()) {
-            phiMat[beta * R_k, gamma] = phi_beta_gamma
-        }
-    }
-    val R_kminus = Ak.rows
-    val psiMat = SimpleMatrix(r_kminus, r_kminus * R_kminus)
-    for ((beta_minus, psi_beta_minus) in psi.withIndex()) {
-        for ((gamma_minus, psiCurr) in psi_beta_minus.withIndex()) {
-            psiMat[beta_minus, gamma_minus * R_kminus] = psiCurr
-        }
-    }
-
-    fun computeMatVec(y: SimpleMatrix): SimpleMatrix {
-        val lambda = y[y.numElements - 1] //used only if normalization is applied
-        val y = if (normalizerVector != null) y[0..y.numElements - 1, 0..1] else y
-        var res = y.createLike()
-        val n_k = A.modes[k]
-
-        //Computation of Y'
-        val YMat = SimpleMatrix(r_k, r_kminus * n_k)
-        for (i in 0 until n_k) {
-            for (gamma_minus in 0 until r_kminus) {
-                YMat[0, i * r_kminus + gamma_minus] = y[i * r_kminus * r_k + gamma_minus * r_k..i * r_kminus * r_k + (gamma_minus + 1) * r_k, 0..1]
-            }
-        }
-        val YPrime = phiMat * YMat
-
-        //Computation of Y''
-        val YPrimeReshaped = SimpleMatrix(n_k * R_k, r_k * r_kminus)
-        for (beta in 0 until r_k) {
-            for (gamma_minus in 0 until r_kminus) {
-                for (jk in 0 until n_k) {
-                    for (idx in 0 until R_k) {
-                        YPrimeReshaped[jk * R_k + idx, beta * r_kminus + gamma_minus] = YPrime[beta * R_k + idx, jk * r_kminus + gamma_minus]
-                    }
-                }
-            }
-        }
-        val AkUnfolding = SimpleMatrix(n_k * R_kminus, n_k * Ak.cols)
-        for (ik in 0 until n_k) {
-            for (jk in 0 until n_k) {
-                AkUnfolding[ik * R_kminus, jk * Ak.cols] = Ak[ik * n_k + jk]
-            }
-        }
-        val YDoublePrime = AkUnfolding * YPrimeReshaped
-
-        //Computation of the result
-        val YDoublePrimeReshaped = SimpleMatrix(r_kminus * R_kminus, n_k * r_k)
-        for (gamma_minus in 0 until r_kminus) {
-            for (idx in 0 until R_kminus) {
-                for (ik in 0 until n_k) {
-                    for (beta in 0 until r_k) {
-                        YDoublePrimeReshaped[gamma_minus * R_kminus + idx, ik * r_k + beta] =
-                                YDoublePrime[ik * R_kminus + idx, beta * r_kminus + gamma_minus]
-                    }
-                }
-            }
-        }
-        val resTemp = psiMat * YDoublePrimeReshaped
-        //res is indexed like F, hint: "F[i*currCore.rows*currCore.cols+alphaMinus*currCore.cols+alpha] = elem[0]"
-        for (i in 0 until n_k) {
-            for (beta_minus in 0 until r_kminus) {
-                for (beta in 0 until r_k) {
-                    res[i * r_kminus * r_k + beta_minus * r_k + beta] = resTemp[beta_minus, i * r_k + beta]
-                }
-            }
-        }
-
-        if (normalizerVector != null) {
-            res += lambda * normalizerVector.T()
-            res = res.concatRows(mat[r[(normalizerVector * y)[0]]])
-        }
-
-        return preconditioner?.mult(res) ?: res
+        normalizerVector: SimpleMatrix? = null,
+        normalizationFactor: Double = 1.0,
+        useGMRES: Boolean = false,
+        gmresRestart: Int = 20,
+        computeResidual: Boolean = true
+): SolverResult {
+    var matVecs = 0
+    val linearMap: (SimpleMatrix) -> SimpleMatrix = {
+        matVecs++
+        localMatVec(backend, k, psi, phi, it, normalizerVector, preconditioner)
     }
-
-//    return BiCGStabL(2, ::computeMatVec, preconditioner?.mult(F) ?: F, maxLocalIters, w0, threshold).solution
+    val f = if (normalizerVector != null) F.concatRows(mat[r[normalizationFactor]]) else F
+    val x0 = if (normalizerVector != null) w0.concatRows(SimpleMatrix(1, 1)) else w0
+    val b = preconditioner?.invoke(f) ?: f
     val result =
-            if (normalizerVector != null) {
-                val Fextended = F.concatRows(mat[r[1.0]])
-                val w0extended = w0.concatRows(mat[r[w0.scalarProduct(ones(w0.numRows(), 1))]])
-                biCGStab(::computeMatVec, preconditioner?.mult(Fextended)
-                                          ?: Fextended, maxLocalIters, w0extended, threshold)
-            } else {
-                biCGStab(::computeMatVec, preconditioner?.mult(F) ?: F, maxLocalIters, w0, threshold)
-            }
+            if (useGMRES) ReGMRES(linearMap, b, gmresRestart, x0, threshold, max(1, maxLocalIters / gmresRestart))
+            else biCGStab(linearMap, b, maxLocalIters, x0, threshold)
+    val iterations = matVecs
+    val residualNorm = if (computeResidual) (linearMap(result) - b).normF() else Double.NaN
     if (normalizerVector != null) {
-        return result[0..result.numElements - 1, 0..1]
+        return SolverResult(result[0..result.numElements - 1, 0..1], residualNorm, iterations)
     }
-    return result
-//    return ReGMRES(::computeMatVec, F, 10, w0, threshold)
+    return SolverResult(result, residualNorm, iterations)
 }
-
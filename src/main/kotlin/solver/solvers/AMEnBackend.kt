@@ -0,0 +1,470 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver.solvers
+
+import org.ejml.dense.row.CommonOps_DDRM
+import org.ejml.simple.SimpleMatrix
+import solver.*
+import kotlin.math.round
+import kotlin.math.sqrt
+
+/**
+ * The operator of AMEnALSSolve, accessed core by core. The engine touches the operator only through these operations,
+ * so every solve path (dense, sparse, masked or implicit cores) shares the same sweeps, truncation, enrichment and local
+ * solvers, and a backend only has to provide the contractions with its own cores.
+ */
+interface AMEnBackend {
+    /**
+     * The mode lengths of the vectors the operator is applied to
+     */
+    val modes: Array<Int>
+
+    /**
+     * Returns the column mode indices j for which the (i,j)th matrix of the kth core can be nonzero, for each i
+     */
+    fun nonzeroPattern(k: Int): Array<IntArray>
+
+    /**
+     * Returns A_k[i,j]*v
+     */
+    fun multFromRight(k: Int, i: Int, j: Int, v: SimpleMatrix): SimpleMatrix
+
+    /**
+     * Returns the left interface of x^T*A*y after the kth cores from the one before them
+     */
+    fun computePsi(k: Int, psiPrev: TPhi, xCore: CoreTensor, yCore: CoreTensor): TPhi
+
+    /**
+     * Returns the right interface of x^T*A*y before the kth cores from the one after them
+     */
+    fun computePhi(k: Int, phiPrev: TPhi, xCore: CoreTensor, yCore: CoreTensor): TPhi
+
+    /**
+     * Applies the local operator of the kth core, i.e. the projection of A with the interfaces psi and phi, to the
+     * vectorized core v indexed by (i, betaMinus, beta)
+     */
+    fun projectMatVec(k: Int, psi: TPhi, phi: TPhi, v: SimpleMatrix): SimpleMatrix
+
+    /**
+     * Returns the diagonal of the local operator of the kth core as a column vector indexed by (i, betaMinus, beta):
+     * psi[betaMinus][betaMinus] * A_k[i,i] * phi[beta][beta].
+     */
+    fun diagonal(k: Int, psi: TPhi, phi: TPhi): SimpleMatrix {
+        val r_kminus = psi.size
+        val r_k = phi.size
+        val n = modes[k]
+        val psiDiag = SimpleMatrix(r_kminus, psi[0][0].numCols())
+        for (betaMinus in 0 until r_kminus) psiDiag[betaMinus, 0] = psi[betaMinus][betaMinus]
+        val phiDiag = SimpleMatrix(phi[0][0].numRows(), r_k)
+        for (beta in 0 until r_k) phiDiag[0, beta] = phi[beta][beta]
+        val res = SimpleMatrix(n * r_kminus * r_k, 1)
+        val pattern = nonzeroPattern(k)
+        for (i in 0 until n) {
+            if (i !in pattern[i]) continue
+            // betaMinus x beta
+            val D = psiDiag * multFromRight(k, i, i, phiDiag)
+            System.arraycopy(D.ddrm.data, 0, res.ddrm.data, i * r_kminus * r_k, r_kminus * r_k)
+        }
+        return res
+    }
+
+    /**
+     * Returns ||A*x-y||
+     */
+    fun residualNorm(x: TTVector, y: TTVector): Double
+
+    /**
+     * Returns the fingerprint of the operator identifying it in checkpoints, see operatorFingerprint
+     */
+    fun fingerprint(): DoubleArray
+}
+
+/**
+ * The dense backend of AMEnALSSolve for a TTSquareMatrix operator, holding the data that depends only on the operator:
+ * the unfoldings of the cores used by the interface contractions and the nonzero patterns of the cores used by the
+ * local systems. It is computed once per solve by default, but can be passed to successive solves with the same
+ * operator, e.g. in a chain of moment computations.
+ */
+class AMEnOperator(val A: TTSquareMatrix) : AMEnBackend {
+    // computed for each core on first use, so only the cores that are accessed are needed, see SegmentWorkerPool
+    private val unfoldings = Array(A.modes.size) { k -> lazy { OperatorCoreUnfoldings(A.tt.cores[k]) } }
+    private val patterns = Array(A.modes.size) { k ->
+        lazy {
+            val ACore = A.tt.cores[k]
+            val n = A.modes[k]
+            Array(n) { i -> (0 until n).filter { j -> ACore[i * n + j].elementMaxAbs() > 0.0 }.toIntArray() }
+        }
+    }
+
+    override val modes: Array<Int>
+        get() = A.modes
+
+    override fun nonzeroPattern(k: Int) = patterns[k].value
+
+    override fun multFromRight(k: Int, i: Int, j: Int, v: SimpleMatrix) = A.tt.cores[k][i * A.modes[k] + j] * v
+
+    override fun computePsi(k: Int, psiPrev: TPhi, xCore: CoreTensor, yCore: CoreTensor) =
+            computePsi(psiPrev, xCore, A.tt.cores[k], yCore, unfoldings[k].value)
+
+    override fun computePhi(k: Int, phiPrev: TPhi, xCore: CoreTensor, yCore: CoreTensor) =
+            computePhi(phiPrev, xCore, A.tt.cores[k], yCore, unfoldings[k].value)
+
+    override fun projectMatVec(k: Int, psi: TPhi, phi: TPhi, v: SimpleMatrix) = projectMatVec(psi, A.tt.cores[k], phi, v)
+
+    override fun residualNorm(x: TTVector, y: TTVector) = computeResidualNorm(A, x, y)
+
+    override fun fingerprint() = operatorFingerprint(A)
+}
+
+/**
+ * Unfoldings of an operator core used by the interface contractions, computed once per solve, as the operator cores
+ * don't change during the sweeps.
+ * [rowModeFirst] has (i, a_(k-1)) rows and (j, a_k) columns, [colModeFirst] has (j, a_(k-1)) rows and (i, a_k) columns,
+ * where i is the row mode index and j is the column mode index of the core.
+ */
+internal class OperatorCoreUnfoldings(core: CoreTensor) {
+    val rowModeFirst: SimpleMatrix = core.matrixModeUnfolding()
+    val colModeFirst: SimpleMatrix
+
+    init {
+        val n = round(sqrt(core.modeLength.toDouble())).toInt()
+        colModeFirst = SimpleMatrix(n * core.rows, n * core.cols)
+        for (i in 0 until n)
+            for (j in 0 until n)
+                colModeFirst[j * core.rows, i * core.cols] = core[i * n + j]
+    }
+}
+
+/**
+ * Computes the next left interface as three reshaped GEMMs: the y-core is contracted first, then the operator core,
+ * and finally the x-core.
+ */
+internal fun computePsi(PsiPrev: TPhi, xCore: CoreTensor, ACore: CoreTensor?, yCore: CoreTensor, AUnfoldings: OperatorCoreUnfoldings? = null): TPhi {
+    val n = xCore.modeLength
+    val rx = xCore.rows
+    val ry = yCore.rows
+    val ryNext = yCore.cols
+    val RA = ACore?.rows ?: 1
+    val RANext = ACore?.cols ?: 1
+    val psiMat = SimpleMatrix(rx * RA, ry)
+    for (beta_prev in 0 until rx)
+        for (gamma_prev in 0 until ry) {
+            val psiCurr = PsiPrev[beta_prev][gamma_prev]
+            for (a in 0 until RA)
+                psiMat[beta_prev * RA + a, gamma_prev] = psiCurr[a]
+        }
+    // (beta_prev, a) x (j, gamma)
+    val T1 = psiMat * yCore.rightUnfolding()
+    val T2 = if (ACore == null) {
+        // (i, beta_prev) x gamma
+        T1.permuteModes(rx, 1, n, ryNext, intArrayOf(2, 0, 1, 3))
+    } else {
+        val unfoldings = AUnfoldings ?: OperatorCoreUnfoldings(ACore)
+        // (beta_prev, gamma) x (i, a')
+        val AT1 = T1.permuteModes(rx, RA, n, ryNext, intArrayOf(0, 3, 2, 1)) * unfoldings.colModeFirst
+        // (i, beta_prev) x (gamma, a')
+        AT1.permuteModes(rx, ryNext, n, RANext, intArrayOf(2, 0, 1, 3))
+    }
+    // beta x (gamma, a')
+    val R = SimpleMatrix(xCore.cols, T2.numCols())
+    CommonOps_DDRM.multTransA(xCore.leftUnfolding().ddrm, T2.ddrm, R.ddrm)
+    return splitInterfaceMatrix(R, ryNext, RANext, false)
+}
+
+/**
+ * Computes the next right interface as three reshaped GEMMs: the y-core is contracted first, then the operator core,
+ * and finally the x-core.
+ */
+internal fun computePhi(PhiPrev: TPhi, xCore: CoreTensor, ACore: CoreTensor?, yCore: CoreTensor, AUnfoldings: OperatorCoreUnfoldings? = null): TPhi {
+    val n = xCore.modeLength
+    val rxNext = xCore.cols
+    val ry = yCore.rows
+    val ryNext = yCore.cols
+    val RA = ACore?.rows ?: 1
+    val RANext = ACore?.cols ?: 1
+    val phiMat = SimpleMatrix(ryNext, rxNext * RANext)
+    for (beta_prev in 0 until rxNext)
+        for (gamma_prev in 0 until ryNext) {
+            val phiCurr = PhiPrev[beta_prev][gamma_prev]
+            for (a in 0 until RANext)
+                phiMat[gamma_prev, beta_prev * RANext + a] = phiCurr[a]
+        }
+    // (j, gamma) x (beta_prev, a')
+    val T1 = yCore.leftUnfolding() * phiMat
+    val T2 = if (ACore == null) {
+        // (i, beta_prev) x gamma
+        T1.permuteModes(n, ry, rxNext, 1, intArrayOf(0, 2, 1, 3))
+    } else {
+        val unfoldings = AUnfoldings ?: OperatorCoreUnfoldings(ACore)
+        // (i, a) x (gamma, beta_prev)
+        val AT1 = unfoldings.rowModeFirst * T1.permuteModes(n, ry, rxNext, RANext, intArrayOf(0, 3, 1, 2))
+        // (i, beta_prev) x (gamma, a)
+        AT1.permuteModes(n, RA, ry, rxNext, intArrayOf(0, 3, 2, 1))
+    }
+    // beta x (gamma, a)
+    val R = xCore.rightUnfolding() * T2
+    return splitInterfaceMatrix(R, ry, RA, true)
+}
+
+/**
+ * Splits a beta x (gamma, a) matrix into the array-of-arrays interface representation, with column vectors for right
+ * interfaces and row vectors for left interfaces.
+ */
+private fun splitInterfaceMatrix(R: SimpleMatrix, ry: Int, RA: Int, columnVectors: Boolean): TPhi {
+    val res = ArrayList<ArrayList<SimpleMatrix>>(R.numRows())
+    for (beta in 0 until R.numRows()) {
+        val row = ArrayList<SimpleMatrix>(ry)
+        for (gamma in 0 until ry) {
+            val M = if (columnVectors) SimpleMatrix(RA, 1) else SimpleMatrix(1, RA)
+            System.arraycopy(R.ddrm.data, beta * R.numCols() + gamma * RA, M.ddrm.data, 0, RA)
+            row.add(M)
+        }
+        res.add(row)
+    }
+    return res
+}
+
+//Phi1[beta][gamma] row vector, Phi2[beta][gamma] col vector
+fun projectMatVec(
+        psi: TPhi,
+        ACore: CoreTensor,
+        phi: TPhi,
+        y: SimpleMatrix,
+        normalizerVector: SimpleMatrix? = null,
+        preconditioner: ((SimpleMatrix) -> SimpleMatrix)? = null
+): SimpleMatrix {
+    val r_kx = phi.size
+    val r_ky = phi[0].size
+    val r_kminusx = psi.size
+    val r_kminusy = psi[0].size
+    val phiMat = SimpleMatrix(ACore.cols * phi.size, phi[0].size)
+    val R_k = ACore.cols
+    for ((beta, phi_beta) in phi.withIndex()) {
+        for ((gamma, phi_beta_gamma) in phi_beta.withIndex()) {
+            phiMat[beta * R_k, gamma] = phi_beta_gamma
+        }
+    }
+    val R_kminus = ACore.rows
+    val psiMat = SimpleMatrix(r_kminusx, r_kminusy * R_kminus)
+    for ((beta_minus, psi_beta_minus) in psi.withIndex()) {
+        for ((gamma_minus, psiCurr) in psi_beta_minus.withIndex()) {
+            psiMat[beta_minus, gamma_minus * R_kminus] = psiCurr
+        }
+    }
+
+    val lambda = y[y.numElements - 1] //used only if normalization is applied
+    val y = if (normalizerVector != null) y[0..y.numElements - 1, 0..1] else y
+    val n_k = round(sqrt(ACore.modeLength.toDouble())).toInt() //TODO: as param? or any other way but not sqrt...
+    var res = SimpleMatrix(n_k * r_kminusx * r_kx, 1)// y.createLike()
+
+    //Computation of Y'
+    val YMat = SimpleMatrix(r_ky, r_kminusy * n_k)
+    for (i in 0 until n_k) {
+        for (gamma_minus in 0 until r_kminusy) {
+            YMat[0, i * r_kminusy + gamma_minus] = y[i * r_kminusy * r_ky + gamma_minus * r_ky..i * r_kminusy * r_ky + (gamma_minus + 1) * r_ky, 0..1]
+        }
+    }
+    val YPrime = phiMat * YMat
+
+    //Computation of Y''
+    val YPrimeReshaped = SimpleMatrix(n_k * R_k, r_kx * r_kminusy)
+    for (beta in 0 until r_kx) {
+        for (gamma_minus in 0 until r_kminusy) {
+            for (jk in 0 until n_k) {
+                for (idx in 0 until R_k) {
+                    YPrimeReshaped[jk * R_k + idx, beta * r_kminusy + gamma_minus] = YPrime[beta * R_k + idx, jk * r_kminusy + gamma_minus]
+                }
+            }
+        }
+    }
+    val AkUnfolding = SimpleMatrix(n_k * R_kminus, n_k * ACore.cols)
+    for (ik in 0 until n_k) {
+        for (jk in 0 until n_k) {
+            AkUnfolding[ik * R_kminus, jk * ACore.cols] = ACore[ik * n_k + jk]
+        }
+    }
+
+    //Computation of Y'' and the result, independently for each block of output mode slice and rank of A
+    val work = n_k.toLong() * R_kminus * (n_k * R_k + r_kminusx) * r_kx * r_kminusy
+    projectSlicesByRank(n_k, R_kminus, psiMat, res, work) { ik, a ->
+        AkUnfolding.rows(ik * R_kminus + a.first, ik * R_kminus + a.last + 1) * YPrimeReshaped
+    }
+
+    if (normalizerVector != null) {
+        res += lambda * normalizerVector.T()
+        res = res.concatRows(mat[r[(normalizerVector * y)[0]]])
+    }
+
+    return preconditioner?.invoke(res) ?: res
+}
+
+/**
+ * The backend of AMEnALSSolve for operators given by Abstract2DCoreTensors, e.g. Sparse2DCoreTensors, MaskedCoreTensors
+ * or implicit cores, which are only accessed through their products with matrices and their nonzero patterns.
+ */
+class AbstractCoreBackend(val A: Array<Abstract2DCoreTensor>) : AMEnBackend {
+    override val modes = Array(A.size) { A[it].modeLength }
+
+    override fun nonzeroPattern(k: Int) = A[k].nonzeroPattern()
+
+    override fun multFromRight(k: Int, i: Int, j: Int, v: SimpleMatrix) = A[k].multFromRight(i, j, v)
+
+    override fun computePsi(k: Int, psiPrev: TPhi, xCore: CoreTensor, yCore: CoreTensor) =
+            computePsi(psiPrev, xCore, A[k], yCore)
+
+    override fun computePhi(k: Int, phiPrev: TPhi, xCore: CoreTensor, yCore: CoreTensor) =
+            computePhi(phiPrev, xCore, A[k], yCore)
+
+    override fun projectMatVec(k: Int, psi: TPhi, phi: TPhi, v: SimpleMatrix) = projectMatVec(psi, A[k], phi, v)
+
+    override fun residualNorm(x: TTVector, y: TTVector) = computeResidualNorm(A, x, y)
+
+    override fun fingerprint() = operatorFingerprint(A)
+}
+
+/**
+ * Computes the next left interface. The operator core is applied once for each structurally nonzero (i,j) mode pair
+ * to all (beta_prev, gamma_prev) interface entries at the same time, then the x and y cores are contracted by GEMMs.
+ */
+private fun computePsi(PsiPrev: TPhi, xCore: CoreTensor, AbstractACore: Abstract2DCoreTensor, yCore: CoreTensor): TPhi {
+    val rx = xCore.rows
+    val ry = yCore.rows
+    val ryNext = yCore.cols
+    val RANext = AbstractACore.cols
+    // (beta_prev, gamma_prev) x a
+    val psiMat = SimpleMatrix(rx * ry, AbstractACore.rows)
+    for (beta_prev in 0 until rx)
+        for (gamma_prev in 0 until ry)
+            psiMat[beta_prev * ry + gamma_prev, 0] = PsiPrev[beta_prev][gamma_prev]
+    // beta x (gamma, a')
+    val R = SimpleMatrix(xCore.cols, ryNext * RANext)
+    val pattern = AbstractACore.nonzeroPattern()
+    for (i in pattern.indices) {
+        for (j in pattern[i]) {
+            // gamma_prev x (beta_prev, a')
+            val PA = AbstractACore.multFromLeft(i, j, psiMat).permuteModes(rx, ry, RANext, 1, intArrayOf(1, 3, 0, 2))
+            // gamma x (beta_prev, a')
+            val YPA = SimpleMatrix(ryNext, PA.numCols())
+            CommonOps_DDRM.multTransA(yCore[j].ddrm, PA.ddrm, YPA.ddrm)
+            // beta_prev x (gamma, a')
+            val T = YPA.permuteModes(ryNext, 1, rx, RANext, intArrayOf(2, 1, 0, 3))
+            CommonOps_DDRM.multAddTransA(xCore[i].ddrm, T.ddrm, R.ddrm)
+        }
+    }
+    return splitInterfaceMatrix(R, ryNext, RANext, false)
+}
+
+/**
+ * Computes the next right interface. The operator core is applied once for each structurally nonzero (i,j) mode pair
+ * to all (beta_prev, gamma_prev) interface entries at the same time, then the x and y cores are contracted by GEMMs.
+ */
+private fun computePhi(PhiPrev: TPhi, xCore: CoreTensor, AbstractACore: Abstract2DCoreTensor, yCore: CoreTensor): TPhi {
+    val rxNext = xCore.cols
+    val ry = yCore.rows
+    val ryNext = yCore.cols
+    val RA = AbstractACore.rows
+    // a' x (beta_prev, gamma_prev)
+    val phiMat = SimpleMatrix(AbstractACore.cols, rxNext * ryNext)
+    for (beta_prev in 0 until rxNext)
+        for (gamma_prev in 0 until ryNext)
+            phiMat[0, beta_prev * ryNext + gamma_prev] = PhiPrev[beta_prev][gamma_prev]
+    // beta x (gamma, a)
+    val R = SimpleMatrix(xCore.rows, ry * RA)
+    val pattern = AbstractACore.nonzeroPattern()
+    for (i in pattern.indices) {
+        for (j in pattern[i]) {
+            // (a, beta_prev) x gamma_prev, the row-major layout of a x (beta_prev, gamma_prev) is the same
+            val AP = AbstractACore.multFromRight(i, j, phiMat)
+            AP.reshape(RA * rxNext, ryNext)
+            val APY = SimpleMatrix(RA * rxNext, ry)
+            CommonOps_DDRM.multTransB(AP.ddrm, yCore[j].ddrm, APY.ddrm)
+            // beta_prev x (gamma, a)
+            val T = APY.permuteModes(RA, rxNext, ry, 1, intArrayOf(1, 3, 2, 0))
+            CommonOps_DDRM.multAdd(xCore[i].ddrm, T.ddrm, R.ddrm)
+        }
+    }
+    return splitInterfaceMatrix(R, ry, RA, true)
+}
+
+//Phi1[beta][gamma] row vector, Phi2[beta][gamma] col vector
+private fun projectMatVec(
+        psi: TPhi,
+        ACore: Abstract2DCoreTensor,
+        phi: TPhi,
+        y: SimpleMatrix
+): SimpleMatrix {
+    val r_kx = phi.size
+    val r_ky = phi[0].size
+    val r_kminusx = psi.size
+    val r_kminusy = psi[0].size
+    val phiMat = SimpleMatrix(ACore.cols * phi.size, phi[0].size)
+    val R_k = ACore.cols
+    for ((beta, phi_beta) in phi.withIndex()) {
+        for ((gamma, phi_beta_gamma) in phi_beta.withIndex()) {
+            phiMat[beta * R_k, gamma] = phi_beta_gamma
+        }
+    }
+    val R_kminus = ACore.rows
+    val psiMat = SimpleMatrix(r_kminusx, r_kminusy * R_kminus)
+    for ((beta_minus, psi_beta_minus) in psi.withIndex()) {
+        for ((gamma_minus, psiCurr) in psi_beta_minus.withIndex()) {
+            psiMat[beta_minus, gamma_minus * R_kminus] = psiCurr
+        }
+    }
+
+    val n_k = ACore.modeLength
+    val res = SimpleMatrix(n_k * r_kminusx * r_kx, 1)
+
+    //Computation of Y'
+    val YMat = SimpleMatrix(r_ky, r_kminusy * n_k)
+    for (i in 0 until n_k) {
+        for (gamma_minus in 0 until r_kminusy) {
+            YMat[0, i * r_kminusy + gamma_minus] = y[i * r_kminusy * r_ky + gamma_minus * r_ky..i * r_kminusy * r_ky + (gamma_minus + 1) * r_ky, 0..1]
+        }
+    }
+    val YPrime = phiMat * YMat
+
+    //Computation of Y''
+    val YPrimeReshaped = SimpleMatrix(n_k * R_k, r_kx * r_kminusy)
+    for (beta in 0 until r_kx) {
+        for (gamma_minus in 0 until r_kminusy) {
+            for (jk in 0 until n_k) {
+                for (idx in 0 until R_k) {
+                    YPrimeReshaped[jk * R_k + idx, beta * r_kminusy + gamma_minus] = YPrime[beta * R_k + idx, jk * r_kminusy + gamma_minus]
+                }
+            }
+        }
+    }
+    //Computation of Y'' and the result, independently for each block of output mode slice and rank of the result, as
+    //the abstract cores can only be applied to whole columns
+    val pattern = ACore.nonzeroPattern()
+    val work = (pattern.sumBy { it.size }.toLong() * R_k + n_k * r_kminusx) * R_kminus * r_kx * r_kminusy
+    projectSlicesByColumn(n_k, r_kx, psiMat, res, work) { ik, beta ->
+        val first = beta.first * r_kminusy
+        val last = (beta.last + 1) * r_kminusy
+        var YDoublePrimeI = SimpleMatrix(R_kminus, last - first)
+        for (jk in pattern[ik]) {
+            val Yj = YPrimeReshaped.extractMatrix(jk * R_k, (jk + 1) * R_k, first, last)
+            YDoublePrimeI += ACore.multFromRight(ik, jk, Yj)
+        }
+        YDoublePrimeI
+    }
+
+    return res
+}
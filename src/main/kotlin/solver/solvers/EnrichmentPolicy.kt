@@ -0,0 +1,57 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver.solvers
+
+/**
+ * Adapts the enrichment rank of AMEn-ALS between sweeps based on the reduction of the residual norm: the rank is
+ * increased if convergence stalls, and decreased if the sweep converged well without changing the ranks of the solution,
+ * so the enrichment is no longer needed to grow them.
+ * @param minRank the smallest enrichment rank used
+ * @param maxRank the largest enrichment rank used
+ * @param stallRatio a sweep stalls if it reduces the residual norm by less than this factor
+ * @param step the change of the rank after a sweep
+ * @param log whether to print the changes of the rank
+ */
+class AdaptiveEnrichmentPolicy(
+        val minRank: Int = 1,
+        val maxRank: Int = 8,
+        val stallRatio: Double = 0.5,
+        val step: Int = 1,
+        val log: Boolean = true
+) {
+    init {
+        require(minRank in 1..maxRank) { "The rank bounds must satisfy 1 <= minRank <= maxRank!" }
+        require(stallRatio > 0.0 && stallRatio < 1.0) { "The stall ratio must be in (0,1)!" }
+        require(step > 0) { "The step must be positive!" }
+    }
+
+    /**
+     * Returns the enrichment rank of the next sweep.
+     */
+    fun next(rank: Int, previousResidual: Double, residual: Double, previousRanks: List<Int>, ranks: List<Int>): Int {
+        val ratio = residual / previousResidual
+        val next = when {
+            ratio > stallRatio -> minOf(maxRank, rank + step)
+            ranks == previousRanks -> maxOf(minRank, rank - step)
+            else -> rank
+        }.coerceIn(minRank, maxRank)
+        if (log && next != rank) println("enrichment rank: $rank -> $next (residual ratio ${"%.3g".format(ratio)})")
+        return next
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver.solvers
+
+import org.ejml.data.DMatrixRMaj
+import org.ejml.data.DMatrixSparseCSC
+import org.ejml.data.DMatrixSparseTriplet
+import org.ejml.data.SingularMatrixException
+import org.ejml.ops.ConvertDMatrixStruct
+import org.ejml.simple.SimpleMatrix
+import org.ejml.sparse.FillReducing
+import org.ejml.sparse.csc.CommonOps_DSCC
+import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC
+import solver.*
+
+enum class LocalSolverType { DENSE_LU, SPARSE_LU, GMRES, BICGSTAB, LEAST_SQUARES }
+
+data class LocalSolveRecord(val core: Int, val size: Int, val type: LocalSolverType, val timeMs: Double, val converged: Boolean, val iterations: Int = 0)
+
+/**
+ * Chooses the solver of the local systems of AMEn-ALS for each core update, based on the size of the local system, the
+ * estimated fill of its assembled matrix and the convergence of the iterative solvers on the same core in previous
+ * sweeps. Small systems are solved by dense LU, larger ones with sparse enough operator cores by sparse LU, and the rest
+ * by BiCGStab, switching to restarted GMRES on cores where BiCGStab did not converge.
+ * @param maxDenseSize the largest local system solved by dense LU
+ * @param maxSparseSize the largest local system solved by sparse LU
+ * @param maxSparseFill the largest estimated ratio of nonzero elements for which sparse LU is used
+ * @param gmresRestart the restart length of GMRES
+ * @param log whether to print the choice and the solution time of every local solve
+ */
+class AdaptiveLocalSolverPolicy(
+        val maxDenseSize: Int = 400,
+        val maxSparseSize: Int = 5000,
+        val maxSparseFill: Double = 0.05,
+        val gmresRestart: Int = 20,
+        val log: Boolean = true
+) {
+    private val lastSolves = hashMapOf<Int, LocalSolveRecord>()
+
+    /**
+     * The choices and timings of all local solves, in the order they were made.
+     */
+    val records = arrayListOf<LocalSolveRecord>()
+
+    @Synchronized
+    fun choose(k: Int, size: Int, fill: Double): LocalSolverType {
+        if (size <= maxDenseSize) return LocalSolverType.DENSE_LU
+        if (size <= maxSparseSize && fill <= maxSparseFill) return LocalSolverType.SPARSE_LU
+        val last = lastSolves[k] ?: return LocalSolverType.BICGSTAB
+        return when {
+            last.converged -> last.type
+            last.type == LocalSolverType.BICGSTAB -> LocalSolverType.GMRES
+            size <= maxSparseSize -> LocalSolverType.SPARSE_LU
+            else -> LocalSolverType.BICGSTAB
+        }
+    }
+
+    @Synchronized
+    fun record(record: LocalSolveRecord) {
+        lastSolves[record.core] = record
+        records.add(record)
+        if (log) with(record) {
+            println("core $core: $type local solve of size $size in ${"%.2f".format(timeMs)}ms" +
+                    (if (iterations > 0) " with $iterations matvecs" else "") +
+                    if (converged) "" else " (not converged)")
+        }
+    }
+}
+
+/**
+ * The local system of a core update with the interfaces psi, phi and an operator core given by its (i,j)th matrices
+ * applied from the left (multFromRight(i, j, v) = A_k[i,j]*v). The unknown vector is indexed by (i, betaMinus, beta).
+ * If normalizer is given, the system is extended by the constraint normalizer*w = normalizationFactor and a Lagrange
+ * multiplier, like in projectMatVec.
+ */
+internal class LocalSystem(
+        val psi: TPhi,
+        val phi: TPhi,
+        val n: Int,
+        val pattern: Array<IntArray>,
+        val F: SimpleMatrix,
+        val normalizer: SimpleMatrix? = null,
+        val normalizationFactor: Double = 1.0,
+        private val multFromRight: (Int, Int, SimpleMatrix) -> SimpleMatrix
+) {
+    val size = F.numRows()
+
+    /**
+     * Estimated ratio of the nonzero elements of the local matrix, assuming dense interfaces
+     */
+    val fill = pattern.sumBy { it.size }.toDouble() / (n * n)
+
+    /**
+     * Calls action for every element of the nonzero (i,j) blocks of the local matrix.
+     */
+    private fun forEachElement(action: (Int, Int, Double) -> Unit) {
+        val r_kminus = psi.size
+        val r_k = phi.size
+        val psiMat = SimpleMatrix(r_kminus * r_kminus, psi[0][0].numCols())
+        for ((betaMinus, psi_betaMinus) in psi.withIndex())
+            for ((gammaMinus, psiCurr) in psi_betaMinus.withIndex())
+                psiMat[betaMinus * r_kminus + gammaMinus, 0] = psiCurr
+        val phiMat = SimpleMatrix(phi[0][0].numRows(), r_k * r_k)
+        for ((beta, phi_beta) in phi.withIndex())
+            for ((gamma, phiCurr) in phi_beta.withIndex())
+                phiMat[0, beta * r_k + gamma] = phiCurr
+        for (i in 0 until n) {
+            for (j in pattern[i]) {
+                // (betaMinus, gammaMinus) x (beta, gamma)
+                val block = psiMat * multFromRight(i, j, phiMat)
+                for (betaMinus in 0 until r_kminus)
+                    for (gammaMinus in 0 until r_kminus)
+                        for (beta in 0 until r_k)
+                            for (gamma in 0 until r_k)
+                                action(
+                                        i * r_kminus * r_k + betaMinus * r_k + beta,
+                                        j * r_kminus * r_k + gammaMinus * r_k + gamma,
+                                        block[betaMinus * r_kminus + gammaMinus, beta * r_k + gamma]
+                                )
+            }
+        }
+    }
+
+    /**
+     * Assembles the local matrix without the normalization constraint.
+     */
+    fun toDenseMatrix(): SimpleMatrix {
+        val B = SimpleMatrix(size, size)
+        forEachElement { row, col, value -> B[row, col] = value }
+        return B
+    }
+
+    /**
+     * Assembles the local matrix without the normalization constraint in sparse format, with shift added to its
+     * diagonal.
+     */
+    fun toSparseMatrix(shift: Double = 0.0): DMatrixSparseCSC {
+        val diag = DoubleArray(size) { shift }
+        val triplet = DMatrixSparseTriplet(size, size, size)
+        forEachElement { row, col, value ->
+            if (row == col) diag[row] += value
+            else if (value != 0.0) triplet.addItem(row, col, value)
+        }
+        for (idx in 0 until size) if (diag[idx] != 0.0) triplet.addItem(idx, idx, diag[idx])
+        return ConvertDMatrixStruct.convert(triplet, null as DMatrixSparseCSC?)
+    }
+
+    private fun extendedRhs() = if (normalizer != null) F.concatRows(mat[r[normalizationFactor]]) else F
+
+    /**
+     * Solves the system with dense LU decomposition, using the pseudo-inverse if the matrix is singular.
+     */
+    fun solveDense(): SimpleMatrix {
+        val dim = if (normalizer != null) size + 1 else size
+        val B = SimpleMatrix(dim, dim)
+        forEachElement { row, col, value -> B[row, col] = value }
+        if (normalizer != null) {
+            B[size, 0] = normalizer
+            B[0, size] = normalizer.T()
+        }
+        val rhs = extendedRhs()
+        val res = try {
+            B.solve(rhs)
+        } catch (e: SingularMatrixException) {
+            B.pseudoInverse() * rhs
+        }
+        return res[0..size, 0..1]
+    }
+
+    /**
+     * Solves the system with sparse LU decomposition. Returns null if the matrix is singular.
+     */
+    fun solveSparse(): SimpleMatrix? {
+        val dim = if (normalizer != null) size + 1 else size
+        val triplet = DMatrixSparseTriplet(dim, dim, size)
+        forEachElement { row, col, value -> if (value != 0.0) triplet.addItem(row, col, value) }
+        if (normalizer != null) {
+            for (idx in 0 until size) {
+                if (normalizer[idx] == 0.0) continue
+                triplet.addItem(size, idx, normalizer[idx])
+                triplet.addItem(idx, size, normalizer[idx])
+            }
+        }
+        val B = ConvertDMatrixStruct.convert(triplet, null as DMatrixSparseCSC?)
+        val solver = LinearSolverFactory_DSCC.lu(FillReducing.NONE)
+        if (!solver.setA(B)) return null
+        val res = DMatrixRMaj(dim, 1)
+        solver.solve(extendedRhs().ddrm, res)
+        if (res.data.any { !it.isFinite() }) return null
+        return SimpleMatrix(res)[0..size, 0..1]
+    }
+
+    /**
+     * Solves the system in the least-squares sense, so that singular local matrices (e.g. ones with the zero rows and
+     * columns of a masked operator) are handled. Up to maxDenseSize, the normal equations B^T*B*w = B^T*F, extended by
+     * the normalization constraint and its Lagrange multiplier, are solved by dense LU, using the pseudo-inverse if they
+     * are singular. Larger systems are solved by CGLS with the assembled sparse local matrix, with the normalization
+     * constraint appended to it as an additional row. Returns the solution and the number of matrix-vector products.
+     */
+    fun solveLeastSquares(maxDenseSize: Int, w0: SimpleMatrix, threshold: Double, maxIters: Int): Pair<SimpleMatrix, Int> {
+        if (size <= maxDenseSize) {
+            val dim = if (normalizer != null) size + 1 else size
+            val B = toDenseMatrix()
+            val N = SimpleMatrix(dim, dim)
+            N.insertIntoThis(0, 0, B.T() * B)
+            if (normalizer != null) {
+                N.insertIntoThis(size, 0, normalizer)
+                N.insertIntoThis(0, size, normalizer.T())
+            }
+            val rhs = (B.T() * F).let { if (normalizer != null) it.concatRows(mat[r[normalizationFactor]]) else it }
+            val res = try {
+                N.solve(rhs)
+            } catch (e: SingularMatrixException) {
+                N.pseudoInverse() * rhs
+            }
+            return Pair(res[0..size, 0..1], 0)
+        }
+        val B = toSparseMatrix()
+        var matVecs = 0
+        val matVec = { w: SimpleMatrix ->
+            matVecs++
+            val res = SimpleMatrix(size, 1)
+            CommonOps_DSCC.mult(B, w.ddrm, res.ddrm)
+            if (normalizer != null) res.concatRows(normalizer * w) else res
+        }
+        val transposeMatVec = { v: SimpleMatrix ->
+            matVecs++
+            val res = SimpleMatrix(size, 1)
+            CommonOps_DSCC.multTransA(B, v[0..size, 0..1].ddrm, res.ddrm)
+            if (normalizer != null) res.plus(v[size] * normalizer.T()) else res
+        }
+        return Pair(CGLS(matVec, transposeMatVec, extendedRhs(), maxIters, w0, threshold), matVecs)
+    }
+}
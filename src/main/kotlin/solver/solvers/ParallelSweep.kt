@@ -0,0 +1,115 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver.solvers
+
+import org.ejml.simple.SimpleMatrix
+import solver.*
+import java.util.stream.IntStream
+
+/**
+ * Splits the cores 0 until d into at most the given number of contiguous segments of nearly equal length, and at least
+ * two cores each. If shifted, the boundaries are moved to the middle of the unshifted segments, so alternating the
+ * shifted and unshifted segments, every rank is updated inside a segment in every second sweep. A shifted last segment
+ * of a single core is merged into the previous one, so the shifted split may have one segment less.
+ */
+internal fun sweepSegments(d: Int, segments: Int, shifted: Boolean = false): List<IntRange> {
+    require(segments > 0) { "The number of segments must be positive!" }
+    val k = maxOf(1, minOf(segments, d / 2))
+    val ends = (1..k).map { it * d / k }
+    val unshiftedStarts = listOf(0) + ends.dropLast(1)
+    val starts = if (!shifted) unshiftedStarts else
+        listOf(0) + (1 until k).map { (unshiftedStarts[it] + ends[it]) / 2 }.filter { d - it >= 2 }
+    return starts.mapIndexed { j, start -> start until (if (j == starts.size - 1) d else starts[j + 1]) }
+}
+
+/**
+ * Calls body for every segment concurrently on the common fork-join pool.
+ */
+internal fun forEachSegment(segments: List<IntRange>, body: (Int, IntRange) -> Unit) {
+    IntStream.range(0, segments.size).parallel().forEach { body(it, segments[it]) }
+}
+
+/**
+ * The frames of a right-orthogonal train (except for its first core) at the segment boundaries of a parallel sweep.
+ * The cores before the start of the last segment are left-orthogonalized on a copy, so the left interfaces at the
+ * segment starts can be computed from the left cores of [left]. [centers] are the cores at the segment starts carrying
+ * the norm of the train, and [gauges] are the pseudo-inverses of the matrices C_k with x = L_(<s_k) C_k R_(>=s_k),
+ * which connect a segment ending in the right frame of the old train to the next one starting in its left frame.
+ */
+internal class SegmentFrames(val x: TTVector, val segments: List<IntRange>) {
+    val left = x.copy()
+    val centers = arrayOfNulls<CoreTensor>(segments.size)
+    val gauges = arrayOfNulls<SimpleMatrix>(segments.size)
+
+    init {
+        var k = 0
+        for (i in 0..segments.last().first) {
+            if (i == segments[k].first) {
+                val center = left.tt.cores[i]
+                centers[k] = center.copy()
+                if (k > 0) gauges[k] = pseudoInverse(center.rightUnfolding() * x.tt.cores[i].rightUnfolding().T())
+                k++
+            }
+            if (k < segments.size) left.tt.leftOrthogonalizeCore(i)
+        }
+    }
+
+    /**
+     * Returns the train updated by the kth segment: the left-orthogonal cores before the segment, a copy of the
+     * center and of the right-orthogonal cores of the segment, and the right-orthogonal cores after it. Only the cores
+     * of the segment are owned by the result.
+     */
+    fun segmentTrain(k: Int): TTVector {
+        val segment = segments[k]
+        val cores = ArrayList<CoreTensor>(x.modes.size)
+        for (i in x.modes.indices) cores.add(when {
+            i < segment.first -> left.tt.cores[i]
+            i == segment.first -> centers[k]!!.copy()
+            i <= segment.last -> x.tt.cores[i].copy()
+            else -> x.tt.cores[i]
+        })
+        return TTVector(TensorTrain(cores))
+    }
+
+    /**
+     * Writes the cores of the segment trains to x, connecting the segments with the gauges.
+     */
+    fun glue(trains: List<TTVector>) {
+        for ((k, segment) in segments.withIndex()) {
+            for (i in segment) x.tt.setCore(i, trains[k].tt.cores[i])
+            if (k == segments.size - 1) continue
+            val last = x.tt.cores[segment.last]
+            for (j in last.data.indices) last[j] = last[j] * gauges[k + 1]!!
+            last.updateDimensions()
+        }
+    }
+}
+
+/**
+ * Pseudo-inverse dropping the singular values below 1e-12 times the largest one, e.g. the directions of the enrichment
+ * that have no weight in the train yet.
+ */
+private fun pseudoInverse(C: SimpleMatrix): SimpleMatrix {
+    val svd = C.svd(true)
+    val s = svd.singularValues
+    val cutoff = (s.max() ?: 0.0) * 1e-12
+    val W = SimpleMatrix(svd.w.numCols(), svd.w.numRows())
+    for (i in s.indices) if (s[i] > cutoff) W[i, i] = 1.0 / s[i]
+    return svd.v * W * svd.u.T()
+}
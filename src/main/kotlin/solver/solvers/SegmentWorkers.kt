@@ -0,0 +1,449 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver.solvers
+
+import org.ejml.simple.SimpleMatrix
+import solver.*
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+
+/**
+ * The update of a segment in a parallel sweep of AMEnALSSolve: the segment train of x and z (see SegmentFrames) and
+ * the interfaces, of which the ones at the segment start are the left interfaces and the ones after it are the right
+ * interfaces of the orthogonalization. The cores of the segment are updated in place, and the squares of the singular
+ * values dropped by their truncations are summed in truncation2.
+ */
+internal class SegmentTask(
+        val sweep: Int,
+        val segment: IntRange,
+        val x: TTVector,
+        val z: TTVector,
+        val phiA: Array<TPhi>,
+        val phiy: Array<TPhi>,
+        val phizA: Array<TPhi>,
+        val phizy: Array<TPhi>
+) {
+    var truncation2 = 0.0
+
+    fun run(backend: AMEnBackend, y: TTVector, settings: AMEnCoreSettings, localSolverPolicy: AdaptiveLocalSolverPolicy?,
+            listener: SolverListener?, interfaceMs: DoubleArray) {
+        for (i in segment)
+            truncation2 += updateAMEnCore(backend, y, settings, localSolverPolicy, listener, sweep, i, i == segment.last, x, z,
+                    phiA, phiy, phizA, phizy, interfaceMs[i])
+    }
+}
+
+/**
+ * Local worker processes for the parallel segment sweeps of AMEnALSSolve with a TTSquareMatrix operator. Every worker is
+ * a separate JVM with its own heap, started with the classpath of this one and the given JVM options (e.g. -Xmx8g). The
+ * segment tasks and the updated cores are exchanged through memory-mapped files in dir, and the workers are only sent
+ * the names of these files on their standard input. The segments of a sweep are distributed round-robin between the
+ * workers. A task only carries what its segment needs: the cores of x and z in the segment (all of x if the solution is
+ * normalized), the interfaces at the segment boundaries, and the cores of the operator and the right hand side in the
+ * segment that were not sent to the same worker before. Each worker keeps its own adaptive local solver policy between
+ * the sweeps, and the core events of the workers are not reported to the listener of the solver. A pool can be shared
+ * by concurrent solves, whose segment updates are then executed one after the other. If a worker fails, the replies of
+ * the other tasks are still collected before the failure is thrown, and if a worker exits, the pool is torn down.
+ */
+class SegmentWorkerPool(
+        val workers: Int,
+        val dir: File = Files.createTempDirectory("segment-workers").toFile(),
+        jvmOptions: List<String> = listOf()
+) : Closeable {
+    private val processes: List<Process>
+    private val commands: List<BufferedWriter>
+    private val replies: List<BufferedReader>
+    private var loadedOperator: AMEnOperator? = null
+    private var loadedY: TTVector? = null
+    // the indices of the operator and of the right hand side cores of the loaded system already sent to each worker
+    private val sentOperatorCores = List(workers) { HashSet<Int>() }
+    private val sentRhsCores = List(workers) { HashSet<Int>() }
+    private var failure: Exception? = null
+
+    init {
+        require(workers > 0) { "The number of workers must be positive!" }
+        val java = File(File(System.getProperty("java.home"), "bin"), "java").path
+        val command = listOf(java) + jvmOptions + listOf("-cp", System.getProperty("java.class.path"), SegmentWorker::class.java.name)
+        processes = List(workers) { ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start() }
+        commands = processes.map { BufferedWriter(OutputStreamWriter(it.outputStream)) }
+        replies = processes.map { BufferedReader(InputStreamReader(it.inputStream)) }
+    }
+
+    private fun send(worker: Int, command: String) {
+        commands[worker].write(command + "\n")
+        commands[worker].flush()
+    }
+
+    private fun awaitReply(worker: Int) {
+        val reply = replies[worker].readLine() ?: throw IOException("Segment worker $worker exited unexpectedly")
+        if (reply != "ok") throw IllegalStateException("Segment worker $worker failed: ${reply.removePrefix("error\t")}")
+    }
+
+    /**
+     * Waits for the replies of the sent commands in order, so that the reply of a command is never read as the reply
+     * of a later one, and calls onReply for each successful command until the first failure, which is thrown after all
+     * the replies are collected. If a worker exited, the pool is torn down, as its state is lost.
+     */
+    private fun awaitReplies(workerOfCommand: List<Int>, onReply: (Int) -> Unit = {}) {
+        var first: Exception? = null
+        for ((k, w) in workerOfCommand.withIndex()) {
+            try {
+                awaitReply(w)
+                if (first == null) onReply(k)
+            } catch (e: Exception) {
+                if (first == null) first = e
+            }
+        }
+        if (first is IOException) tearDown(first)
+        if (first != null) throw first
+    }
+
+    private fun tearDown(cause: Exception) {
+        failure = cause
+        for (process in processes) process.destroy()
+    }
+
+    /**
+     * Loads the system on the workers. If only the right hand side changed (e.g. in the solves of a moment chain), the
+     * operator cores on the workers are kept, and only the cores of the new right hand side are sent.
+     */
+    private fun load(operator: AMEnOperator, y: TTVector) {
+        if (operator === loadedOperator) {
+            if (y !== loadedY) {
+                for (sent in sentRhsCores) sent.clear()
+                loadedY = y
+            }
+            return
+        }
+        val file = File(dir, "system.bin")
+        writeMapped(file) { out ->
+            out.writeInt(operator.A.modes.size)
+            for (n in operator.A.modes) out.writeInt(n)
+        }
+        for (w in 0 until workers) send(w, "system\t${file.path}")
+        awaitReplies(List(workers) { it })
+        for (sent in sentOperatorCores) sent.clear()
+        for (sent in sentRhsCores) sent.clear()
+        loadedOperator = operator
+        loadedY = y
+    }
+
+    @Synchronized
+    internal fun run(operator: AMEnOperator, y: TTVector, settings: AMEnCoreSettings,
+                     localSolverPolicy: AdaptiveLocalSolverPolicy?, tasks: List<SegmentTask>) {
+        failure?.let { throw IllegalStateException("The segment workers were torn down after a failure", it) }
+        try {
+            runTasks(operator, y, settings, localSolverPolicy, tasks)
+        } catch (e: Exception) {
+            // a failed worker may not have stored the cores sent to it, so the system is loaded again the next time
+            loadedOperator = null
+            loadedY = null
+            throw e
+        }
+    }
+
+    private fun runTasks(operator: AMEnOperator, y: TTVector, settings: AMEnCoreSettings,
+                         localSolverPolicy: AdaptiveLocalSolverPolicy?, tasks: List<SegmentTask>) {
+        load(operator, y)
+        val workerOfCommand = ArrayList<Int>()
+        try {
+            for ((k, task) in tasks.withIndex()) {
+                val worker = k % workers
+                val newOperatorCores = task.segment.filter { sentOperatorCores[worker].add(it) }
+                val newRhsCores = task.segment.filter { sentRhsCores[worker].add(it) }
+                val taskFile = File(dir, "task$k.bin")
+                writeMapped(taskFile) { out ->
+                    settings.writeTo(out)
+                    out.writeBoolean(localSolverPolicy != null)
+                    localSolverPolicy?.let {
+                        out.writeInt(it.maxDenseSize)
+                        out.writeInt(it.maxSparseSize)
+                        out.writeDouble(it.maxSparseFill)
+                        out.writeInt(it.gmresRestart)
+                    }
+                    out.writeInt(newOperatorCores.size)
+                    for (i in newOperatorCores) out.writeInt(i)
+                    writeCores(out, newOperatorCores.map { operator.A.tt.cores[it] })
+                    out.writeInt(newRhsCores.size)
+                    for (i in newRhsCores) out.writeInt(i)
+                    writeCores(out, newRhsCores.map { y.tt.cores[it] })
+                    task.writeTo(out, settings.normalize)
+                }
+                send(worker, "segment\t${taskFile.path}\t${File(dir, "result$k.bin").path}")
+                workerOfCommand.add(worker)
+            }
+        } catch (e: Exception) {
+            // the commands already sent are answered before the failure is passed on
+            try {
+                awaitReplies(workerOfCommand)
+            } catch (ignored: Exception) {
+            }
+            throw e
+        }
+        // the replies of a worker come in the order of its tasks
+        awaitReplies(workerOfCommand) { k ->
+            val task = tasks[k]
+            readMapped(File(dir, "result$k.bin")) { input ->
+                val xCores = readTTVector(input).tt.cores
+                val zCores = readTTVector(input).tt.cores
+                for ((j, i) in task.segment.withIndex()) {
+                    task.x.tt.setCore(i, xCores[j])
+                    task.z.tt.setCore(i, zCores[j])
+                }
+                task.truncation2 = input.readDouble()
+            }
+        }
+    }
+
+    override fun close() {
+        for (w in 0 until workers) {
+            try {
+                send(w, "exit")
+            } catch (e: IOException) {
+                // the worker has already exited
+            }
+        }
+        for (process in processes) process.waitFor()
+        dir.listFiles()?.forEach { it.delete() }
+        dir.delete()
+    }
+}
+
+/**
+ * The segment worker processes started by SegmentWorkerPool. The standard output is reserved for the replies,
+ * everything printed by the solver goes to the standard error. The cores of the operator and the right hand side are
+ * collected from the tasks; the others are 1x1 placeholders, which are never accessed.
+ */
+object SegmentWorker {
+    /**
+     * The entry point of a worker process, which executes the commands of the pool read from the standard input.
+     */
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val replies = PrintStream(FileOutputStream(FileDescriptor.out), true)
+        System.setOut(System.err)
+        val commands = BufferedReader(InputStreamReader(System.`in`))
+        var operator: AMEnOperator? = null
+        var y: TTVector? = null
+        var policy: AdaptiveLocalSolverPolicy? = null
+        while (true) {
+            val command = (commands.readLine() ?: return).split("\t")
+            try {
+                when (command[0]) {
+                    "exit" -> return
+                    "system" -> readMapped(File(command[1])) { input ->
+                        val modes = Array(input.readInt()) { input.readInt() }
+                        val placeholders = { ArrayList(modes.map { CoreTensor(1, 1, 1) }) }
+                        operator = AMEnOperator(TTSquareMatrix(TensorTrain(placeholders()), modes))
+                        y = TTVector(TensorTrain(placeholders()))
+                    }
+                    "segment" -> {
+                        val op = operator ?: throw IllegalStateException("No system was loaded")
+                        readMapped(File(command[1])) { input ->
+                            val settings = readAMEnCoreSettings(input)
+                            if (input.readBoolean()) {
+                                val maxDenseSize = input.readInt()
+                                val maxSparseSize = input.readInt()
+                                val maxSparseFill = input.readDouble()
+                                val gmresRestart = input.readInt()
+                                if (policy == null)
+                                    policy = AdaptiveLocalSolverPolicy(maxDenseSize, maxSparseSize, maxSparseFill, gmresRestart, log = false)
+                            } else policy = null
+                            val newOperatorCores = List(input.readInt()) { input.readInt() }
+                            val ACores = readCores(input)
+                            for ((j, i) in newOperatorCores.withIndex()) op.A.tt.cores[i] = ACores[j]
+                            val newRhsCores = List(input.readInt()) { input.readInt() }
+                            val yCores = readCores(input)
+                            for ((j, i) in newRhsCores.withIndex()) y!!.tt.cores[i] = yCores[j]
+                            val task = readSegmentTask(input, op.A.modes.size)
+                            task.run(op, y!!, settings, policy, null, DoubleArray(op.A.modes.size))
+                            writeMapped(File(command[2])) { out ->
+                                TTVector(TensorTrain(ArrayList(task.segment.map { task.x.tt.cores[it] }))).writeTo(out)
+                                TTVector(TensorTrain(ArrayList(task.segment.map { task.z.tt.cores[it] }))).writeTo(out)
+                                out.writeDouble(task.truncation2)
+                            }
+                        }
+                    }
+                    else -> throw IllegalArgumentException("Unknown command ${command[0]}")
+                }
+                replies.println("ok")
+            } catch (e: Exception) {
+                replies.println("error\t${e.javaClass.simpleName}: ${e.message}")
+            }
+        }
+    }
+}
+
+private fun AMEnCoreSettings.writeTo(out: DataOutput) {
+    out.writeUTF(name)
+    out.writeDouble(residualThreshold)
+    out.writeDouble(residDamp)
+    out.writeInt(enrichmentRank)
+    out.writeInt(maxRank)
+    out.writeBoolean(normalize)
+    out.writeDouble(normalizationFactor)
+    out.writeBoolean(normalizationSet != null)
+    normalizationSet?.writeTo(out)
+    out.writeBoolean(truncateBasedOnResidual)
+    out.writeBoolean(useDirectForSmall)
+    out.writeBoolean(useLocalPreconditioner)
+    out.writeBoolean(leastSquaresLocalSolve)
+}
+
+private fun readAMEnCoreSettings(input: DataInput) = AMEnCoreSettings(
+        input.readUTF(), input.readDouble(), input.readDouble(), input.readInt(), input.readInt(), input.readBoolean(),
+        input.readDouble(), if (input.readBoolean()) readTTVector(input) else null, input.readBoolean(), input.readBoolean(),
+        input.readBoolean(), input.readBoolean()
+)
+
+/**
+ * Writes the sweep index, the segment, the cores of the trains in the segment (all the cores of x if full) and only the
+ * interfaces used by the segment, i.e. the ones from its start to the one after its end.
+ */
+private fun SegmentTask.writeTo(out: DataOutput, full: Boolean) {
+    out.writeInt(sweep)
+    out.writeInt(segment.first)
+    out.writeInt(segment.last)
+    writePartialTrain(out, x, if (full) x.modes.indices else segment)
+    writePartialTrain(out, z, segment)
+    for (phis in listOf(phiA, phiy, phizA, phizy))
+        for (i in segment.first..segment.last + 1) writeInterface(out, phis[i])
+}
+
+private fun readSegmentTask(input: DataInput, d: Int): SegmentTask {
+    val sweep = input.readInt()
+    val segment = input.readInt()..input.readInt()
+    val x = readPartialTrain(input)
+    val z = readPartialTrain(input)
+    val phis = List(4) {
+        val phi = Array<TPhi>(d + 1) { listOf(listOf(ones(1))) }
+        for (i in segment.first..segment.last + 1) phi[i] = readInterface(input)
+        phi
+    }
+    return SegmentTask(sweep, segment, x, z, phis[0], phis[1], phis[2], phis[3])
+}
+
+/**
+ * Writes the given cores of the train, and only the ranks of the others, which are read as placeholders of the same
+ * ranks, as the core updates access the ranks around the segment.
+ */
+private fun writePartialTrain(out: DataOutput, train: TTVector, cores: IntRange) {
+    out.writeInt(train.modes.size)
+    for (core in train.tt.cores) out.writeInt(core.rows)
+    out.writeInt(cores.first)
+    out.writeInt(cores.last)
+    writeCores(out, cores.map { train.tt.cores[it] })
+}
+
+private fun readPartialTrain(input: DataInput): TTVector {
+    val ranks = List(input.readInt()) { input.readInt() }
+    val cores = input.readInt()..input.readInt()
+    val segmentCores = readCores(input)
+    return TTVector(TensorTrain(ArrayList(ranks.indices.map { i ->
+        if (i in cores) segmentCores[i - cores.first]
+        else CoreTensor(1, ranks[i], 1)
+    })))
+}
+
+/**
+ * Writes a list of cores, which may be empty, each as a train of a single core.
+ */
+private fun writeCores(out: DataOutput, cores: List<CoreTensor>) {
+    out.writeInt(cores.size)
+    for (core in cores) TTVector(TensorTrain(arrayListOf(core))).writeTo(out)
+}
+
+private fun readCores(input: DataInput): List<CoreTensor> = List(input.readInt()) { readTTVector(input).tt.cores[0] }
+
+private fun writeInterface(out: DataOutput, phi: TPhi) {
+    out.writeInt(phi.size)
+    for (row in phi) {
+        out.writeInt(row.size)
+        for (M in row) {
+            out.writeInt(M.numRows())
+            out.writeInt(M.numCols())
+            for (idx in 0 until M.numElements) out.writeDouble(M[idx])
+        }
+    }
+}
+
+private fun readInterface(input: DataInput): TPhi = List(input.readInt()) {
+    List(input.readInt()) {
+        val M = SimpleMatrix(input.readInt(), input.readInt())
+        for (idx in 0 until M.numElements) M[idx] = input.readDouble()
+        M
+    }
+}
+
+/**
+ * Writes to the file through a memory mapping, which is extended while writing.
+ */
+private fun writeMapped(file: File, write: (DataOutput) -> Unit) {
+    RandomAccessFile(file, "rw").use { raf ->
+        val out = MappedOutputStream(raf.channel)
+        DataOutputStream(BufferedOutputStream(out, 1 shl 16)).let {
+            write(it)
+            it.flush()
+        }
+    }
+}
+
+private fun <T> readMapped(file: File, read: (DataInput) -> T): T =
+        RandomAccessFile(file, "r").use { raf ->
+            val buffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+            read(DataInputStream(BufferedInputStream(MappedInputStream(buffer), 1 shl 16)))
+        }
+
+private class MappedOutputStream(private val channel: FileChannel) : OutputStream() {
+    private var buffer: MappedByteBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 1L shl 20)
+
+    private fun ensure(bytes: Int) {
+        if (buffer.remaining() >= bytes) return
+        val position = buffer.position()
+        val capacity = maxOf(2L * buffer.capacity(), position.toLong() + bytes)
+        require(capacity <= Int.MAX_VALUE) { "A segment worker file cannot be larger than 2GB!" }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity)
+        buffer.position(position)
+    }
+
+    override fun write(b: Int) {
+        ensure(1)
+        buffer.put(b.toByte())
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        ensure(len)
+        buffer.put(b, off, len)
+    }
+}
+
+private class MappedInputStream(private val buffer: ByteBuffer) : InputStream() {
+    override fun read(): Int = if (buffer.hasRemaining()) buffer.get().toInt() and 0xff else -1
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        if (!buffer.hasRemaining()) return -1
+        val n = minOf(len, buffer.remaining())
+        buffer.get(b, off, n)
+        return n
+    }
+}
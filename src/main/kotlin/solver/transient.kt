@@ -0,0 +1,164 @@
+/*
+ *
+ *   Copyright 2021 Budapest University of Technology and Economics
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package solver
+
+import faulttree.BasicEvent.Companion.BasicEventVar
+import faulttree.FaultTree
+import faulttree.PHBasicEvent.Companion.PHEventVar
+import kotlin.math.exp
+import kotlin.math.ln
+import kotlin.math.max
+
+/**
+ * Value of a transient reward at a time point. truncationError bounds the error caused by truncating the Poisson sum,
+ * the error of the rounding of the TT vectors is not included.
+ */
+data class TransientPoint(val time: Double, val value: Double, val truncationError: Double, val terms: Int)
+
+/**
+ * Computes pi0*exp(Q*t)*reward for all the given time points by uniformization. The vectors pi0*P^k with
+ * P = I + Q/rate are computed one after the other with rounding to roundingAccuracy, and only their products with the
+ * reward vector are accumulated with the Poisson weights of the time points, so the memory need does not depend on the
+ * number of time points or the length of the horizon. The Poisson weights are computed in log-space, so large rate*t
+ * products do not underflow. A time point is finished when the remaining Poisson tail is below truncationError, and
+ * finished points are passed to onPoint in increasing order of time as soon as they and all earlier points are ready.
+ * If the relative change of the vector in a step is below steadyStateTolerance, the rest of the sum is evaluated with
+ * the current vector and the iteration stops.
+ *
+ * @param rate the uniformization rate, which must be at least the highest exit rate of Q
+ */
+fun uniformization(
+        Q: TTSquareMatrix,
+        pi0: TTVector,
+        reward: TTVector,
+        times: List<Double>,
+        rate: Double,
+        roundingAccuracy: Double = 1e-10,
+        truncationError: Double = 1e-10,
+        steadyStateTolerance: Double = 1e-12,
+        maxTerms: Int = 10_000_000,
+        verbose: Boolean = false,
+        onPoint: (TransientPoint) -> Unit = {}
+): List<TransientPoint> {
+    require(Q.modes.contentEquals(pi0.modes) && pi0.modes.contentEquals(reward.modes))
+    { "The modes of Q, pi0 and the reward vector must be identical!" }
+    require(times.all { it >= 0.0 }) { "The time points must be non-negative!" }
+    require(times.zipWithNext().all { (a, b) -> a <= b }) { "The time points must be in increasing order!" }
+    require(rate > 0.0) { "The uniformization rate must be positive!" }
+
+    val QT = Q.T()
+    QT.tt.roundAbsolute(1e-16)
+    QT.tt.roundRelative(1e-16)
+    val logRateTimes = DoubleArray(times.size) { ln(rate * times[it]) }
+    val logWeights = DoubleArray(times.size) { -rate * times[it] }
+    val weightSums = DoubleArray(times.size)
+    val values = DoubleArray(times.size)
+    val finished = BooleanArray(times.size)
+    val res = ArrayList<TransientPoint>(times.size)
+
+    fun emitFinished(terms: Int) {
+        while (res.size < times.size && finished[res.size]) {
+            val idx = res.size
+            val point = TransientPoint(times[idx], values[idx], max(0.0, 1.0 - weightSums[idx]), terms)
+            res.add(point)
+            onPoint(point)
+        }
+    }
+
+    val v = pi0.copy()
+    var k = 0
+    while (res.size < times.size) {
+        require(k < maxTerms) { "The Poisson sum was not truncated within $maxTerms terms!" }
+        val currValue = v * reward
+        for (idx in times.indices) {
+            if (finished[idx]) continue
+            if (k > 0) logWeights[idx] += logRateTimes[idx] - ln(k.toDouble())
+            val weight = exp(logWeights[idx])
+            values[idx] += weight * currValue
+            weightSums[idx] += weight
+            if (k >= rate * times[idx] && 1.0 - weightSums[idx] <= truncationError) finished[idx] = true
+        }
+        emitFinished(k + 1)
+        if (res.size == times.size) break
+
+        val step = QT * v
+        step.tt.roundAbsolute(0.0)
+        step.tt.roundRelative(roundingAccuracy)
+        step /= rate
+        if (step.norm() <= steadyStateTolerance * v.norm()) {
+            if (verbose) println("uniformization: steady state reached after ${k + 1} terms")
+            for (idx in times.indices) {
+                if (finished[idx]) continue
+                values[idx] += (1.0 - weightSums[idx]) * currValue
+                weightSums[idx] = 1.0
+                finished[idx] = true
+            }
+            emitFinished(k + 1)
+            break
+        }
+        v += step
+        v.tt.roundAbsolute(0.0)
+        v.tt.roundRelative(roundingAccuracy)
+        k++
+        if (verbose && k % 100 == 0) println("uniformization: $k terms, ranks ${v.ttRanks().joinToString(",")}")
+    }
+    return res
+}
+
+/**
+ * Returns an upper bound of the highest exit rate of the base Markov chain of the tree, as the sum of the highest exit
+ * rates of the basic events.
+ */
+fun FaultTree.getUniformizationRate(): Double =
+        getOrderedVariables().sumByDouble { variable ->
+            when (variable) {
+                is BasicEventVar -> max(variable.event.failureRate, variable.event.repairRate)
+                is PHEventVar -> {
+                    val R = variable.event.rateMatrix
+                    (0 until R.numRows()).map { i -> R.row(i).elementSum() - R[i, i] }.max() ?: 0.0
+                }
+                else -> throw IllegalArgumentException("Unsupported variable type for uniformization: $variable")
+            }
+        }
+
+/**
+ * Computes the unreliability F(t), i.e. the probability that the system has failed until t, for each of the given time
+ * points. The failure states of the base generator are made absorbing, so F(t) is the probability of being in a failure
+ * state of this chain at time t. The points are also passed to onPoint as soon as they are computed, so long curves can
+ * be written incrementally.
+ */
+fun FaultTree.getUnreliability(
+        times: List<Double>,
+        roundingAccuracy: Double = 1e-10,
+        truncationError: Double = 1e-10,
+        steadyStateTolerance: Double = 1e-12,
+        verbose: Boolean = false,
+        onPoint: (TransientPoint) -> Unit = {}
+): List<TransientPoint> {
+    val M = getBaseGenerator()
+    val failureIndicator = TTVector.ones(M.modes) - getOperationalIndicatorVector()
+    failureIndicator.tt.roundAbsolute(1e-16)
+    val Q = M - TTSquareMatrix.diag(failureIndicator) * M
+    Q.tt.roundAbsolute(1e-16)
+    Q.tt.roundRelative(1e-16)
+    return uniformization(
+            Q, getInitialVector(), failureIndicator, times, getUniformizationRate(),
+            roundingAccuracy, truncationError, steadyStateTolerance, verbose = verbose, onPoint = onPoint
+    )
+}
@@ -18,6 +18,8 @@
 
 package solver
 
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.IntStream
 import kotlin.math.abs
 
 fun Double.nearZero(thresh: Double = 10E-14) = abs(this) < thresh
@@ -36,4 +38,40 @@ fun <T> Array<T>.indexOfFirst(default: Int, predicate: (T)->Boolean): Int {
 fun DoubleArray.indexOfFirst(default: Int, predicate: (Double)->Boolean): Int {
     val idx = indexOfFirst(predicate)
     return if(idx == -1) default else idx
-}
\ No newline at end of file
+}
+/**
+ * Default minimal estimated work (in floating point operations) of a loop for [parallelFor] to split it between the
+ * threads of the common fork-join pool. Smaller loops run sequentially, as the scheduling overhead would dominate.
+ */
+const val parallelWorkThreshold = 1L shl 17
+
+/**
+ * Calls body for every index in 0 until n. The iterations are executed in parallel on the common fork-join pool if
+ * there is more than one of them and their estimated total work is at least threshold. The iterations must be
+ * independent, e.g. write to disjoint parts of the result.
+ */
+fun parallelFor(n: Int, work: Long, threshold: Long = parallelWorkThreshold, body: (Int) -> Unit) {
+    if (n > 1 && work >= threshold && ForkJoinPool.getCommonPoolParallelism() > 1)
+        IntStream.range(0, n).parallel().forEach { body(it) }
+    else
+        for (i in 0 until n) body(i)
+}
+
+/**
+ * Returns the number of blocks to split a second loop dimension of length m into, so that together with the n
+ * iterations of the first one every thread of the common pool gets work. It is 1 if the n iterations are enough or
+ * the loop is too small for [parallelFor] to run it in parallel.
+ */
+fun parallelBlocks(n: Int, m: Int, work: Long, threshold: Long = parallelWorkThreshold): Int {
+    val parallelism = ForkJoinPool.getCommonPoolParallelism()
+    if (work < threshold || parallelism <= 1 || n >= parallelism) return 1
+    return maxOf(1, minOf(m, (parallelism + n - 1) / n))
+}
+
+/**
+ * Splits 0 until n into the given number of contiguous ranges of nearly equal length.
+ */
+fun splitRange(n: Int, parts: Int): List<IntRange> {
+    val k = maxOf(1, minOf(parts, n))
+    return List(k) { it * n / k until (it + 1) * n / k }
+}